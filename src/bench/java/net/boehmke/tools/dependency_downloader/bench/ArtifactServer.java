@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local HTTP server for the benchmarks
+ *
+ * Serves files by name with configurable latency, bandwidth and failure
+ * injection. Supports HEAD and single byte ranges (resume of downloads).
+ */
+public class ArtifactServer {
+    /**
+     * Pattern of supported range headers
+     */
+    private static final Pattern rangePattern = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    /**
+     * Served files by path ("/name")
+     */
+    private final Map<String, File> files = new ConcurrentHashMap<>();
+
+    /**
+     * HTTP server
+     */
+    private final HttpServer server;
+
+    /**
+     * Threads of the server
+     */
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /**
+     * Delay before each response in ms
+     */
+    private volatile long latency = 0;
+
+    /**
+     * Total bandwidth in bytes/s (0 for unlimited)
+     */
+    private volatile long bandwidth = 0;
+
+    /**
+     * Every n-th request is aborted after half of the data (0 to disable)
+     */
+    private volatile int failEvery = 0;
+
+    /**
+     * Amount of handled requests
+     */
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * Sent bytes of all responses
+     */
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * Time at which the bandwidth is free for the next chunk (System.nanoTime)
+     */
+    private long nextSend = 0;
+
+    /**
+     * Create and start the server on a free local port
+     * @throws IOException
+     */
+    public ArtifactServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 64);
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Add a served file
+     * @param file File (served as "/NAME")
+     * @return URL of the file
+     */
+    public String add(File file) {
+        files.put("/" + file.getName(), file);
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + file.getName();
+    }
+
+    /**
+     * Set the network conditions
+     * @param latency Delay before each response in ms
+     * @param bandwidth Total bandwidth in bytes/s (0 for unlimited)
+     * @param failEvery Every n-th request is aborted after half of the data (0 to disable)
+     */
+    public void setConditions(long latency, long bandwidth, int failEvery) {
+        this.latency = latency;
+        this.bandwidth = bandwidth;
+        this.failEvery = failEvery;
+    }
+
+    /**
+     * Reset the request counters
+     */
+    public void resetCounters() {
+        requests.set(0);
+        bytesSent.set(0);
+    }
+
+    /**
+     * @return Amount of handled requests since the last reset
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return Sent bytes since the last reset
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * Stop the server
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Handle a request
+     * @param exchange HTTP exchange
+     * @throws IOException
+     */
+    private void serve(HttpExchange exchange) throws IOException {
+        long request = requests.incrementAndGet();
+        sleep(latency);
+
+        File file = files.get(exchange.getRequestURI().getPath());
+        if (file == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+
+        // get requested part
+        long length = file.length();
+        long start = 0;
+        long end = length;
+        int status = 200;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null) {
+            Matcher matcher = rangePattern.matcher(range);
+            if (matcher.matches()) {
+                start = Long.parseLong(matcher.group(1));
+                if (!matcher.group(2).isEmpty()) {
+                    end = Math.min(length, Long.parseLong(matcher.group(2)) + 1);
+                }
+                if (start >= end) {
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                status = 206;
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + start + "-" + (end - 1) + "/" + length);
+            }
+        }
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.getResponseHeaders().set("Content-Length", Long.toString(end - start));
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+
+        // injected failure: connection is closed after half of the data
+        long sendEnd = end;
+        if (failEvery > 0 && request % failEvery == 0) {
+            sendEnd = start + (end - start) / 2;
+        }
+
+        exchange.sendResponseHeaders(status, end - start);
+        OutputStream out = exchange.getResponseBody();
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.seek(start);
+            byte[] buffer = new byte[64*1024];
+            long position = start;
+            while (position < sendEnd) {
+                int size = in.read(buffer, 0, (int) Math.min(buffer.length, sendEnd - position));
+                if (size == -1) {
+                    break;
+                }
+                throttle(size);
+                out.write(buffer, 0, size);
+                bytesSent.addAndGet(size);
+                position += size;
+            }
+        } finally {
+            in.close();
+        }
+
+        if (sendEnd < end) {
+            // close the socket without the rest of the response
+            out.flush();
+            throw new IOException("Injected failure");
+        }
+        out.close();
+    }
+
+    /**
+     * Wait until the bandwidth allows to send a chunk
+     * @param size Size of the chunk
+     */
+    private void throttle(int size) {
+        if (bandwidth <= 0) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            nextSend = Math.max(nextSend, now) + size * 1000000000L / bandwidth;
+            wait = nextSend - now - size * 1000000000L / bandwidth;
+        }
+        sleep(wait / 1000000);
+    }
+
+    /**
+     * Sleep without interruption handling
+     * @param millis Time in ms
+     */
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
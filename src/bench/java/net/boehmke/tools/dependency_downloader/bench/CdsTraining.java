@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader.bench;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Training run for the class data sharing archive
+ *
+ * Installs small File, Zip, Tar, TarGz and GZip artifacts with checksums
+ * from a local HTTP server (ArtifactServer) with the jar and records the
+ * loaded classes. So the archive contains the classes of the download,
+ * checksum and extraction paths and not only the startup classes.
+ *
+ * Arguments: JAR CLASS_LIST
+ */
+public class CdsTraining {
+    /**
+     * Entry point of the training run
+     * @param args JAR CLASS_LIST
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: CdsTraining JAR CLASS_LIST");
+            System.exit(1);
+        }
+        File jar = new File(args[0]).getAbsoluteFile();
+        File classList = new File(args[1]).getAbsoluteFile();
+
+        File directory = Files.createTempDirectory("cdstraining").toFile();
+        ArtifactServer server = new ArtifactServer();
+        try {
+            File artifacts = new File(directory, "artifacts");
+            File work = new File(directory, "work");
+            artifacts.mkdirs();
+            work.mkdirs();
+            Map<File, String> files = generateArtifacts(artifacts);
+            PerfSuite.writeDependFile(new File(work, "depend.xml"), server, files);
+
+            // install all artifacts and record the loaded classes
+            List<String> command = Arrays.asList(
+                    System.getProperty("java.home") + "/bin/java",
+                    "-Xshare:off", "-XX:DumpLoadedClassList=" + classList.getPath(),
+                    "-jar", jar.getPath(), "depend.xml");
+            File log = new File(work, "training.log");
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.directory(work);
+            builder.redirectErrorStream(true);
+            builder.redirectOutput(log);
+            int exitCode = builder.start().waitFor();
+
+            // every artifact must be installed (no early abort of the run)
+            String[] installed = new File(work, "out").list();
+            if (exitCode != 0 || installed == null || installed.length != files.size()) {
+                throw new IOException("Training run failed:\n" + new String(
+                        Files.readAllBytes(log.toPath()), StandardCharsets.UTF_8));
+            }
+            System.out.println("Recorded classes of " + files.size() + " installs in " + classList);
+
+        } finally {
+            server.stop();
+            PerfSuite.deleteDir(directory);
+        }
+    }
+
+    /**
+     * Generate small artifacts of all types (deterministic content)
+     * @param directory Output directory
+     * @return Artifacts (file and type)
+     * @throws IOException
+     */
+    private static Map<File, String> generateArtifacts(File directory) throws IOException {
+        Random random = new Random(42);
+        Map<File, String> artifacts = new LinkedHashMap<>();
+
+        File file = new File(directory, "data.bin");
+        Files.write(file.toPath(), PerfSuite.text(random, 64*1024));
+        artifacts.put(file, "File");
+
+        File zip = new File(directory, "small.zip");
+        ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(zip));
+        try {
+            for (int i = 0; i < 10; ++i) {
+                zipOut.putNextEntry(new ZipEntry("small/file" + i + ".txt"));
+                zipOut.write(PerfSuite.text(random, 4096));
+                zipOut.closeEntry();
+            }
+        } finally {
+            zipOut.close();
+        }
+        artifacts.put(zip, "Zip");
+
+        File tar = new File(directory, "medium.tar");
+        OutputStream tarOut = new BufferedOutputStream(new FileOutputStream(tar));
+        try {
+            PerfSuite.writeTar(tarOut, random, "medium/", 10, 4096);
+        } finally {
+            tarOut.close();
+        }
+        artifacts.put(tar, "Tar");
+
+        File tarGz = new File(directory, "tree.tar.gz");
+        OutputStream tarGzOut = new GZIPOutputStream(new FileOutputStream(tarGz));
+        try {
+            PerfSuite.writeTar(tarGzOut, random, "tree/", 10, 4096);
+        } finally {
+            tarGzOut.close();
+        }
+        artifacts.put(tarGz, "TarGz");
+
+        File gzip = new File(directory, "log.txt.gz");
+        OutputStream gzipOut = new GZIPOutputStream(new FileOutputStream(gzip));
+        try {
+            gzipOut.write(PerfSuite.text(random, 64*1024));
+        } finally {
+            gzipOut.close();
+        }
+        artifacts.put(gzip, "GZip");
+
+        return artifacts;
+    }
+}
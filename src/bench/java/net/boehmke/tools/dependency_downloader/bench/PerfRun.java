@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader.bench;
+
+import net.boehmke.tools.dependency_downloader.ConsoleListener;
+import net.boehmke.tools.dependency_downloader.Dependency;
+import net.boehmke.tools.dependency_downloader.DependencyInstaller;
+import net.boehmke.tools.dependency_downloader.Downloader;
+import net.boehmke.tools.dependency_downloader.Manifest;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Single run of the installer (started as own process by the PerfSuite)
+ *
+ * Installs the depend file in the current directory and prints the peak
+ * resident set size of the process as last line ("PEAK_RSS kB").
+ *
+ * With "raw-copy" the sources are only copied into the directory "raw" with
+ * plain HTTP requests (calibration of the machine).
+ *
+ * Arguments: DEPEND_FILE [download-only|raw-copy]
+ */
+public class PerfRun {
+    /**
+     * Entry point of the run
+     * @param args DEPEND_FILE [download-only|raw-copy]
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 1 && args[1].equals("raw-copy")) {
+            rawCopy(Manifest.load(args[0]));
+            System.out.println("PEAK_RSS " + getPeakRss());
+            return;
+        }
+
+        Downloader downloader = new Downloader("");
+        downloader.setRetries(3);
+        downloader.setShowProgress(false);
+
+        DependencyInstaller installer = new DependencyInstaller(downloader, new ConsoleListener());
+        installer.setDownloadOnly(args.length > 1 && args[1].equals("download-only"));
+        installer.install(Manifest.load(args[0]));
+
+        System.out.println("PEAK_RSS " + getPeakRss());
+    }
+
+    /**
+     * Copy the sources of all dependencies into the directory "raw"
+     * @param manifest Manifest with the dependencies
+     * @throws IOException
+     */
+    private static void rawCopy(Manifest manifest) throws IOException {
+        File directory = new File("raw");
+        directory.mkdirs();
+
+        byte[] buffer = new byte[64*1024];
+        int index = 0;
+        for (Dependency dependency: manifest.getDependencies()) {
+            HttpURLConnection request = (HttpURLConnection)
+                    new URL(dependency.getSource()).openConnection();
+            InputStream in = request.getInputStream();
+            OutputStream out = new FileOutputStream(new File(directory, Integer.toString(index++)));
+            try {
+                int size;
+                while ((size = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, size);
+                }
+            } finally {
+                out.close();
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Get the peak resident set size of the process (Linux only)
+     * @return Peak RSS in kB or -1 if unknown
+     */
+    private static long getPeakRss() {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("VmHWM:")) {
+                        return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // not available on this system
+        }
+        return -1;
+    }
+}
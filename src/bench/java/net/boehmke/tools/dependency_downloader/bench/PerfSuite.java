@@ -0,0 +1,519 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader.bench;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * End-to-end performance regression suite
+ *
+ * Generates File, Zip, Tar, TarGz and GZip artifacts, serves them with a
+ * local HTTP server (ArtifactServer) and installs them with separate
+ * processes (PerfRun) in these scenarios:
+ * <pre>
+ *   cold        empty cache and destination
+ *   warm        filled cache, empty destination
+ *   noop        filled cache, installed destination (download only)
+ *   cold-faulty empty cache, every 4th request is aborted
+ * </pre>
+ * Wall time (median) and peak RSS of each scenario are normalized with a
+ * calibration run on the same machine (a process that only copies the
+ * artifacts with plain HTTP requests) so the baseline does not depend on
+ * the speed of the machine. The normalized values and the bytes sent by
+ * the server are compared with the baseline. The suite fails if a value
+ * exceeds the baseline by more than the tolerance or if the baseline is
+ * missing (a new baseline is only written with --update-baseline).
+ *
+ * Arguments:
+ * <pre>
+ *   --baseline FILE    baseline properties (Default: perf-baseline.properties)
+ *   --update-baseline  write the results as new baseline
+ *   --tolerance X      allowed increase (Default: 0.5 = 50%)
+ *   --runs N           runs per scenario (Default: 3)
+ *   --latency MS       delay per request (Default: 20)
+ *   --bandwidth B/S    server bandwidth (Default: 50000000)
+ * </pre>
+ */
+public class PerfSuite {
+    /**
+     * Allowed absolute increase of the wall time in ms (timer noise)
+     */
+    private static final long timeSlack = 250;
+
+    /**
+     * Scenario names
+     */
+    private static final String[] scenarios = {"cold", "warm", "noop", "cold-faulty"};
+
+    /**
+     * Compared metrics of a scenario (time and rss relative to the calibration)
+     */
+    private static final String[] metrics = {"time", "bytes", "rss"};
+
+    /**
+     * Entry point of the suite
+     * @param args Arguments (see class documentation)
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        File baselineFile = new File("perf-baseline.properties");
+        boolean updateBaseline = false;
+        double tolerance = 0.5;
+        int runs = 3;
+        long latency = 20;
+        long bandwidth = 50000000;
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--baseline": baselineFile = new File(args[++i]); break;
+                case "--update-baseline": updateBaseline = true; break;
+                case "--tolerance": tolerance = Double.parseDouble(args[++i]); break;
+                case "--runs": runs = Integer.parseInt(args[++i]); break;
+                case "--latency": latency = Long.parseLong(args[++i]); break;
+                case "--bandwidth": bandwidth = Long.parseLong(args[++i]); break;
+                default:
+                    System.err.println("Unknown argument: " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        // a missing baseline is an error (no silent pass)
+        if (!updateBaseline && !baselineFile.isFile()) {
+            System.err.println("No baseline " + baselineFile + " (record it with --update-baseline)");
+            System.exit(1);
+        }
+
+        File directory = Files.createTempDirectory("perfsuite").toFile();
+        ArtifactServer server = new ArtifactServer();
+        Properties results = new Properties();
+        try {
+            // generate artifacts and depend file
+            System.out.println("Generate artifacts in " + directory);
+            File artifacts = new File(directory, "artifacts");
+            File work = new File(directory, "work");
+            artifacts.mkdirs();
+            work.mkdirs();
+            writeDependFile(new File(work, "depend.xml"), server, generateArtifacts(artifacts));
+
+            // warm up file system caches and the server
+            prepare("cold", work, server, latency, bandwidth);
+            run(work, null);
+
+            // calibration of the machine (raw copy of the artifacts)
+            List<long[]> calibrationRuns = new ArrayList<>();
+            for (int run = 0; run < runs; ++run) {
+                prepare("cold", work, server, latency, bandwidth);
+                deleteDir(new File(work, "raw"));
+                server.resetCounters();
+                long[] result = run(work, "raw-copy");
+                result[1] = server.getBytesSent();
+                calibrationRuns.add(result);
+            }
+            store(results, "calibration", calibrationRuns);
+
+            for (String scenario: scenarios) {
+                List<long[]> scenarioRuns = new ArrayList<>();
+                for (int run = 0; run < runs; ++run) {
+                    // prepare state of the scenario
+                    prepare(scenario, work, server, latency, bandwidth);
+                    server.resetCounters();
+                    long[] result = run(work, scenario.equals("noop") ? "download-only" : null);
+                    result[1] = server.getBytesSent();
+                    scenarioRuns.add(result);
+                }
+                store(results, scenario, scenarioRuns);
+            }
+        } finally {
+            server.stop();
+            deleteDir(directory);
+        }
+
+        // normalize time and RSS with the calibration
+        long calibrationMillis = Long.parseLong(results.getProperty("calibration.millis"));
+        long calibrationRss = Long.parseLong(results.getProperty("calibration.rssKb"));
+        Properties normalized = new Properties();
+        for (String scenario: scenarios) {
+            normalized.setProperty(scenario + ".time", ratio(
+                    Long.parseLong(results.getProperty(scenario + ".millis")), calibrationMillis));
+            normalized.setProperty(scenario + ".bytes", results.getProperty(scenario + ".bytes"));
+            normalized.setProperty(scenario + ".rss", ratio(
+                    Long.parseLong(results.getProperty(scenario + ".rssKb")), calibrationRss));
+        }
+
+        // show results
+        System.out.println();
+        System.out.println(String.format("  %-12s %10s %12s %10s %8s %8s",
+                "scenario", "ms", "bytes", "RSS kB", "time", "rss"));
+        System.out.println(String.format("  %-12s %10s %12s %10s", "calibration",
+                results.getProperty("calibration.millis"),
+                results.getProperty("calibration.bytes"),
+                results.getProperty("calibration.rssKb")));
+        for (String scenario: scenarios) {
+            System.out.println(String.format("  %-12s %10s %12s %10s %8s %8s", scenario,
+                    results.getProperty(scenario + ".millis"),
+                    results.getProperty(scenario + ".bytes"),
+                    results.getProperty(scenario + ".rssKb"),
+                    normalized.getProperty(scenario + ".time"),
+                    normalized.getProperty(scenario + ".rss")));
+        }
+        System.out.println();
+
+        if (updateBaseline) {
+            OutputStream out = new FileOutputStream(baselineFile);
+            try {
+                normalized.store(out, "Performance baseline of DependencyDownloader (PerfSuite)\n" +
+                        "time and rss are relative to the calibration run (raw copy)");
+            } finally {
+                out.close();
+            }
+            System.out.println("Baseline written to " + baselineFile);
+            return;
+        }
+
+        // compare with baseline
+        Properties baseline = new Properties();
+        InputStream in = new FileInputStream(baselineFile);
+        try {
+            baseline.load(in);
+        } finally {
+            in.close();
+        }
+
+        int regressions = 0;
+        for (String scenario: scenarios) {
+            for (String metric: metrics) {
+                String key = scenario + "." + metric;
+                if (baseline.getProperty(key) == null) {
+                    System.out.println("MISSING " + key + " in baseline " + baselineFile);
+                    regressions++;
+                    continue;
+                }
+                double base = Double.parseDouble(baseline.getProperty(key));
+                double value = Double.parseDouble(normalized.getProperty(key));
+                if (base < 0 || value < 0) {
+                    continue;
+                }
+
+                double limit = base * (1 + tolerance);
+                if (metric.equals("time")) {
+                    limit += (double) timeSlack / calibrationMillis;
+                }
+                if (value > limit) {
+                    System.out.println("REGRESSION " + key + ": " + normalized.getProperty(key) +
+                            " > " + String.format(Locale.ROOT, "%.3f", limit) +
+                            " (baseline " + baseline.getProperty(key) + ")");
+                    regressions++;
+                }
+            }
+        }
+        if (regressions > 0) {
+            System.exit(1);
+        }
+        System.out.println("No regression (tolerance " + (int) (tolerance * 100) + "%)");
+    }
+
+    /**
+     * Prepare the state of the work directory and the server for a scenario
+     * @param scenario Name of the scenario
+     * @param work Work directory
+     * @param server Artifact server
+     * @param latency Delay per request in ms
+     * @param bandwidth Bandwidth of the server
+     * @throws IOException
+     */
+    private static void prepare(String scenario, File work, ArtifactServer server,
+                                long latency, long bandwidth) throws IOException {
+        File cache = new File(work, ".dependencyDownloader");
+        File out = new File(work, "out");
+
+        server.setConditions(latency, bandwidth, scenario.equals("cold-faulty") ? 4 : 0);
+        if (scenario.startsWith("cold")) {
+            deleteDir(cache);
+            deleteDir(out);
+        } else if (scenario.equals("warm")) {
+            deleteDir(out);
+        }
+    }
+
+    /**
+     * Install the depend file of the work directory with a new process
+     * @param work Work directory
+     * @param mode Mode of the run ("download-only", "raw-copy" or null to install)
+     * @return Wall time in ms, sent bytes (set by the caller) and peak RSS in kB
+     * @throws Exception
+     */
+    private static long[] run(File work, String mode) throws Exception {
+        List<String> command = new ArrayList<>(Arrays.asList(
+                System.getProperty("java.home") + "/bin/java",
+                "-cp", System.getProperty("java.class.path"),
+                PerfRun.class.getName(), "depend.xml"));
+        if (mode != null) {
+            command.add(mode);
+        }
+
+        File log = new File(work, "run.log");
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.directory(work);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(log);
+
+        long start = System.nanoTime();
+        int exitCode = builder.start().waitFor();
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        String output = new String(Files.readAllBytes(log.toPath()), StandardCharsets.UTF_8);
+        if (exitCode != 0) {
+            throw new IOException("Run failed:\n" + output);
+        }
+
+        long rss = -1;
+        int index = output.lastIndexOf("PEAK_RSS ");
+        if (index >= 0) {
+            rss = Long.parseLong(output.substring(index + 9).trim());
+        }
+        return new long[] {millis, 0, rss};
+    }
+
+    /**
+     * Store the results of a scenario (median time, maximum bytes and RSS)
+     * @param results Results
+     * @param scenario Name of the scenario
+     * @param runs Results of all runs
+     */
+    private static void store(Properties results, String scenario, List<long[]> runs) {
+        List<Long> times = new ArrayList<>();
+        long rss = -1;
+        for (long[] run: runs) {
+            times.add(run[0]);
+            rss = Math.max(rss, run[2]);
+        }
+        Collections.sort(times);
+
+        results.setProperty(scenario + ".millis", Long.toString(times.get(times.size() / 2)));
+        results.setProperty(scenario + ".bytes", Long.toString(runs.get(runs.size() - 1)[1]));
+        results.setProperty(scenario + ".rssKb", Long.toString(rss));
+    }
+
+    /**
+     * Format a value relative to a reference
+     * @param value Value
+     * @param reference Reference value
+     * @return Ratio with 3 decimals or "-1" if a value is unknown
+     */
+    private static String ratio(long value, long reference) {
+        if (value < 0 || reference <= 0) {
+            return "-1";
+        }
+        return String.format(Locale.ROOT, "%.3f", (double) value / reference);
+    }
+
+    /**
+     * Generate the artifacts (deterministic content)
+     * @param directory Output directory
+     * @return Artifacts (type and file)
+     * @throws IOException
+     */
+    private static Map<File, String> generateArtifacts(File directory) throws IOException {
+        Random random = new Random(42);
+        Map<File, String> artifacts = new LinkedHashMap<>();
+
+        // plain file with random content
+        File file = new File(directory, "data.bin");
+        byte[] data = new byte[16*1024*1024];
+        random.nextBytes(data);
+        Files.write(file.toPath(), data);
+        artifacts.put(file, "File");
+
+        // zip with many small files
+        File zip = new File(directory, "small.zip");
+        ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(zip));
+        try {
+            for (int i = 0; i < 1000; ++i) {
+                zipOut.putNextEntry(new ZipEntry("small/dir" + i / 100 + "/file" + i + ".txt"));
+                zipOut.write(text(random, 4096));
+                zipOut.closeEntry();
+            }
+        } finally {
+            zipOut.close();
+        }
+        artifacts.put(zip, "Zip");
+
+        // tar with medium files
+        File tar = new File(directory, "medium.tar");
+        OutputStream tarOut = new BufferedOutputStream(new FileOutputStream(tar));
+        try {
+            writeTar(tarOut, random, "medium/", 200, 64*1024);
+        } finally {
+            tarOut.close();
+        }
+        artifacts.put(tar, "Tar");
+
+        // tar.gz with small files
+        File tarGz = new File(directory, "tree.tar.gz");
+        OutputStream tarGzOut = new GZIPOutputStream(new FileOutputStream(tarGz));
+        try {
+            writeTar(tarGzOut, random, "tree/", 2000, 2048);
+        } finally {
+            tarGzOut.close();
+        }
+        artifacts.put(tarGz, "TarGz");
+
+        // compressible single file
+        File gzip = new File(directory, "log.txt.gz");
+        OutputStream gzipOut = new GZIPOutputStream(new FileOutputStream(gzip));
+        try {
+            for (int i = 0; i < 256; ++i) {
+                gzipOut.write(text(random, 64*1024));
+            }
+        } finally {
+            gzipOut.close();
+        }
+        artifacts.put(gzip, "GZip");
+
+        return artifacts;
+    }
+
+    /**
+     * Write the depend file for the artifacts (with SHA1 checksums)
+     * @param dependFile Depend file
+     * @param server Server of the artifacts
+     * @param artifacts Artifacts (file and type)
+     * @throws Exception
+     */
+    static void writeDependFile(File dependFile, ArtifactServer server,
+                                Map<File, String> artifacts) throws Exception {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<DependencyDownloader xmlns=\"http://boehmke.net/tools/dependency_downloader/depend\">\n");
+        for (Map.Entry<File, String> artifact: artifacts.entrySet()) {
+            String name = artifact.getKey().getName();
+            String destination = "out/" + (artifact.getValue().equals("File") ||
+                    artifact.getValue().equals("GZip") ? name.replace(".gz", "") : name + "/");
+            xml.append("    <").append(artifact.getValue())
+               .append(" Source=\"").append(server.add(artifact.getKey()))
+               .append("\" Destination=\"").append(destination)
+               .append("\" Sha1=\"").append(sha1(artifact.getKey())).append("\"/>\n");
+        }
+        xml.append("</DependencyDownloader>\n");
+        Files.write(dependFile.toPath(), xml.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Write a TAR stream with generated files
+     * @param out Output stream
+     * @param random Random generator
+     * @param prefix Directory of the files
+     * @param count Amount of files
+     * @param size Size of each file
+     * @throws IOException
+     */
+    static void writeTar(OutputStream out, Random random, String prefix,
+                         int count, int size) throws IOException {
+        for (int i = 0; i < count; ++i) {
+            byte[] content = text(random, size);
+            byte[] header = new byte[512];
+            put(header, 0, prefix + "dir" + i / 100 + "/file" + i + ".txt");
+            put(header, 100, "0000644");
+            put(header, 108, "0000000");
+            put(header, 116, "0000000");
+            put(header, 124, String.format("%011o", content.length));
+            put(header, 136, String.format("%011o", 0));
+            header[156] = '0';
+            put(header, 257, "ustar");
+            put(header, 263, "00");
+
+            // checksum with spaces in the checksum field
+            Arrays.fill(header, 148, 156, (byte) ' ');
+            int checksum = 0;
+            for (byte b: header) {
+                checksum += b & 0xff;
+            }
+            put(header, 148, String.format("%06o", checksum));
+            header[154] = 0;
+
+            out.write(header);
+            out.write(content);
+            out.write(new byte[(512 - content.length % 512) % 512]);
+        }
+        out.write(new byte[1024]);
+    }
+
+    /**
+     * Put an ASCII string into a header
+     * @param header Header
+     * @param offset Offset of the field
+     * @param value Value of the field
+     */
+    private static void put(byte[] header, int offset, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, header, offset, bytes.length);
+    }
+
+    /**
+     * Create compressible text
+     * @param random Random generator
+     * @param size Size of the text
+     * @return Text bytes
+     */
+    static byte[] text(Random random, int size) {
+        String[] words = {"dependency", "download", "archive", "extract", "cache", "build", "\n"};
+        StringBuilder text = new StringBuilder(size + 16);
+        while (text.length() < size) {
+            text.append(words[random.nextInt(words.length)]).append(' ');
+        }
+        return text.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Calculate the SHA1 of a file
+     * @param file File
+     * @return SHA1 (hex)
+     * @throws Exception
+     */
+    private static String sha1(File file) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA1");
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[64*1024];
+            int size;
+            while ((size = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, size);
+            }
+        } finally {
+            in.close();
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b: digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Delete a directory and all files in it (if it exists)
+     * @param directory Directory to delete
+     */
+    static void deleteDir(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                if (file.isDirectory()) {
+                    deleteDir(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        directory.delete();
+    }
+}
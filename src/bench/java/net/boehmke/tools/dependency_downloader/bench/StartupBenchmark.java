@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Startup benchmark of the jar with and without class data sharing archive
+ *
+ * Every run starts a new JVM in an empty directory with a depend file that
+ * downloads a small file from a local HTTP server. The time from process
+ * start to the first request (time to first download) and to the process
+ * exit is measured.
+ *
+ * Arguments: JAR [JSA] [RUNS]
+ */
+public class StartupBenchmark {
+    /**
+     * Content of the downloaded file
+     */
+    private static final byte[] content = "startup benchmark\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Time of the first request of the current run (System.nanoTime)
+     */
+    private static volatile long firstRequest = 0;
+
+    /**
+     * Entry point of the benchmark
+     * @param args JAR [JSA] [RUNS]
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: StartupBenchmark JAR [JSA] [RUNS]");
+            System.exit(1);
+        }
+        File jar = new File(args[0]).getAbsoluteFile();
+        File jsa = args.length > 1 ? new File(args[1]).getAbsoluteFile() : null;
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        // local server for the downloads
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 16);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (firstRequest == 0) {
+                    firstRequest = System.nanoTime();
+                }
+                exchange.sendResponseHeaders(200, content.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(content);
+                out.close();
+            }
+        });
+        server.start();
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/file.bin";
+
+        try {
+            String java = System.getProperty("java.home") + "/bin/java";
+            List<String> plain = Arrays.asList(java, "-Xshare:auto", "-jar", jar.getPath());
+
+            List<String> shared = null;
+            if (jsa != null && jsa.isFile()) {
+                shared = Arrays.asList(java, "-XX:SharedArchiveFile=" + jsa.getPath(),
+                                       "-Xshare:auto", "-jar", jar.getPath());
+            } else {
+                System.out.println("No class data sharing archive, only the default start is measured");
+            }
+
+            // warm up file system caches
+            run(plain, url);
+            if (shared != null) {
+                run(shared, url);
+            }
+
+            // alternate the variants so both see the same system state
+            List<long[]> plainResults = new ArrayList<>();
+            List<long[]> sharedResults = new ArrayList<>();
+            for (int i = 0; i < runs; ++i) {
+                plainResults.add(run(plain, url));
+                if (shared != null) {
+                    sharedResults.add(run(shared, url));
+                }
+            }
+
+            System.out.println("Runs: " + runs + " (median / min in ms)");
+            System.out.println(String.format("  %-10s %24s %24s", "", "time to first download", "total"));
+            print("default", plainResults);
+            if (shared != null) {
+                print("AppCDS", sharedResults);
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Run the jar once in a new directory
+     * @param command Java command
+     * @param url URL of the downloaded file
+     * @return Time to first download and total time in ns
+     * @throws Exception
+     */
+    private static long[] run(List<String> command, String url) throws Exception {
+        File directory = Files.createTempDirectory("startup").toFile();
+        try {
+            File dependFile = new File(directory, "depend.xml");
+            Writer writer = new OutputStreamWriter(new FileOutputStream(dependFile),
+                                                   StandardCharsets.UTF_8);
+            try {
+                writer.write("<DependencyDownloader xmlns=\"http://boehmke.net/tools/dependency_downloader/depend\">\n" +
+                             "    <File Source=\"" + url + "\" Destination=\"file.bin\"/>\n" +
+                             "</DependencyDownloader>\n");
+            } finally {
+                writer.close();
+            }
+
+            List<String> args = new ArrayList<>(command);
+            args.add(dependFile.getName());
+            ProcessBuilder builder = new ProcessBuilder(args);
+            builder.directory(directory);
+            builder.redirectErrorStream(true);
+            builder.redirectOutput(new File(directory, "output.log"));
+
+            firstRequest = 0;
+            long start = System.nanoTime();
+            Process process = builder.start();
+            int exitCode = process.waitFor();
+            long end = System.nanoTime();
+
+            if (exitCode != 0 || firstRequest == 0 || !new File(directory, "file.bin").isFile()) {
+                throw new IOException("Benchmark run failed:\n" + new String(
+                        Files.readAllBytes(new File(directory, "output.log").toPath()),
+                        StandardCharsets.UTF_8));
+            }
+            return new long[] {firstRequest - start, end - start};
+
+        } finally {
+            deleteDir(directory);
+        }
+    }
+
+    /**
+     * Print the results of a variant
+     * @param name Name of the variant
+     * @param results Results of all runs
+     */
+    private static void print(String name, List<long[]> results) {
+        System.out.println(String.format("  %-10s %24s %24s", name,
+                summary(results, 0), summary(results, 1)));
+    }
+
+    /**
+     * Get median and minimum of a result column
+     * @param results Results of all runs
+     * @param column Column of the results
+     * @return Formatted median and minimum
+     */
+    private static String summary(List<long[]> results, int column) {
+        List<Long> values = new ArrayList<>();
+        for (long[] result: results) {
+            values.add(result[column]);
+        }
+        Collections.sort(values);
+        return String.format("%.1f / %.1f", values.get(values.size()/2) / 1e6, values.get(0) / 1e6);
+    }
+
+    /**
+     * Delete a directory and all files in it
+     * @param directory Directory to delete
+     */
+    private static void deleteDir(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                if (file.isDirectory()) {
+                    deleteDir(file);
+                } else if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+        }
+        if (!directory.delete()) {
+            directory.deleteOnExit();
+        }
+    }
+}
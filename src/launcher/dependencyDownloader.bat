@@ -0,0 +1,14 @@
+@echo off
+rem Starts the DependencyDownloader with the class data sharing archive (if exists)
+
+set DIR=%~dp0
+set JAVA=java
+if defined JAVA_HOME set JAVA=%JAVA_HOME%\bin\java
+
+rem -Xshare:auto falls back to normal class loading if the archive does not
+rem match the JVM or the location of the jar
+if exist "%DIR%DependencyDownloader.jsa" (
+    "%JAVA%" -XX:SharedArchiveFile="%DIR%DependencyDownloader.jsa" -Xshare:auto -jar "%DIR%DependencyDownloader.jar" %*
+) else (
+    "%JAVA%" -jar "%DIR%DependencyDownloader.jar" %*
+)
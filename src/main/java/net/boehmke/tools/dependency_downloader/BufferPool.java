@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of byte buffers shared by all I/O paths
+ *
+ * Buffers are sized by the expected amount of data (powers of two between
+ * 8 KB and 1 MB), so small entries do not take large buffers. Direct
+ * buffers are used with file channels (passed without an extra copy), heap
+ * buffers with streams (read and written with their array, a direct buffer
+ * would be copied into an array by the stream).
+ * Released buffers are kept up to a total size, more buffers are allocated
+ * if needed and left to the garbage collector on release.
+ */
+public final class BufferPool {
+    /**
+     * Smallest buffer size (2^13 = 8 KB)
+     */
+    private static final int minShift = 13;
+
+    /**
+     * Largest buffer size (2^20 = 1 MB)
+     */
+    private static final int maxShift = 20;
+
+    /**
+     * Maximum total size of the kept free buffers
+     */
+    private static final long maxPooled = 16*1024*1024;
+
+    /**
+     * Free direct buffers by size class
+     */
+    private static final List<Queue<ByteBuffer>> free = createQueues();
+
+    /**
+     * Free heap buffers by size class
+     */
+    private static final List<Queue<ByteBuffer>> freeHeap = createQueues();
+
+    /**
+     * Total size of the free buffers
+     */
+    private static final AtomicLong pooled = new AtomicLong();
+
+    /**
+     * Amount of allocated buffers
+     */
+    private static final AtomicLong allocated = new AtomicLong();
+
+    /**
+     * Amount of reused buffers
+     */
+    private static final AtomicLong reused = new AtomicLong();
+
+    /**
+     * No instances
+     */
+    private BufferPool() {
+    }
+
+    /**
+     * Get a cleared direct buffer from the pool (for channels)
+     * @param sizeHint Expected amount of data (negative if unknown)
+     * @return Buffer (must be released after use)
+     */
+    public static ByteBuffer acquire(long sizeHint) {
+        return acquire(sizeHint, true);
+    }
+
+    /**
+     * Get a cleared heap buffer from the pool (for streams, see ByteBuffer.array)
+     * @param sizeHint Expected amount of data (negative if unknown)
+     * @return Buffer (must be released after use)
+     */
+    public static ByteBuffer acquireHeap(long sizeHint) {
+        return acquire(sizeHint, false);
+    }
+
+    /**
+     * Get a cleared buffer from the pool
+     * @param sizeHint Expected amount of data (negative if unknown)
+     * @param direct True for a direct buffer, false for a heap buffer
+     * @return Buffer (must be released after use)
+     */
+    private static ByteBuffer acquire(long sizeHint, boolean direct) {
+        int shift = getShift(sizeHint);
+        ByteBuffer buffer = (direct ? free : freeHeap).get(shift - minShift).poll();
+        if (buffer != null) {
+            pooled.addAndGet(-buffer.capacity());
+            reused.incrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+
+        allocated.incrementAndGet();
+        return direct ? ByteBuffer.allocateDirect(1 << shift) : ByteBuffer.allocate(1 << shift);
+    }
+
+    /**
+     * Return a buffer to the pool
+     * @param buffer Buffer of acquire (may be null)
+     */
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int shift = Integer.numberOfTrailingZeros(buffer.capacity());
+        if (buffer.capacity() != 1 << shift || shift < minShift || shift > maxShift ||
+                (!buffer.isDirect() && (!buffer.hasArray() || buffer.arrayOffset() != 0))) {
+            return;
+        }
+
+        // keep the buffer if the pool is not full
+        if (pooled.addAndGet(buffer.capacity()) <= maxPooled) {
+            (buffer.isDirect() ? free : freeHeap).get(shift - minShift).offer(buffer);
+        } else {
+            pooled.addAndGet(-buffer.capacity());
+        }
+    }
+
+    /**
+     * Copy an exact amount of data between streams with a pooled heap buffer
+     * @param in Source stream
+     * @param out Destination stream
+     * @param length Amount of bytes to copy
+     * @return Amount of copied bytes (lower than length if the source ended)
+     * @throws IOException
+     */
+    public static long copy(InputStream in, OutputStream out, long length)
+            throws IOException {
+        return copy(in, out, length, length);
+    }
+
+    /**
+     * Copy all data of a stream with a pooled heap buffer
+     * @param in Source stream
+     * @param out Destination stream
+     * @param sizeHint Expected amount of data (negative if unknown)
+     * @return Amount of copied bytes
+     * @throws IOException
+     */
+    public static long copyAll(InputStream in, OutputStream out, long sizeHint)
+            throws IOException {
+        return copy(in, out, -1, sizeHint);
+    }
+
+    /**
+     * Copy data between streams with a pooled heap buffer
+     * @param in Source stream
+     * @param out Destination stream
+     * @param length Amount of bytes to copy (negative to copy until the end of the source)
+     * @param sizeHint Expected amount of data (negative if unknown)
+     * @return Amount of copied bytes
+     * @throws IOException
+     */
+    private static long copy(InputStream in, OutputStream out,
+                             long length, long sizeHint) throws IOException {
+        ByteBuffer buffer = acquireHeap(sizeHint);
+        try {
+            byte[] data = buffer.array();
+            long copied = 0;
+            while (length < 0 || copied < length) {
+                int size = in.read(data, 0,
+                        (int) (length < 0 ? data.length : Math.min(data.length, length - copied)));
+                if (size == -1) {
+                    break;
+                }
+                out.write(data, 0, size);
+                copied += size;
+            }
+            return copied;
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * @return Amount of allocated buffers
+     */
+    public static long getAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * @return Amount of buffers that were reused from the pool
+     */
+    public static long getReused() {
+        return reused.get();
+    }
+
+    /**
+     * Get the size class of a size hint
+     * @param sizeHint Expected amount of data (negative if unknown)
+     * @return Power of two of the buffer size
+     */
+    private static int getShift(long sizeHint) {
+        // unknown size -> medium buffer
+        if (sizeHint < 0) {
+            return 16;
+        }
+        if (sizeHint <= 1 << minShift) {
+            return minShift;
+        }
+        if (sizeHint >= 1 << maxShift) {
+            return maxShift;
+        }
+        return 64 - Long.numberOfLeadingZeros(sizeHint - 1);
+    }
+
+    /**
+     * Create the queues of the free buffers
+     * @return Queue per size class
+     */
+    private static List<Queue<ByteBuffer>> createQueues() {
+        List<Queue<ByteBuffer>> queues = new ArrayList<>();
+        for (int shift = minShift; shift <= maxShift; ++shift) {
+            queues.add(new ConcurrentLinkedQueue<ByteBuffer>());
+        }
+        return queues;
+    }
+}
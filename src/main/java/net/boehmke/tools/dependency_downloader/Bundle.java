@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Offline bundle with downloaded files
+ *
+ * A bundle is a single file with an index at its head followed by the file
+ * contents. Each file is stored at an offset aligned to 4KB.
+ *
+ * Layout (big endian):
+ * <pre>
+ *   "DDBUNDLE"         magic (8 bytes)
+ *   int version        format version (1)
+ *   int count          amount of entries
+ *   long dataStart     end of the index (start of the first file)
+ *   count * entry:
+ *     short length + UTF-8 source URL
+ *     40 bytes         SHA1 of the content (hex)
+ *     long offset      start of the content
+ *     long size        size of the content
+ * </pre>
+ *
+ * The index is read from a memory mapping and the files are read with
+ * positional reads, so opening a bundle does not depend on its size.
+ */
+public class Bundle implements Closeable {
+    /**
+     * Magic at the start of every bundle
+     */
+    private static final byte[] magic = "DDBUNDLE".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Version of the bundle format
+     */
+    private static final int version = 1;
+
+    /**
+     * Size of the fixed header part
+     */
+    private static final int headerSize = 8 + 4 + 4 + 8;
+
+    /**
+     * Alignment of the file contents
+     */
+    private static final long alignment = 4096;
+
+    /**
+     * File of the bundle
+     */
+    public static class Entry {
+        /**
+         * Source URL of the file
+         */
+        private final String source;
+        /**
+         * SHA1 of the file content
+         */
+        private final String sha1;
+        /**
+         * Offset of the content in the bundle
+         */
+        private final long offset;
+        /**
+         * Size of the content
+         */
+        private final long size;
+
+        /**
+         * Create the entry
+         * @param source Source URL of the file
+         * @param sha1 SHA1 of the file content
+         * @param offset Offset of the content in the bundle
+         * @param size Size of the content
+         */
+        private Entry(String source, String sha1, long offset, long size) {
+            this.source = source;
+            this.sha1 = sha1;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        /**
+         * @return Source URL of the file
+         */
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * @return SHA1 of the file content
+         */
+        public String getSha1() {
+            return sha1;
+        }
+
+        /**
+         * @return Size of the content
+         */
+        public long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * Channel of the bundle file
+     */
+    private final FileChannel channel;
+
+    /**
+     * Entries of the bundle by source URL
+     */
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * Open the given bundle
+     * @param path Path to the bundle file
+     * @throws IOException
+     */
+    public Bundle(String path) throws IOException {
+        channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        try {
+            // read fixed header
+            ByteBuffer header = ByteBuffer.allocate(headerSize);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) == -1) {
+                    throw new IOException("Invalid bundle file: " + path);
+                }
+            }
+            header.flip();
+
+            byte[] fileMagic = new byte[magic.length];
+            header.get(fileMagic);
+            if (!Arrays.equals(fileMagic, magic) || header.getInt() != version) {
+                throw new IOException("Invalid bundle file: " + path);
+            }
+            int count = header.getInt();
+            long dataStart = header.getLong();
+            if (dataStart > channel.size() || dataStart > Integer.MAX_VALUE) {
+                throw new IOException("Invalid bundle file: " + path);
+            }
+
+            // map and parse index
+            MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, dataStart);
+            index.position(headerSize);
+            for (int i = 0; i < count; ++i) {
+                byte[] source = new byte[index.getShort() & 0xffff];
+                index.get(source);
+                byte[] sha1 = new byte[40];
+                index.get(sha1);
+                Entry entry = new Entry(
+                        new String(source, StandardCharsets.UTF_8),
+                        new String(sha1, StandardCharsets.US_ASCII),
+                        index.getLong(), index.getLong());
+
+                entries.put(entry.source, entry);
+            }
+
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the entry of a source URL
+     * @param source Source URL
+     * @return Entry or null if not in bundle
+     */
+    public Entry getEntry(String source) {
+        return entries.get(source);
+    }
+
+    /**
+     * Get all entries of the bundle
+     * @return Entries of the bundle
+     */
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    /**
+     * Open a stream of the entry content
+     * @param entry Bundle entry
+     * @return Stream of the content
+     */
+    public InputStream openStream(final Entry entry) {
+        return new InputStream() {
+            /**
+             * Current position in the bundle
+             */
+            private long position = entry.offset;
+
+            /**
+             * End of the content
+             */
+            private final long end = entry.offset + entry.size;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (position >= end) {
+                    return -1;
+                }
+                len = (int) Math.min(len, end - position);
+                int read = channel.read(ByteBuffer.wrap(b, off, len), position);
+                if (read > 0) {
+                    position += read;
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) {
+                n = Math.max(0, Math.min(n, end - position));
+                position += n;
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return (int) Math.min(Integer.MAX_VALUE, end - position);
+            }
+        };
+    }
+
+    /**
+     * Copy the entry content to a file
+     * @param entry Bundle entry
+     * @param destination Destination file
+     * @throws IOException
+     */
+    public void copyTo(Entry entry, File destination) throws IOException {
+        // replace existing file (never write into a maybe linked file)
+        Files.deleteIfExists(destination.toPath());
+
+        FileChannel out = FileChannel.open(destination.toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+        try {
+            long position = 0;
+            while (position < entry.size) {
+                long size = channel.transferTo(entry.offset + position,
+                                               entry.size - position, out);
+                // nothing left to read -> bundle is truncated
+                if (size <= 0) {
+                    throw new IOException("Bundle file is truncated: " + entry.source);
+                }
+                position += size;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Write a bundle
+     * @param path Path to the bundle file
+     * @param files Files of the bundle by source URL
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static void write(String path, Map<String, String> files)
+            throws IOException, NoSuchAlgorithmException {
+        // calculate index size
+        long dataStart = headerSize;
+        for (String source: files.keySet()) {
+            dataStart += 2 + source.getBytes(StandardCharsets.UTF_8).length + 40 + 8 + 8;
+        }
+        dataStart = align(dataStart);
+
+        // prepare index
+        ByteBuffer index = ByteBuffer.allocate((int) dataStart);
+        index.put(magic);
+        index.putInt(version);
+        index.putInt(files.size());
+        index.putLong(dataStart);
+
+        long offset = dataStart;
+        for (Map.Entry<String, String> file: files.entrySet()) {
+            byte[] source = file.getKey().getBytes(StandardCharsets.UTF_8);
+            if (source.length > 0xffff) {
+                throw new IOException("Source URL too long: " + file.getKey());
+            }
+            long size = new File(file.getValue()).length();
+
+            index.putShort((short) source.length);
+            index.put(source);
+            index.put(Checksum.createSha1(file.getValue()).getBytes(StandardCharsets.US_ASCII));
+            index.putLong(offset);
+            index.putLong(size);
+
+            offset = align(offset + size);
+        }
+        index.rewind();
+
+        // write index and file contents
+        FileChannel out = FileChannel.open(Paths.get(path),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            while (index.hasRemaining()) {
+                out.write(index, index.position());
+            }
+
+            offset = dataStart;
+            for (String file: files.values()) {
+                FileChannel in = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+                try {
+                    long size = in.size();
+                    long position = 0;
+                    while (position < size) {
+                        long transferred = in.transferTo(position, size - position,
+                                out.position(offset + position));
+                        // file was truncated while writing the bundle
+                        if (transferred <= 0) {
+                            throw new IOException("File changed while writing the bundle: " + file);
+                        }
+                        position += transferred;
+                    }
+                    offset = align(offset + size);
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Align an offset to the bundle alignment
+     * @param offset Offset to align
+     * @return Aligned offset
+     */
+    private static long align(long offset) {
+        return (offset + alignment - 1) / alignment * alignment;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Additional storage tier between the local cache and the origin of the
+ * dependencies (e.g. a remote build cache in the LAN)
+ *
+ * Files are addressed by their content digest ("ALGORITHM/HEX", e.g.
+ * "sha1/da39a3ee..."). Loaded files are checked by the installer before
+ * they are used, so a backend does not have to be trusted.
+ */
+public interface CacheBackend {
+    /**
+     * Load a file from the backend
+     * @param key Content digest of the file ("ALGORITHM/HEX")
+     * @param destination Destination file
+     * @return False if the backend does not have the file
+     * @throws IOException
+     */
+    boolean load(String key, File destination) throws IOException;
+
+    /**
+     * Store a checked file in the backend
+     * @param key Content digest of the file ("ALGORITHM/HEX")
+     * @param file File to store
+     * @throws IOException
+     */
+    void store(String key, File file) throws IOException;
+}
@@ -0,0 +1,674 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Read-through caching HTTP server for downloads
+ *
+ * The server accepts requests as HTTP proxy ("GET http://host/path") or as
+ * mirror ("GET /http/host/path"). Files are served from the cache and
+ * downloaded on a miss. Concurrent misses of the same URL are coalesced into
+ * a single download. File contents are sent with FileChannel.transferTo
+ * (zero-copy) and single byte ranges are supported.
+ *
+ * Only URLs of the allowed servers are downloaded (no open proxy). Idle
+ * connections (new or keep-alive) wait in a selector and get a thread only
+ * if a request arrives, so idle clients do not block the handler threads.
+ */
+public class CacheServer {
+    /**
+     * Timeout for idle connections in ms
+     */
+    private static final int idleTimeout = 30000;
+
+    /**
+     * Timeout for reading a started request in ms
+     */
+    private static final int requestTimeout = 10000;
+
+    /**
+     * Maximal amount of idle connections (the oldest one is closed)
+     */
+    private static final int maxIdleConnections = 1024;
+
+    /**
+     * Maximal size of a request header
+     */
+    private static final int maxHeaderSize = 16*1024;
+
+    /**
+     * Downloader for cache misses
+     */
+    private final Downloader downloader;
+
+    /**
+     * Directory of the cached files
+     */
+    private final File directory;
+
+    /**
+     * Running downloads by URL
+     */
+    private final SingleFlight<File> downloads = new SingleFlight<>();
+
+    /**
+     * Listener for the request log
+     */
+    private final DependencyListener listener;
+
+    /**
+     * Allowed URL prefixes and hosts ("*" for all)
+     */
+    private List<String> allowed = new ArrayList<>();
+
+    /**
+     * Connections that wait for the next request (registered by the selector)
+     */
+    private final Queue<Connection> idleConnections = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Selector of the idle connections
+     */
+    private Selector selector;
+
+    /**
+     * Connection of a client
+     */
+    private static class Connection {
+        /**
+         * Channel of the connection
+         */
+        final SocketChannel channel;
+
+        /**
+         * Input stream of the connection (kept for buffered data)
+         */
+        final InputStream in;
+
+        /**
+         * Start of the idle time (System.currentTimeMillis)
+         */
+        long idleSince;
+
+        /**
+         * Create a connection
+         * @param channel Channel of the connection
+         * @throws IOException
+         */
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.in = new BufferedInputStream(channel.socket().getInputStream());
+        }
+    }
+
+    /**
+     * Create the server
+     * @param downloader Downloader for cache misses
+     * @param cachePath Directory of the cached files
+     * @param listener Listener for the request log
+     * @throws IOException
+     */
+    public CacheServer(Downloader downloader, String cachePath,
+                       DependencyListener listener) throws IOException {
+        this.downloader = downloader;
+        this.listener = listener;
+        this.directory = new File(cachePath);
+        Files.createDirectories(directory.toPath());
+    }
+
+    /**
+     * Set the servers that are downloaded from
+     * @param allowed URL prefixes (e.g. "https://example.com/libs/"), host
+     *                names (http and https with default port) or "*" for all
+     */
+    public void setAllowed(List<String> allowed) {
+        this.allowed = new ArrayList<>(allowed);
+    }
+
+    /**
+     * Accept and handle connections until the process is stopped
+     * @param port Port to listen on
+     * @param threads Amount of requests handled in parallel
+     * @throws IOException
+     */
+    public void serve(int port, int threads) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ServerSocketChannel server = ServerSocketChannel.open();
+        selector = Selector.open();
+        try {
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(port), threads);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            listener.taskStarted("Serve cache " + directory + " on port " + port);
+
+            List<Connection> ready = new ArrayList<>();
+            long lastCheck = System.currentTimeMillis();
+            while (true) {
+                selector.select(1000);
+
+                // connections of finished requests wait for the next one
+                Connection connection;
+                while ((connection = idleConnections.poll()) != null) {
+                    register(connection);
+                }
+
+                // new connections and arrived requests
+                for (SelectionKey key: selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        SocketChannel client = server.accept();
+                        if (client != null) {
+                            client.socket().setTcpNoDelay(true);
+                            client.configureBlocking(false);
+                            register(new Connection(client));
+                        }
+                    } else if (key.isReadable()) {
+                        key.cancel();
+                        ready.add((Connection) key.attachment());
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                // handle requests in blocking mode (after deregistration)
+                if (!ready.isEmpty()) {
+                    selector.selectNow();
+                    for (final Connection client: ready) {
+                        client.channel.configureBlocking(true);
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                handleConnection(client);
+                            }
+                        });
+                    }
+                    ready.clear();
+                }
+
+                // close idle connections
+                long now = System.currentTimeMillis();
+                if (now - lastCheck >= 1000) {
+                    lastCheck = now;
+                    for (SelectionKey key: selector.keys()) {
+                        Connection idle = (Connection) key.attachment();
+                        if (idle != null && now - idle.idleSince > idleTimeout) {
+                            close(key);
+                        }
+                    }
+                }
+            }
+        } finally {
+            for (SelectionKey key: selector.keys()) {
+                close(key);
+            }
+            selector.close();
+            server.close();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Register an idle connection at the selector (selector thread only)
+     * @param connection Idle connection
+     */
+    private void register(Connection connection) {
+        // limit idle connections (close the oldest one)
+        if (selector.keys().size() > maxIdleConnections) {
+            SelectionKey oldest = null;
+            for (SelectionKey key: selector.keys()) {
+                Connection idle = (Connection) key.attachment();
+                if (idle != null && key.isValid() && (oldest == null ||
+                        idle.idleSince < ((Connection) oldest.attachment()).idleSince)) {
+                    oldest = key;
+                }
+            }
+            if (oldest != null) {
+                close(oldest);
+            }
+        }
+
+        connection.idleSince = System.currentTimeMillis();
+        try {
+            connection.channel.register(selector, SelectionKey.OP_READ, connection);
+        } catch (ClosedChannelException e) {
+            // closed by the client
+        }
+    }
+
+    /**
+     * Close the connection of a selection key
+     * @param key Selection key
+     */
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Handle the requests of a connection until it is idle
+     * @param connection Connection with an arrived request
+     */
+    private void handleConnection(Connection connection) {
+        boolean idle = false;
+        try {
+            connection.channel.socket().setSoTimeout(requestTimeout);
+
+            // handle requests until no more data is available
+            do {
+                if (!handleRequest(connection.in, connection.channel)) {
+                    return;
+                }
+            } while (connection.in.available() > 0);
+
+            // wait for the next request without a thread (keep-alive)
+            connection.channel.configureBlocking(false);
+            idleConnections.add(connection);
+            idle = true;
+            selector.wakeup();
+
+        } catch (SocketTimeoutException e) {
+            // incomplete request -> close
+        } catch (IOException e) {
+            listener.message("Connection error: " + e.getMessage());
+        } finally {
+            if (!idle) {
+                try {
+                    connection.channel.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Handle a single request
+     * @param in Input stream of the connection
+     * @param client Channel of the connection
+     * @return True if the connection can be used for the next request
+     * @throws IOException
+     */
+    private boolean handleRequest(InputStream in, SocketChannel client) throws IOException {
+        // read request line
+        String requestLine = readLine(in);
+        if (requestLine == null) {
+            return false;
+        }
+        String[] parts = requestLine.split(" ");
+        if (parts.length != 3) {
+            sendError(client, 400, "Bad Request", false);
+            return false;
+        }
+        String method = parts[0];
+        String target = parts[1];
+        boolean keepAlive = parts[2].equals("HTTP/1.1");
+
+        // read headers
+        Map<String, String> headers = new HashMap<>();
+        int headerSize = requestLine.length();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            headerSize += line.length();
+            if (headerSize > maxHeaderSize) {
+                sendError(client, 431, "Request Header Fields Too Large", false);
+                return false;
+            }
+            int split = line.indexOf(':');
+            if (split > 0) {
+                headers.put(line.substring(0, split).trim().toLowerCase(Locale.ENGLISH),
+                            line.substring(split+1).trim());
+            }
+        }
+        if (line == null) {
+            return false;
+        }
+        String connection = headers.get("connection");
+        if (connection != null) {
+            keepAlive = connection.equalsIgnoreCase("keep-alive") ||
+                    (keepAlive && !connection.equalsIgnoreCase("close"));
+        }
+
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            sendError(client, 405, "Method Not Allowed", keepAlive);
+            return keepAlive;
+        }
+
+        // get requested URL (proxy or mirror request)
+        String url = getUrl(target);
+        if (url == null) {
+            sendError(client, 404, "Not Found", keepAlive);
+            return keepAlive;
+        }
+        if (!isAllowed(url, allowed)) {
+            listener.message(method + " " + url + " -> 403 (not allowed)");
+            sendError(client, 403, "Forbidden", keepAlive);
+            return keepAlive;
+        }
+
+        // get file from cache or download it
+        File file;
+        boolean hit;
+        try {
+            file = getCacheFile(url);
+            hit = file.exists();
+            if (!hit) {
+                file = fetch(url, file);
+            }
+        } catch (DownloadException e) {
+            listener.message(method + " " + url + " -> failed: " + e.getMessage());
+            if (e.getResponseCode() >= 400 && e.getResponseCode() < 500) {
+                sendError(client, e.getResponseCode(), "Upstream Error", keepAlive);
+            } else {
+                sendError(client, 502, "Bad Gateway", keepAlive);
+            }
+            return keepAlive;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            listener.message(method + " " + url + " -> failed: " + e.getMessage());
+            sendError(client, 502, "Bad Gateway", keepAlive);
+            return keepAlive;
+        }
+
+        // send file
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            long start = 0;
+            long end = size - 1;
+            int status = 200;
+
+            // handle single byte range
+            long[] range = parseRange(headers.get("range"), size);
+            if (range != null && range.length == 0) {
+                String header = "HTTP/1.1 416 Range Not Satisfiable\r\n" +
+                        "Content-Range: bytes */" + size + "\r\n" +
+                        "Content-Length: 0\r\n\r\n";
+                write(client, header);
+                return keepAlive;
+            } else if (range != null) {
+                start = range[0];
+                end = range[1];
+                status = 206;
+            }
+            long length = end - start + 1;
+
+            listener.message(method + " " + url + " -> " + status +
+                    (hit ? " (hit)" : " (miss)"));
+
+            // send header
+            String header = "HTTP/1.1 " + status + (status == 200 ? " OK" : " Partial Content") + "\r\n" +
+                    "Content-Length: " + length + "\r\n" +
+                    "Content-Type: application/octet-stream\r\n" +
+                    "Accept-Ranges: bytes\r\n" +
+                    (status == 206 ? "Content-Range: bytes " + start + "-" + end + "/" + size + "\r\n" : "") +
+                    (keepAlive ? "" : "Connection: close\r\n") +
+                    "\r\n";
+            write(client, header);
+
+            // send content (zero-copy)
+            if (method.equals("GET")) {
+                long position = start;
+                while (position <= end) {
+                    position += channel.transferTo(position, end - position + 1, client);
+                }
+            }
+        } finally {
+            channel.close();
+        }
+        return keepAlive;
+    }
+
+    /**
+     * Download the URL into the cache (concurrent calls for the same URL wait
+     * for the first download)
+     * @param url Source URL
+     * @param file Cache file
+     * @return Cache file
+     * @throws IOException
+     */
+    private File fetch(final String url, final File file) throws IOException {
+        Callable<File> download = new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                // download into temp file and move it into place
+                File tmpFile = File.createTempFile("serve", ".tmp", directory);
+                try {
+                    downloader.downloadFile(url, tmpFile.getPath());
+                    Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(tmpFile.toPath());
+                }
+                return file;
+            }
+        };
+
+        // start download or join a running one
+        try {
+            return downloads.run(url, download);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Get the cache file of an URL
+     * @param url Source URL
+     * @return Cache file (may not exist)
+     * @throws NoSuchAlgorithmException
+     */
+    private File getCacheFile(String url) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA1");
+        String name = "";
+        for (byte b: digest.digest(url.getBytes(StandardCharsets.UTF_8))) {
+            name += String.format("%02x", b);
+        }
+        return new File(directory, name);
+    }
+
+    /**
+     * Get the requested URL of a request target
+     * @param target Request target (absolute URL or mirror path)
+     * @return Requested URL or null if invalid
+     */
+    static String getUrl(String target) {
+        // proxy request
+        if (target.startsWith("http://") || target.startsWith("https://")) {
+            return target;
+        }
+
+        // mirror request: /scheme/host/path
+        if (target.startsWith("/http/")) {
+            return "http://" + target.substring(6);
+        } else if (target.startsWith("/https/")) {
+            return "https://" + target.substring(7);
+        }
+        return null;
+    }
+
+    /**
+     * Parse a single byte range of a Range header
+     * @param range Value of the Range header (may be null)
+     * @param size Size of the file
+     * @return Range (first and last byte), empty if not satisfiable or null
+     *         if the whole file is sent (no or unsupported range)
+     */
+    static long[] parseRange(String range, long size) {
+        if (range == null || !range.startsWith("bytes=") || range.contains(",")) {
+            return null;
+        }
+        String[] bounds = range.substring(6).split("-", -1);
+        if (bounds.length != 2) {
+            return null;
+        }
+
+        long start;
+        long end = size - 1;
+        try {
+            if (bounds[0].isEmpty()) {
+                // suffix range (last N bytes)
+                start = Math.max(0, size - Long.parseLong(bounds[1]));
+            } else {
+                start = Long.parseLong(bounds[0]);
+                if (!bounds[1].isEmpty()) {
+                    end = Math.min(end, Long.parseLong(bounds[1]));
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (start < 0 || start >= size || start > end) {
+            return new long[0];
+        }
+        return new long[] {start, end};
+    }
+
+    /**
+     * Check if an URL may be downloaded
+     * @param url Requested URL
+     * @param allowed Allowed URL prefixes and hosts ("*" for all)
+     * @return True if the URL is allowed
+     */
+    static boolean isAllowed(String url, List<String> allowed) {
+        URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException e) {
+            return false;
+        }
+        String scheme = uri.getScheme();
+        String host = uri.getHost();
+        if (scheme == null || host == null || uri.getRawUserInfo() != null) {
+            return false;
+        }
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ?
+                "/" : uri.getRawPath();
+
+        // dot segments (also encoded) could leave the allowed path on the server
+        String lowerPath = path.toLowerCase(Locale.ENGLISH);
+        if (!uri.normalize().getRawPath().equals(uri.getRawPath()) ||
+                lowerPath.contains("%2e") || lowerPath.contains("%2f") ||
+                lowerPath.contains("%5c")) {
+            return false;
+        }
+
+        for (String entry: allowed) {
+            if (entry.equals("*")) {
+                return true;
+            }
+
+            // host name -> default port of http and https
+            if (!entry.contains("://")) {
+                if (host.equalsIgnoreCase(entry) &&
+                        getPort(uri) == ("https".equalsIgnoreCase(scheme) ? 443 : 80)) {
+                    return true;
+                }
+                continue;
+            }
+
+            // URL prefix -> same server and path below the prefix
+            URI prefix;
+            try {
+                prefix = new URI(entry);
+            } catch (URISyntaxException e) {
+                continue;
+            }
+            String prefixPath = prefix.getRawPath() == null || prefix.getRawPath().isEmpty() ?
+                    "/" : prefix.getRawPath();
+            if (scheme.equalsIgnoreCase(prefix.getScheme()) &&
+                    host.equalsIgnoreCase(prefix.getHost()) &&
+                    getPort(uri) == getPort(prefix) &&
+                    (path.equals(prefixPath) || path.startsWith(
+                            prefixPath.endsWith("/") ? prefixPath : prefixPath + "/"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the port of an URI
+     * @param uri URI
+     * @return Port (default port of the scheme if not set)
+     */
+    private static int getPort(URI uri) {
+        if (uri.getPort() != -1) {
+            return uri.getPort();
+        }
+        return "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+    }
+
+    /**
+     * Read a header line
+     * @param in Input stream
+     * @return Line without line end or null if stream ended
+     * @throws IOException
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length-1) == '\r') {
+                    line.setLength(length-1);
+                }
+                return line.toString();
+            }
+            if (line.length() > maxHeaderSize) {
+                throw new IOException("Header line too long");
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    /**
+     * Send an error response
+     * @param client Channel of the connection
+     * @param status Status code
+     * @param message Status message
+     * @param keepAlive True if the connection is kept open
+     * @throws IOException
+     */
+    private static void sendError(SocketChannel client, int status, String message,
+                                  boolean keepAlive) throws IOException {
+        write(client, "HTTP/1.1 " + status + " " + message + "\r\n" +
+                "Content-Length: 0\r\n" +
+                (keepAlive ? "" : "Connection: close\r\n") +
+                "\r\n");
+    }
+
+    /**
+     * Write a string to the channel
+     * @param client Channel of the connection
+     * @param data String to write
+     * @throws IOException
+     */
+    private static void write(SocketChannel client, String data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data.getBytes(StandardCharsets.ISO_8859_1));
+        while (buffer.hasRemaining()) {
+            client.write(buffer);
+        }
+    }
+}
@@ -8,9 +8,13 @@
 package net.boehmke.tools.dependency_downloader;
 
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -26,6 +30,18 @@ public class Checksum {
         compareChecksum("MD5", path, checksum);
     }
 
+    /**
+     * Calculate and compare a MD5 checksum for the stream
+     * @param in Stream to check (not closed)
+     * @param checksum Expected checksum
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static void checkMd5(InputStream in, String checksum)
+            throws IOException, NoSuchAlgorithmException {
+        compareHash(calculateChecksum("MD5", in), checksum);
+    }
+
     /**
      * Calculate a MD5 checksum for the file
      * @param path Path to the file
@@ -51,6 +67,30 @@ public class Checksum {
         compareChecksum("SHA1", path, checksum);
     }
 
+    /**
+     * Calculate and compare a SHA1 checksum for the stream
+     * @param in Stream to check (not closed)
+     * @param checksum Expected checksum
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static void checkSha1(InputStream in, String checksum)
+            throws IOException, NoSuchAlgorithmException {
+        compareHash(calculateChecksum("SHA1", in), checksum);
+    }
+
+    /**
+     * Calculate a SHA1 checksum for the stream
+     * @param in Stream to hash (not closed)
+     * @return Hash of the stream content
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static String createSha1(InputStream in)
+            throws IOException, NoSuchAlgorithmException {
+        return calculateChecksum("SHA1", in);
+    }
+
     /**
      * Calculate a SHA1 checksum for the file
      * @param path Path to the file
@@ -75,16 +115,21 @@ public class Checksum {
                                            String checksum)
             throws IOException, NoSuchAlgorithmException {
 
-        System.out.println("  Check " + algorithm + " checksum...");
-
-        // create checksum
-        String newHash = calculateChecksum(algorithm, path);
+        // create and compare checksum
+        compareHash(calculateChecksum(algorithm, path), checksum);
+    }
 
+    /**
+     * Compare a calculated hash with the expected checksum
+     * @param newHash Calculated hash
+     * @param checksum Expected checksum
+     * @throws ChecksumException if the hashes are different
+     */
+    private static void compareHash(String newHash, String checksum)
+            throws ChecksumException {
         // compare hash
-        if (newHash.equals(checksum)) {
-            System.out.println("  Checksum OK!");
-        } else {
-            throw new IOException("Invalid Checksum!\n Expected: " + checksum + "\n Get: " + newHash);
+        if (!newHash.equals(checksum)) {
+            throw new ChecksumException("Invalid Checksum!\n Expected: " + checksum + "\n Get: " + newHash);
         }
     }
 
@@ -98,23 +143,72 @@ public class Checksum {
      */
     private static String calculateChecksum(String algorithm, String path)
             throws IOException, NoSuchAlgorithmException {
-        // get input stream
-        InputStream in =  new FileInputStream(path);
+        // get file channel
+        FileChannel in = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        try {
+            return calculateChecksum(algorithm, in, in.size());
+        } finally {
+            // close file
+            in.close();
+        }
+    }
 
+    /**
+     * Calculate a hash of a stream
+     * @param algorithm Hash algorithm
+     * @param in Stream to hash (not closed)
+     * @return Hash of the stream content
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    private static String calculateChecksum(String algorithm, InputStream in)
+            throws IOException, NoSuchAlgorithmException {
         // get hash creator
         MessageDigest digest = MessageDigest.getInstance(algorithm);
 
-        // prepare buffer
-        byte[] buffer = new byte[1024];
-
-        // read data
-        int size;
-        while ((size = in.read(buffer)) != -1) {
-            digest.update(buffer, 0, size);
+        // get pooled heap buffer (read with its array)
+        ByteBuffer buffer = BufferPool.acquireHeap(-1);
+        try {
+            byte[] data = buffer.array();
+            int size;
+            while ((size = in.read(data)) != -1) {
+                digest.update(data, 0, size);
+            }
+        } finally {
+            BufferPool.release(buffer);
         }
 
-        // close file
-        in.close();
+        // calculate checksum
+        return byteToString(digest.digest());
+    }
+
+    /**
+     * Calculate a hash of a channel
+     * @param algorithm Hash algorithm
+     * @param in Channel to hash (not closed)
+     * @param sizeHint Expected amount of data (negative if unknown)
+     * @return Hash of the channel content
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    private static String calculateChecksum(String algorithm, ReadableByteChannel in,
+                                            long sizeHint)
+            throws IOException, NoSuchAlgorithmException {
+        // get hash creator
+        MessageDigest digest = MessageDigest.getInstance(algorithm);
+
+        // get pooled buffer
+        ByteBuffer buffer = BufferPool.acquire(sizeHint);
+        try {
+            // read data
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
 
         // calculate checksum
         return byteToString(digest.digest());
@@ -0,0 +1,23 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.IOException;
+
+/**
+ * Exception for files with an invalid checksum
+ */
+public class ChecksumException extends IOException {
+    /**
+     * Create new exception
+     * @param msg Message of the exception
+     */
+    public ChecksumException(String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Warm-up of the connections before the downloads
+ *
+ * The host names of all sources are resolved in parallel, so the downloads
+ * find them in the address cache of the JVM. Optionally a HTTPS connection
+ * to each host is opened (TLS handshake) and kept alive for the first
+ * download, later connections resume the TLS session.
+ */
+public class ConnectionWarmup {
+    /**
+     * Downloader instance
+     */
+    private final Downloader downloader;
+
+    /**
+     * Listener for progress
+     */
+    private final DependencyListener listener;
+
+    /**
+     * If true a TLS connection to each HTTPS host is opened
+     */
+    private final boolean tls;
+
+    /**
+     * Resolved addresses by host name
+     */
+    private final Map<String, InetAddress[]> addresses = new ConcurrentHashMap<>();
+
+    /**
+     * Create the warm-up
+     * @param downloader Downloader instance
+     * @param listener Listener for progress
+     * @param tls True to open a TLS connection to each HTTPS host
+     */
+    public ConnectionWarmup(Downloader downloader, DependencyListener listener, boolean tls) {
+        this.downloader = downloader;
+        this.listener = listener;
+        this.tls = tls;
+    }
+
+    /**
+     * Warm up the connections to the hosts of the sources
+     *
+     * Failures are only reported (the download reports them again).
+     * @param sources Source URLs
+     * @param threads Maximum amount of parallel lookups
+     * @param timeout Maximum time to wait in ms
+     * @throws IOException
+     */
+    public void run(Collection<String> sources, int threads, long timeout) throws IOException {
+        // first source of each host (through the mirror if set)
+        Map<String, String> hosts = new LinkedHashMap<>();
+        for (String source: sources) {
+            try {
+                URL url = downloader.getUrl(source);
+                String key = url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+                if (!url.getHost().isEmpty() && !hosts.containsKey(key)) {
+                    hosts.put(key, source);
+                }
+            } catch (IOException e) {
+                // invalid URLs fail in the download
+            }
+        }
+        if (hosts.isEmpty() || !downloader.isDirect() && !tls) {
+            return;
+        }
+        listener.taskStarted("Warm up connections to " + hosts.size() + " hosts");
+
+        // warm up all hosts in parallel
+        List<Callable<String>> tasks = new ArrayList<>();
+        for (final String source: hosts.values()) {
+            tasks.add(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return warmUp(source);
+                }
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+        try {
+            List<Future<String>> results = executor.invokeAll(tasks, timeout, TimeUnit.MILLISECONDS);
+            for (Future<String> result: results) {
+                try {
+                    listener.message(result.get());
+                } catch (CancellationException e) {
+                    listener.message("Warm-up timed out");
+                } catch (ExecutionException e) {
+                    listener.message("Warm-up failed: " + e.getCause());
+                }
+            }
+            listener.stepFinished();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while warming up connections");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Get the resolved addresses of a host
+     * @param host Host name
+     * @return Addresses or null if not resolved
+     */
+    public InetAddress[] getAddresses(String host) {
+        return addresses.get(host);
+    }
+
+    /**
+     * Warm up the connection to the host of a source
+     * @param source Source URL
+     * @return Result for the output
+     * @throws IOException
+     */
+    private String warmUp(String source) throws IOException {
+        URL url = downloader.getUrl(source);
+        String host = url.getHost();
+        StringBuilder result = new StringBuilder(host);
+
+        // resolve host name (a proxy resolves the names itself)
+        if (downloader.isDirect()) {
+            long start = System.nanoTime();
+            InetAddress[] resolved = InetAddress.getAllByName(host);
+            addresses.put(host, resolved);
+            result.append(": resolved ").append(resolved.length).append(" addresses in ")
+                  .append((System.nanoTime() - start) / 1000000).append(" ms");
+        }
+
+        // open and keep a TLS connection
+        if (tls && url.getProtocol().equals("https")) {
+            long start = System.nanoTime();
+            downloader.connect(source);
+            result.append(", TLS connected in ")
+                  .append((System.nanoTime() - start) / 1000000).append(" ms");
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Listener that prints the progress to the console
+ */
+public class ConsoleListener implements DependencyListener {
+    /**
+     * Stream for the output
+     */
+    private final PrintStream out;
+
+    /**
+     * Create the listener for the standard output
+     */
+    public ConsoleListener() {
+        this(System.out);
+    }
+
+    /**
+     * Create the listener
+     * @param out Stream for the output
+     */
+    public ConsoleListener(PrintStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public synchronized void taskStarted(String task) {
+        out.println("=> " + task);
+    }
+
+    @Override
+    public synchronized void message(String message) {
+        out.println("  " + message);
+    }
+
+    @Override
+    public synchronized void downloadProgress(String source, long loaded, long size) {
+        if (size > 0) {
+            out.print("\r  " + loaded*100/size + "%");
+        }
+    }
+
+    @Override
+    public synchronized void downloadRetry(String source, int attempt, int retries,
+                                           long delay, IOException error) {
+        out.println("\r  Download failed: " + error.getMessage());
+        out.println("  Retry " + attempt + "/" + retries + " in " + delay + " ms...");
+    }
+
+    @Override
+    public synchronized void downloadFinished(String source, long bytes, long millis) {
+        out.println("\r  Done!");
+    }
+
+    @Override
+    public synchronized void extractProgress(long files, long total) {
+        if (total >= 0) {
+            out.print("\r  " + files + "/" + total);
+        } else {
+            out.print("\r  " + files);
+        }
+    }
+
+    @Override
+    public synchronized void stepFinished() {
+        out.println("\r  Done!               ");
+    }
+
+    @Override
+    public synchronized void dependencyFinished(Dependency dependency, long millis) {
+        out.println("");
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Block checksums of a file for delta updates (zsync like)
+ *
+ * The control file is published next to the file ("FILE.ddsync"). A client
+ * with an older version of the file searches the blocks of the new file in
+ * the old one (rolling checksum at every offset) and downloads only the
+ * missing blocks.
+ *
+ * Layout (big endian):
+ * <pre>
+ *   "DDDELTAC"         magic (8 bytes)
+ *   int version        format version (1)
+ *   long length        length of the file
+ *   int blockSize      size of the blocks
+ *   40 bytes           SHA1 of the file (hex)
+ *   length/blockSize * block (only complete blocks):
+ *     int weak         rolling checksum of the block
+ *     20 bytes         SHA1 of the block
+ * </pre>
+ *
+ * The incomplete block at the end of the file is always downloaded.
+ */
+public class DeltaControl {
+    /**
+     * Suffix of the control files
+     */
+    public static final String suffix = ".ddsync";
+
+    /**
+     * Default size of the blocks
+     */
+    public static final int defaultBlockSize = 64*1024;
+
+    /**
+     * Magic at the start of every control file
+     */
+    private static final byte[] magic = "DDDELTAC".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Version of the control file format
+     */
+    private static final int version = 1;
+
+    /**
+     * Length of the file
+     */
+    private final long length;
+
+    /**
+     * Size of the blocks
+     */
+    private final int blockSize;
+
+    /**
+     * SHA1 of the file (hex)
+     */
+    private final String sha1;
+
+    /**
+     * Rolling checksums of the blocks
+     */
+    private final int[] weak;
+
+    /**
+     * SHA1 of the blocks
+     */
+    private final byte[][] strong;
+
+    /**
+     * Create the control data
+     * @param length Length of the file
+     * @param blockSize Size of the blocks
+     * @param sha1 SHA1 of the file (hex)
+     * @param weak Rolling checksums of the blocks
+     * @param strong SHA1 of the blocks
+     */
+    private DeltaControl(long length, int blockSize, String sha1, int[] weak, byte[][] strong) {
+        this.length = length;
+        this.blockSize = blockSize;
+        this.sha1 = sha1;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /**
+     * @return Length of the file
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return Size of the blocks
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return Amount of complete blocks
+     */
+    public int getBlockCount() {
+        return weak.length;
+    }
+
+    /**
+     * @return SHA1 of the file (hex)
+     */
+    public String getSha1() {
+        return sha1;
+    }
+
+    /**
+     * Create the control data of a file
+     * @param file File
+     * @param blockSize Size of the blocks
+     * @return Control data
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static DeltaControl create(File file, int blockSize)
+            throws IOException, NoSuchAlgorithmException {
+        long length = file.length();
+        int count = (int) (length / blockSize);
+        int[] weak = new int[count];
+        byte[][] strong = new byte[count][];
+
+        MessageDigest fileDigest = MessageDigest.getInstance("SHA1");
+        MessageDigest blockDigest = MessageDigest.getInstance("SHA1");
+        byte[] block = new byte[blockSize];
+
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 1024*1024);
+        try {
+            for (int i = 0; i < count; ++i) {
+                readFully(in, block, blockSize);
+                fileDigest.update(block);
+                weak[i] = weakChecksum(block, 0, blockSize);
+                strong[i] = blockDigest.digest(block);
+            }
+
+            // incomplete block at the end
+            int size;
+            while ((size = in.read(block)) != -1) {
+                fileDigest.update(block, 0, size);
+            }
+        } finally {
+            in.close();
+        }
+
+        return new DeltaControl(length, blockSize, toHex(fileDigest.digest()), weak, strong);
+    }
+
+    /**
+     * Read control data
+     * @param file Control file
+     * @return Control data
+     * @throws IOException
+     */
+    public static DeltaControl load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] fileMagic = new byte[magic.length];
+            in.readFully(fileMagic);
+            if (!Arrays.equals(fileMagic, magic) || in.readInt() != version) {
+                throw new IOException("Invalid delta control file: " + file);
+            }
+
+            long length = in.readLong();
+            int blockSize = in.readInt();
+            if (length < 0 || blockSize <= 0 || length / blockSize > Integer.MAX_VALUE) {
+                throw new IOException("Invalid delta control file: " + file);
+            }
+            byte[] sha1 = new byte[40];
+            in.readFully(sha1);
+
+            int count = (int) (length / blockSize);
+            int[] weak = new int[count];
+            byte[][] strong = new byte[count][];
+            for (int i = 0; i < count; ++i) {
+                weak[i] = in.readInt();
+                strong[i] = new byte[20];
+                in.readFully(strong[i]);
+            }
+            return new DeltaControl(length, blockSize,
+                    new String(sha1, StandardCharsets.US_ASCII), weak, strong);
+
+        } catch (EOFException e) {
+            throw new IOException("Incomplete delta control file: " + file);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write the control data
+     * @param file Control file
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        // write into temp file and move it into place
+        File tmpFile = File.createTempFile("delta", ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.write(magic);
+                out.writeInt(version);
+                out.writeLong(length);
+                out.writeInt(blockSize);
+                out.write(sha1.getBytes(StandardCharsets.US_ASCII));
+                for (int i = 0; i < weak.length; ++i) {
+                    out.writeInt(weak[i]);
+                    out.write(strong[i]);
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(tmpFile.toPath(), file.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+    }
+
+    /**
+     * Search the blocks in an older version of the file
+     * @param seed Older version of the file
+     * @return Offset of each block in the seed file (-1 if not found)
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public long[] match(File seed) throws IOException, NoSuchAlgorithmException {
+        long[] offsets = new long[weak.length];
+        Arrays.fill(offsets, -1);
+
+        // blocks by rolling checksum
+        Map<Integer, List<Integer>> blocks = new HashMap<>();
+        for (int i = 0; i < weak.length; ++i) {
+            List<Integer> list = blocks.get(weak[i]);
+            if (list == null) {
+                list = new ArrayList<>(1);
+                blocks.put(weak[i], list);
+            }
+            list.add(i);
+        }
+
+        MessageDigest digest = MessageDigest.getInstance("SHA1");
+        byte[] buffer = new byte[Math.max(4*1024*1024, blockSize*2)];
+        int start = 0;
+        int end = 0;
+        long bufferOffset = 0;
+
+        InputStream in = new FileInputStream(seed);
+        try {
+            boolean eof = false;
+            boolean rolling = false;
+            int a = 0;
+            int b = 0;
+
+            while (true) {
+                // keep a complete block and the next byte in the buffer
+                if (end - start <= blockSize && !eof) {
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    bufferOffset += start;
+                    end -= start;
+                    start = 0;
+                    while (end < buffer.length) {
+                        int size = in.read(buffer, end, buffer.length - end);
+                        if (size == -1) {
+                            eof = true;
+                            break;
+                        }
+                        end += size;
+                    }
+                    continue;
+                }
+                if (end - start < blockSize) {
+                    break;
+                }
+
+                // checksum of the block at the current offset
+                if (!rolling) {
+                    int checksum = weakChecksum(buffer, start, blockSize);
+                    a = checksum & 0xffff;
+                    b = checksum >>> 16;
+                    rolling = true;
+                }
+
+                List<Integer> candidates = blocks.get((b << 16) | a);
+                if (candidates != null) {
+                    digest.update(buffer, start, blockSize);
+                    byte[] hash = digest.digest();
+
+                    boolean found = false;
+                    for (int block: candidates) {
+                        if (offsets[block] == -1 && Arrays.equals(hash, strong[block])) {
+                            offsets[block] = bufferOffset + start;
+                            found = true;
+                        }
+                    }
+                    if (found) {
+                        // continue behind the block
+                        start += blockSize;
+                        rolling = false;
+                        continue;
+                    }
+                }
+
+                // roll checksum one byte further (end of the seed file)
+                if (end - start == blockSize) {
+                    break;
+                }
+                int out = buffer[start] & 0xff;
+                int next = buffer[start + blockSize] & 0xff;
+                a = (a - out + next) & 0xffff;
+                b = (b - blockSize * out + a) & 0xffff;
+                start++;
+            }
+        } finally {
+            in.close();
+        }
+        return offsets;
+    }
+
+    /**
+     * Calculate the rolling checksum of a block (rsync)
+     * @param data Data buffer
+     * @param offset Start of the block
+     * @param size Size of the block
+     * @return Rolling checksum
+     */
+    static int weakChecksum(byte[] data, int offset, int size) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < size; ++i) {
+            int value = data[offset + i] & 0xff;
+            a += value;
+            b += (size - i) * value;
+        }
+        return ((b & 0xffff) << 16) | (a & 0xffff);
+    }
+
+    /**
+     * Read exactly the given amount of bytes
+     * @param in Input stream
+     * @param buffer Buffer
+     * @param size Amount of bytes
+     * @throws IOException
+     */
+    private static void readFully(InputStream in, byte[] buffer, int size) throws IOException {
+        int offset = 0;
+        while (offset < size) {
+            int read = in.read(buffer, offset, size - offset);
+            if (read == -1) {
+                throw new EOFException("File changed while reading");
+            }
+            offset += read;
+        }
+    }
+
+    /**
+     * Convert a byte array to a hex string
+     * @param data Byte array to convert
+     * @return Hex string of byte array
+     */
+    private static String toHex(byte[] data) {
+        StringBuilder string = new StringBuilder();
+        for (byte d: data) {
+            string.append(String.format("%02x", d));
+        }
+        return string.toString();
+    }
+}
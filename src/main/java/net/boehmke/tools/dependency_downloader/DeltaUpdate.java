@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Delta update of a file from an older version (seed)
+ *
+ * The control file ("SOURCE.ddsync", see DeltaControl) is downloaded and
+ * the blocks of the new file are searched in the seed. Found blocks are
+ * copied from the seed and the missing parts are downloaded with HTTP Range
+ * requests. The result is checked with the SHA1 of the control file.
+ */
+public class DeltaUpdate {
+    /**
+     * Suffixes of files in the cache that are not downloaded files
+     */
+    private static final String[] ignoredSuffixes = {
+            VerifyStamp.suffix, DeltaControl.suffix,
+            ".lock", ".tmp", ".gzindex", ".tarindex"
+    };
+
+    /**
+     * Downloader instance
+     */
+    private final Downloader downloader;
+
+    /**
+     * Listener for progress
+     */
+    private final DependencyListener listener;
+
+    /**
+     * Create the delta update
+     * @param downloader Downloader instance
+     * @param listener Listener for progress
+     */
+    public DeltaUpdate(Downloader downloader, DependencyListener listener) {
+        this.downloader = downloader;
+        this.listener = listener;
+    }
+
+    /**
+     * Find the older version of a file in a directory
+     *
+     * A file with the same name is used first. Otherwise the file with the
+     * same extension and the longest common name prefix is used (e.g.
+     * "sdk-1.1.tar.gz" for "sdk-1.2.tar.gz"). The hash of the URL in cache
+     * names is ignored for the comparison.
+     * @param directory Directory with the downloaded files
+     * @param cacheName Cache name of the new file
+     * @return Seed file or null if none found
+     */
+    public static File findSeed(File directory, String cacheName) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return null;
+        }
+
+        String name = Dependency.getBaseName(cacheName);
+        File seed = null;
+        int seedPrefix = 0;
+        for (File file: files) {
+            if (!file.isFile() || file.getName().startsWith(".") || isIgnored(file.getName())) {
+                continue;
+            }
+            if (file.getName().equals(cacheName)) {
+                return file;
+            }
+            String fileName = Dependency.getBaseName(file.getName());
+            if (!getExtension(fileName).equals(getExtension(name))) {
+                continue;
+            }
+
+            int prefix = 0;
+            while (prefix < fileName.length() && prefix < name.length() &&
+                    fileName.charAt(prefix) == name.charAt(prefix)) {
+                prefix++;
+            }
+            if (prefix > seedPrefix ||
+                    prefix == seedPrefix && seed != null && file.lastModified() > seed.lastModified()) {
+                seed = file;
+                seedPrefix = prefix;
+            }
+        }
+        return seed;
+    }
+
+    /**
+     * Create a file from the seed and the missing parts of the source
+     * @param source Source URL of the new file
+     * @param seed Older version of the file
+     * @param target Destination file
+     * @return False if the source has no control file
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public boolean update(String source, File seed, File target)
+            throws IOException, NoSuchAlgorithmException {
+        // get control file
+        DeltaControl control;
+        File controlFile = File.createTempFile("control", ".tmp",
+                target.getAbsoluteFile().getParentFile());
+        try {
+            downloader.downloadFile(source + DeltaControl.suffix, controlFile.getPath());
+            control = DeltaControl.load(controlFile);
+        } catch (DownloadException e) {
+            if (e.getResponseCode() == 404) {
+                listener.message("No delta control file");
+                return false;
+            }
+            throw e;
+        } finally {
+            Files.deleteIfExists(controlFile.toPath());
+        }
+
+        // search blocks in seed
+        listener.message("Search blocks in " + seed.getName());
+        long[] offsets = control.match(seed);
+        int blockSize = control.getBlockSize();
+
+        FileChannel seedChannel = FileChannel.open(seed.toPath(), StandardOpenOption.READ);
+        RandomAccessFile targetFile = new RandomAccessFile(target, "rw");
+        FileChannel out = targetFile.getChannel();
+        try {
+            // blocks are written at their position
+            targetFile.setLength(control.getLength());
+
+            // copy found blocks and collect missing ranges
+            List<long[]> ranges = new ArrayList<>();
+            int found = 0;
+            for (int i = 0; i < offsets.length; ++i) {
+                long position = (long) i * blockSize;
+                if (offsets[i] >= 0) {
+                    seedChannel.position(offsets[i]);
+                    long copied = 0;
+                    while (copied < blockSize) {
+                        long size = out.transferFrom(seedChannel, position + copied, blockSize - copied);
+                        if (size <= 0) {
+                            throw new IOException("Seed file changed while reading");
+                        }
+                        copied += size;
+                    }
+                    found++;
+                } else {
+                    addRange(ranges, position, blockSize);
+                }
+            }
+            long tail = (long) offsets.length * blockSize;
+            if (tail < control.getLength()) {
+                addRange(ranges, tail, control.getLength() - tail);
+            }
+
+            long missing = 0;
+            for (long[] range: ranges) {
+                missing += range[1];
+            }
+            listener.message("Reuse " + found + "/" + offsets.length + " blocks (" +
+                    Downloader.convertSize((long) found * blockSize) + "), download " +
+                    Downloader.convertSize(missing) + " in " + ranges.size() + " ranges");
+
+            // download missing parts
+            long start = System.nanoTime();
+            for (long[] range: ranges) {
+                downloader.downloadRange(source, range[0], range[1], out);
+            }
+            listener.downloadFinished(source, missing, (System.nanoTime() - start) / 1000000);
+
+        } finally {
+            seedChannel.close();
+            targetFile.close();
+        }
+
+        // check result
+        if (!Checksum.createSha1(target.getPath()).equals(control.getSha1())) {
+            throw new IOException("Checksum of delta update is invalid");
+        }
+        return true;
+    }
+
+    /**
+     * Add a missing range (joined with the previous range if adjacent)
+     * @param ranges Missing ranges (offset, length)
+     * @param offset Offset of the range
+     * @param length Length of the range
+     */
+    private static void addRange(List<long[]> ranges, long offset, long length) {
+        if (!ranges.isEmpty()) {
+            long[] last = ranges.get(ranges.size() - 1);
+            if (last[0] + last[1] == offset) {
+                last[1] += length;
+                return;
+            }
+        }
+        ranges.add(new long[] {offset, length});
+    }
+
+    /**
+     * Check if a cache file is not a downloaded file
+     * @param name Name of the file
+     * @return True if the file should be ignored
+     */
+    private static boolean isIgnored(String name) {
+        for (String suffix: ignoredSuffixes) {
+            if (name.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the extension of a file name
+     * @param name Name of the file
+     * @return Extension (after the last dot) or empty string
+     */
+    private static String getExtension(String name) {
+        int index = name.lastIndexOf('.');
+        return index < 0 ? "" : name.substring(index + 1);
+    }
+}
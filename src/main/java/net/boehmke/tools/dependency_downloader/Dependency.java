@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Single entry of a dependency list
+ */
+public class Dependency {
+    /**
+     * Pattern of cache names (hash of the URL and last part of the URL)
+     */
+    private static final Pattern cacheNamePattern = Pattern.compile("[0-9a-f]{8}-(.*)");
+
+    /**
+     * Plain file
+     */
+    public static final String typeFile = "File";
+    /**
+     * ZIP archive
+     */
+    public static final String typeZip = "Zip";
+    /**
+     * GZIP compressed file
+     */
+    public static final String typeGZip = "GZip";
+    /**
+     * TAR archive
+     */
+    public static final String typeTar = "Tar";
+    /**
+     * GZIP compressed TAR archive
+     */
+    public static final String typeTarGz = "TarGz";
+
+    /**
+     * Type of the dependency (element name in the depend file)
+     */
+    private final String type;
+
+    /**
+     * Source URL
+     */
+    private final String source;
+
+    /**
+     * Destination file or directory
+     */
+    private String destination;
+
+    /**
+     * Expected MD5 checksum (empty if not checked)
+     */
+    private String md5 = "";
+
+    /**
+     * Expected SHA1 checksum (empty if not checked)
+     */
+    private String sha1 = "";
+
+    /**
+     * Extracted sub directory of an archive (empty for all)
+     */
+    private String sourceSubDir = "";
+
+    /**
+     * Include globs of an archive (empty for all)
+     */
+    private String include = "";
+
+    /**
+     * Exclude globs of an archive (empty for none)
+     */
+    private String exclude = "";
+
+    /**
+     * Create the dependency
+     * @param type Type of the dependency (File, Zip, GZip, Tar or TarGz)
+     * @param source Source URL
+     * @param destination Destination file or directory
+     */
+    public Dependency(String type, String source, String destination) {
+        this.type = type;
+        this.source = source;
+        this.destination = destination;
+    }
+
+    /**
+     * @return Type of the dependency (File, Zip, GZip, Tar or TarGz)
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * @return Source URL
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return Destination file or directory
+     */
+    public String getDestination() {
+        return destination;
+    }
+
+    /**
+     * @param destination Destination file or directory
+     */
+    public void setDestination(String destination) {
+        this.destination = destination;
+    }
+
+    /**
+     * @return Expected MD5 checksum (empty if not checked)
+     */
+    public String getMd5() {
+        return md5;
+    }
+
+    /**
+     * @param md5 Expected MD5 checksum (empty if not checked)
+     */
+    public void setMd5(String md5) {
+        this.md5 = md5;
+    }
+
+    /**
+     * @return Expected SHA1 checksum (empty if not checked)
+     */
+    public String getSha1() {
+        return sha1;
+    }
+
+    /**
+     * @param sha1 Expected SHA1 checksum (empty if not checked)
+     */
+    public void setSha1(String sha1) {
+        this.sha1 = sha1;
+    }
+
+    /**
+     * @return Extracted sub directory of an archive (empty for all)
+     */
+    public String getSourceSubDir() {
+        return sourceSubDir;
+    }
+
+    /**
+     * @param sourceSubDir Extracted sub directory of an archive (empty for all)
+     */
+    public void setSourceSubDir(String sourceSubDir) {
+        this.sourceSubDir = sourceSubDir;
+    }
+
+    /**
+     * @return Comma separated include globs of an archive (empty for all)
+     */
+    public String getInclude() {
+        return include;
+    }
+
+    /**
+     * @param include Comma separated include globs of an archive (empty for all)
+     */
+    public void setInclude(String include) {
+        this.include = include;
+    }
+
+    /**
+     * @return Comma separated exclude globs of an archive (empty for none)
+     */
+    public String getExclude() {
+        return exclude;
+    }
+
+    /**
+     * @param exclude Comma separated exclude globs of an archive (empty for none)
+     */
+    public void setExclude(String exclude) {
+        this.exclude = exclude;
+    }
+
+    /**
+     * Check if the dependency is an archive with multiple files
+     * @return True for Zip, Tar and TarGz
+     */
+    public boolean isArchive() {
+        return type.equals(typeZip) || type.equals(typeTar) || type.equals(typeTarGz);
+    }
+
+    /**
+     * Get the entry filter of an archive
+     * @return Filter with sub directory and include/exclude patterns
+     */
+    public EntryFilter getFilter() {
+        return new EntryFilter(sourceSubDir, include, exclude);
+    }
+
+    /**
+     * Get the name of the cache file
+     * @return Hash and last part of the source URL (see getCacheName(String))
+     */
+    public String getCacheName() {
+        return getCacheName(source);
+    }
+
+    /**
+     * Get the name of the cache file of a source URL
+     *
+     * The name starts with a hash of the URL, so different URLs with the
+     * same file name (e.g. "a.com/v1/lib.zip" and "b.com/v2/lib.zip") never
+     * share a cache file.
+     * @param source Source URL
+     * @return "HASH-NAME" (first 8 hex digits of the SHA1 of the URL and
+     *         last part of the URL)
+     */
+    public static String getCacheName(String source) {
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA1").digest(source.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // SHA1 is supported by every Java platform
+            throw new IllegalStateException(e);
+        }
+        return String.format("%02x%02x%02x%02x-", hash[0], hash[1], hash[2], hash[3]) +
+                source.substring(source.lastIndexOf('/')+1, source.length());
+    }
+
+    /**
+     * Get the file name of a cache name (without the hash of the URL)
+     * @param cacheName Name of a cache file
+     * @return Last part of the source URL (unchanged if the name has no hash)
+     */
+    public static String getBaseName(String cacheName) {
+        Matcher matcher = cacheNamePattern.matcher(cacheName);
+        return matcher.matches() ? matcher.group(1) : cacheName;
+    }
+
+    /**
+     * Make a relative destination relative to the given directory
+     * @param baseDir Base directory (e.g. directory of the depend file)
+     */
+    public void resolveDestination(File baseDir) {
+        if (!new File(destination).isAbsolute()) {
+            String resolved = new File(baseDir, destination).getPath();
+            // keep trailing slash (marks directory destinations)
+            if (destination.endsWith("/")) {
+                resolved += "/";
+            }
+            destination = resolved;
+        }
+    }
+}
@@ -10,36 +10,22 @@ package net.boehmke.tools.dependency_downloader;
 import net.boehmke.tools.dependency_downloader.cli.Parser;
 
 import net.boehmke.tools.dependency_downloader.cli.ParserException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
-import javax.xml.XMLConstants;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Source;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamSource;
-import javax.xml.validation.Schema;
-import javax.xml.validation.SchemaFactory;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
- * Main class of the Dependency Downloader
+ * Main class of the Dependency Downloader (commandline interface of the
+ * DependencyInstaller)
  */
 public class DependencyDownloader {
-    /**
-     * Location of download cache
-     */
-    private static final String cachePath = ".dependencyDownloader/";
-
     /**
      * The entry point of application.
      *
@@ -53,13 +39,43 @@ public class DependencyDownloader {
         // create commandline parser and add options and parameter
         Parser parser = new Parser();
 
+        parser.addOption("adaptive", null, false, "Adapt the parallel downloads per host to the throughput (up to --threads, Default: 16)");
+        parser.addOption("batch", "b", true, "Handle all depend files matching the glob(s) (e.g. \"**/depend.xml\")");
+        parser.addOption("bundle", null, true, "Read files directly from this offline bundle");
         parser.addOption("clear-cache", null, false, "Removes the cache after extraction");
         parser.addOption("clean", null, false, "Cleanup previous downloaded dependencies");
+        parser.addOption("connect-timeout", null, true, "Connect timeout in seconds (Default: 30)");
+        parser.addOption("delta", null, false, "Update changed files from older versions in the cache (SOURCE.ddsync)");
+        parser.addOption("delta-control", null, false, "Generate the delta control file (FILE.ddsync) of the file");
         parser.addOption("download-only", null, false, "Only download the dependencies to the cache");
+        parser.addOption("export", null, true, "Write all files of the depend file(s) into this offline bundle");
+        parser.addOption("extract-cache", null, true, "Install archives with hard links from this extract cache");
+        parser.addOption("extract-threads", null, true, "Threads that write files of Tar archives (Default: 1)");
         parser.addOption("help", "h", false, "Show this help");
+        parser.addOption("import", null, true, "Copy all files of this offline bundle into the cache");
+        parser.addOption("limit-host-rate", null, true, "Limit download rate per host (e.g. \"example.com=1M\")");
+        parser.addOption("limit-rate", null, true, "Limit total download rate in bytes/s (e.g. 500K, 2M)");
+        parser.addOption("list", null, false, "List the selected entries of the Tar files (from the archive index)");
         parser.addOption("md5", "m", false, "Generate MD5 hash of file");
+        parser.addOption("memory-threshold", null, true, "Keep downloads up to this size in memory (Default: 1M)");
+        parser.addOption("min-speed", null, true, "Retry downloads slower than this rate in bytes/s");
+        parser.addOption("min-speed-time", null, true, "Time in seconds for the min-speed check (Default: 30)");
+        parser.addOption("mirror", null, true, "Download all files through this mirror (e.g. \"http://host:8080\")");
+        parser.addOption("no-warm-up", null, false, "Do not resolve the hosts of all downloads before the first download");
+        parser.addOption("optimistic", null, false, "Extract archives while their checksum is checked (staged until valid)");
+        parser.addOption("paranoid", null, false, "Always rehash cached files (ignore verify stamps)");
+        parser.addOption("partial-zip", null, false, "Download only the selected entries of ZIP files with SourceSubDir/Include/Exclude");
         parser.addOption("proxy", "p", true, "Set path to proxy");
+        parser.addOption("read-timeout", null, true, "Read timeout in seconds (Default: 60)");
+        parser.addOption("remote-cache", null, true, "Load files with checksum from this HTTP cache before the origin (e.g. \"http://cache:5071/cache\")");
+        parser.addOption("remote-cache-read-only", null, false, "Do not store downloaded files in the remote cache");
+        parser.addOption("retries", null, true, "Retries of failed downloads (Default: 3)");
+        parser.addOption("serve", null, true, "Serve the cache as caching HTTP proxy/mirror on this port");
+        parser.addOption("serve-allow", null, true, "URL prefixes or hosts the server downloads from (comma separated, \"*\" for all)");
         parser.addOption("sha1", "s", false, "Generate SHA1 hash of file");
+        parser.addOption("threads", "t", true, "Parallel downloads (Default: 4) or connections in serve mode (Default: 32)");
+        parser.addOption("warm-up-tls", null, false, "Open a TLS connection to each HTTPS host before the first download");
+        parser.addOption("write-buffers", null, true, "Buffers between network and disk per download, 0 to disable (Default: 8)");
 
         parser.addParameter("FILE", "Path to the file (Default: \"depend.xml\")");
 
@@ -67,6 +83,9 @@ public class DependencyDownloader {
             // handle commandline arguments
             parser.handle(args);
 
+            // check the threads for the Tar extraction (used by all modes)
+            getExtractThreads(parser);
+
         } catch (ParserException e) {
             System.err.println("=== ERROR ===");
             System.err.println(e.getMessage());
@@ -83,7 +102,7 @@ public class DependencyDownloader {
             parser.showHelp();
 
         } else {
-            if (parser.isSet("md5") || parser.isSet("sha1")) {
+            if (parser.isSet("md5") || parser.isSet("sha1") || parser.isSet("delta-control")) {
                 // check if source file exist
                 File file = new File(filePath);
                 if (!file.exists()) {
@@ -102,12 +121,116 @@ public class DependencyDownloader {
                             System.out.println("SHA1 Checksum for " + filePath + ":");
                             System.out.println("  " + Checksum.createSha1(filePath));
                         }
+                        if (parser.isSet("delta-control")) {
+                            System.out.println("Delta control file for " + filePath + ":");
+                            DeltaControl.create(file, DeltaControl.defaultBlockSize).save(
+                                    new File(filePath + DeltaControl.suffix));
+                            System.out.println("  " + filePath + DeltaControl.suffix);
+                        }
                     } catch (IOException | NoSuchAlgorithmException e) {
                         System.err.println("=== ERROR ===");
                         System.err.println(e.getMessage());
                     }
                 }
 
+            } else if (parser.isSet("serve") && !parser.isSet("serve-allow")) {
+                // no open proxy
+                System.err.println("[ERR] --serve requires --serve-allow\n");
+                parser.showHelp();
+
+            } else if (parser.isSet("serve")) {
+                // run caching server
+                try {
+                    Downloader downloader = createDownloader(parser, proxy);
+                    downloader.setShowProgress(false);
+
+                    CacheServer server = new CacheServer(downloader,
+                            DependencyInstaller.defaultCachePath + "serve/",
+                            new ConsoleListener());
+                    server.setAllowed(Arrays.asList(
+                            parser.getValue("serve-allow", null).split("\\s*,\\s*")));
+                    server.serve(Integer.parseInt(parser.getValue("serve", null)),
+                            Integer.parseInt(parser.getValue("threads", "32")));
+
+                } catch (IOException | NumberFormatException e) {
+                    System.err.println("=== ERROR ===");
+                    System.err.println(e.getMessage());
+                    e.printStackTrace();
+                }
+
+            } else if (parser.isSet("import")) {
+                // copy bundle into cache
+                try {
+                    createInstaller(parser, proxy).importBundle(parser.getValue("import", null));
+
+                } catch (IOException | NoSuchAlgorithmException | NumberFormatException e) {
+                    System.err.println("=== ERROR ===");
+                    System.err.println(e.getMessage());
+                    e.printStackTrace();
+                }
+
+            } else if (parser.isSet("export")) {
+                // write files of dependency file(s) into bundle
+                try {
+                    List<String> dependFiles;
+                    if (parser.isSet("batch")) {
+                        dependFiles = Manifest.find(parser.getValue("batch", null));
+                    } else {
+                        dependFiles = Collections.singletonList(filePath);
+                    }
+                    createInstaller(parser, proxy).exportBundle(
+                            loadManifests(dependFiles), parser.getValue("export", null));
+
+                } catch (IOException | NoSuchAlgorithmException | SAXException |
+                         ParserConfigurationException | NumberFormatException e) {
+                    System.err.println("=== ERROR ===");
+                    System.err.println(e.getMessage());
+                    e.printStackTrace();
+                }
+
+            } else if (parser.isSet("batch")) {
+                // handle all matching dependency files
+                Bundle bundle = null;
+                try {
+                    if (parser.isSet("bundle")) {
+                        bundle = new Bundle(parser.getValue("bundle", null));
+                    }
+                    DependencyInstaller installer = createInstaller(parser, proxy);
+                    installer.setBundle(bundle);
+
+                    // find and load all dependency files
+                    List<String> dependFiles = Manifest.find(parser.getValue("batch", null));
+                    if (dependFiles.isEmpty()) {
+                        throw new IOException("No dependency file found: " +
+                                parser.getValue("batch", null));
+                    }
+                    List<Manifest> manifests = loadManifests(dependFiles);
+                    System.out.println("");
+
+                    if (parser.isSet("clean")) {
+                        installer.cleanBatch(manifests);
+                    } else if (parser.isSet("list")) {
+                        for (Manifest manifest: manifests) {
+                            installer.list(manifest);
+                        }
+                    } else {
+                        installer.installBatch(manifests);
+                    }
+
+                    // delete cache if requested
+                    if (parser.isSet("clear-cache")) {
+                        installer.clearCache();
+                    }
+
+                } catch (IOException | NoSuchAlgorithmException | SAXException |
+                         ParserConfigurationException | NumberFormatException e) {
+                    System.err.println("=== ERROR ===");
+                    System.err.println(e.getMessage());
+                    e.printStackTrace();
+                } finally {
+                    closeBundle(bundle);
+                }
+
             } else {
                 // check if default dependency file exist
                 File file = new File(filePath);
@@ -118,17 +241,35 @@ public class DependencyDownloader {
                 } else {
 
                     // load dependency file
+                    Bundle bundle = null;
                     try {
-                        handleDependencies(
-                                filePath, proxy,
-                                parser.isSet("clean"),
-                                parser.isSet("download-only"),
-                                parser.isSet("clear-cache"));
+                        if (parser.isSet("bundle")) {
+                            bundle = new Bundle(parser.getValue("bundle", null));
+                        }
+                        DependencyInstaller installer = createInstaller(parser, proxy);
+                        installer.setBundle(bundle);
+
+                        Manifest manifest = Manifest.load(filePath);
+                        if (parser.isSet("clean")) {
+                            installer.clean(manifest);
+                        } else if (parser.isSet("list")) {
+                            installer.list(manifest);
+                        } else {
+                            installer.install(manifest);
+                        }
+
+                        // delete cache if requested
+                        if (parser.isSet("clear-cache")) {
+                            installer.clearCache();
+                        }
 
-                    } catch (IOException | NoSuchAlgorithmException | SAXException | ParserConfigurationException e) {
+                    } catch (IOException | NoSuchAlgorithmException | SAXException |
+                             ParserConfigurationException | NumberFormatException e) {
                         System.err.println("=== ERROR ===");
                         System.err.println(e.getMessage());
                         e.printStackTrace();
+                    } finally {
+                        closeBundle(bundle);
                     }
                 }
             }
@@ -136,243 +277,127 @@ public class DependencyDownloader {
     }
 
     /**
-     * Handle the Dependency list
-     * @param dependFilePath Path to dpend file
+     * Create the downloader with the settings of the commandline
+     * @param parser Commandline parser
      * @param proxy Proxy setting for download
-     * @param clean Remove existing (extracted) dependencies
-     * @param onlyDownload Only download dependencies (no extract)
-     * @param clearCache Clear the cache after download
-     * @throws ParserConfigurationException
-     * @throws SAXException
-     * @throws IOException
-     * @throws NoSuchAlgorithmException
+     * @return Downloader instance
+     * @throws ParserException
+     * @throws NumberFormatException
      */
-    private static void handleDependencies(String dependFilePath, String proxy,
-                                           boolean clean, boolean onlyDownload,
-                                           boolean clearCache)
-            throws ParserConfigurationException, SAXException, IOException,
-                   NoSuchAlgorithmException {
-
-        // create downloader
+    private static Downloader createDownloader(Parser parser, String proxy)
+            throws ParserException, NumberFormatException {
         Downloader downloader = new Downloader(proxy);
 
-        // get node list
-        NodeList nodes = loadDependencyList(dependFilePath).getChildNodes();
-        for (int i = 0; i < nodes.getLength(); i++) {
-            // get node
-            Node node = nodes.item(i);
-
-            // if node is an element handle it
-            if (node.getNodeType() == Node.ELEMENT_NODE) {
-                Element element = (Element) node;
-
-                // cleanup
-                if (clean) {
-                    deleteDependency(element);
-
-                // download & extract
-                } else {
-                    System.out.println("=> Handle " + element.getTagName() +
-                            " file: " + element.getAttribute("Source"));
-
-                    // download and/or check file
-                    String filePath = downloadCheckDependency(element, downloader);
-
-                    // extract if allowed
-                    if (!onlyDownload) {
-                        extractDependency(element, filePath);
-                    }
-                }
-            }
+        // set timeouts and retries
+        downloader.setTimeouts(
+                Integer.parseInt(parser.getValue("connect-timeout", "30"))*1000,
+                Integer.parseInt(parser.getValue("read-timeout", "60"))*1000);
+        downloader.setRetries(Integer.parseInt(parser.getValue("retries", "3")));
+        downloader.setMirror(parser.getValue("mirror", null));
+        downloader.setWriteBuffers(Integer.parseInt(parser.getValue("write-buffers", "8")));
+        if (parser.isSet("adaptive")) {
+            downloader.setAdaptiveConcurrency(2,
+                    Integer.parseInt(parser.getValue("threads", "16")));
         }
 
-        // delete cache if requested
-        if (clearCache) {
-            deleteDir(cachePath);
+        // enable stall detection if requested
+        if (parser.isSet("min-speed")) {
+            downloader.setStallDetection(
+                    RateLimiter.parseRate(parser.getValue("min-speed", null)),
+                    Integer.parseInt(parser.getValue("min-speed-time", "30"))*1000);
         }
-
+        return downloader;
     }
 
     /**
-     * Load and validate the dependency list
-     * @param path Path to the depend file
-     * @return Root element of the file
-     * @throws ParserConfigurationException
-     * @throws SAXException
+     * Create the installer with the settings of the commandline
+     * @param parser Commandline parser
+     * @param proxy Proxy setting for download
+     * @return Installer instance
+     * @throws ParserException
+     * @throws NumberFormatException
      * @throws IOException
      */
-    private static Element loadDependencyList(String path)
-            throws ParserConfigurationException, SAXException, IOException {
-
-        // load XSD file
-        SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-        Source schemaSource = new StreamSource(
-                DependencyDownloader.class.getResourceAsStream("/depend.xsd"));
-        Schema schema = schemaFactory.newSchema(schemaSource);
-
-        // get XML factory and doc builder
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        factory.setNamespaceAware(true);
-        DocumentBuilder docBuilder = factory.newDocumentBuilder();
-
-        // parse document
-        Document doc = docBuilder.parse(path);
-
-        // validate schema
-        schema.newValidator().validate(new DOMSource(doc));
-
-        // get root element
-        return doc.getDocumentElement();
+    private static DependencyInstaller createInstaller(Parser parser, String proxy)
+            throws ParserException, NumberFormatException, IOException {
+        Downloader downloader = createDownloader(parser, proxy);
+        DependencyInstaller installer = new DependencyInstaller(downloader, new ConsoleListener());
+
+        installer.setDownloadOnly(parser.isSet("download-only"));
+        installer.setParanoid(parser.isSet("paranoid"));
+        installer.setOptimistic(parser.isSet("optimistic"));
+        installer.setPartialZip(parser.isSet("partial-zip"));
+        installer.setWarmUp(!parser.isSet("no-warm-up"), parser.isSet("warm-up-tls"));
+        installer.setDeltaUpdates(parser.isSet("delta"));
+        if (parser.isSet("remote-cache")) {
+            installer.setRemoteCache(new HttpCacheBackend(parser.getValue("remote-cache", null),
+                    downloader.getProxy(),
+                    Integer.parseInt(parser.getValue("connect-timeout", "30"))*1000,
+                    Integer.parseInt(parser.getValue("read-timeout", "60"))*1000),
+                    !parser.isSet("remote-cache-read-only"));
+        }
+        // a threshold of 0 disables the memory buffer
+        String memoryThreshold = parser.getValue("memory-threshold", "1M");
+        installer.setMemoryThreshold(memoryThreshold.trim().equals("0") ?
+                0 : RateLimiter.parseRate(memoryThreshold));
+        installer.setExtractCache(parser.getValue("extract-cache", null));
+        installer.setThreads(Integer.parseInt(parser.getValue("threads",
+                parser.isSet("adaptive") ? "16" : "4")));
+        installer.setExtractThreads(getExtractThreads(parser));
+        installer.setRateLimits(parser.getValue("limit-rate", null),
+                                parser.getValue("limit-host-rate", null));
+        return installer;
     }
 
     /**
-     * Load the dependency list and clean all destinations
-     * @param element Element of dependency
+     * Get the amount of threads that write the files of Tar archives
+     * @param parser Parser with the commandline arguments
+     * @return Amount of writer threads
+     * @throws ParserException
      */
-    private static void deleteDependency(Element element) {
-        System.out.println("=> Remove " + element.getAttribute("Destination"));
-
-        // delete destination
+    private static int getExtractThreads(Parser parser) throws ParserException {
+        String extractThreads = parser.getValue("extract-threads", "1");
+        int threads;
         try {
-            deleteDir(element.getAttribute("Destination"));
-        } catch (IOException e) {
-            System.out.println("  Already removed!");
+            threads = Integer.parseInt(extractThreads);
+        } catch (NumberFormatException e) {
+            threads = 0;
         }
-    }
-
-    /**
-     * Load the dependency list and clean all destinations
-     * @param element Element of dependency
-     * @param downloader Downloader instance
-     * @return Path to cache file
-     */
-    private static String downloadCheckDependency(Element element, Downloader downloader)
-            throws NoSuchAlgorithmException, IOException {
-        String source = element.getAttribute("Source");
-        String sourceBaseName = source.substring(source.lastIndexOf('/')+1, source.length());
-
-        // get path for cache file
-        String cacheFilePath = cachePath + sourceBaseName;
-
-        // check if file is in cache
-        if (new File(cacheFilePath).exists()) {
-            System.out.println("  -> Found file in cache!");
-            try {
-                // check checksum (if exist)
-                checkChecksum(element, cacheFilePath);
-
-                // file exist and checksum is valid or missing -> use cache
-                return cacheFilePath;
-            } catch (IOException e) {
-                System.out.println("  Checksum of cached file is invalid! Try redownload!");
-            }
+        if (threads < 1) {
+            throw new ParserException("Invalid value for extract-threads: " + extractThreads);
         }
-
-        // download the file
-        downloader.downloadFile(element.getAttribute("Source"), cachePath + "tmp.dat");
-
-        // check checksum (if exist)
-        checkChecksum(element, cachePath + "tmp.dat");
-
-        // copy file to cache
-        Files.copy(new File(cachePath + "tmp.dat").toPath(),
-                   new File(cacheFilePath).toPath());
-
-        // remove tmp file
-        Files.delete(Paths.get(cachePath + "tmp.dat"));
-
-        return cacheFilePath;
+        return threads;
     }
 
     /**
-     * Extract the dependency
-     * @param element Element to extract
-     * @param filePath Path of the cache file
+     * Load all given dependency files
+     * @param files Paths to the depend files
+     * @return Dependency lists
+     * @throws ParserConfigurationException
+     * @throws SAXException
      * @throws IOException
      */
-    private static void extractDependency(Element element, String filePath)
-            throws IOException {
-        // handle normal files
-        if (element.getTagName().equals("File")) {
-            System.out.println("  Copy plain file: " + filePath);
-
-            // copy the file
-            Files.copy(new File(filePath).toPath(),
-                       new File(element.getAttribute("Destination")).toPath());
-
-            System.out.println("");
-
-            // handle ZIP files
-        } else if (element.getTagName().equals("Zip")) {
-            System.out.println("  Extract zip file: " + filePath);
-
-            // decompress file
-            Zip.decompress(filePath,
-                           element.getAttribute("Destination"),
-                           element.getAttribute("SourceSubDir"));
-
-            System.out.println("");
-
-            // handle GZIP files
-        } else if (element.getTagName().equals("GZip")) {
-            System.out.println("  Decompress Gzip file: " + filePath);
-
-            // decompress file
-            GZip.decompress(filePath, element.getAttribute("Destination"));
-
-            System.out.println("");
-
-            // handle TAR files
-        } else if (element.getTagName().equals("Tar")) {
-            System.out.println("  Extract Tar file: " + filePath);
-
-            // extract file
-            Tar.extract(filePath,
-                        element.getAttribute("Destination"),
-                        element.getAttribute("SourceSubDir"));
-
-            System.out.println("");
-
-            // handle TAR.GZ files
-        } else if (element.getTagName().equals("TarGz")) {
-            System.out.println("  Decompress TarGz file: " + filePath);
-
-            // decompress file
-            GZip.decompress(filePath, cachePath + "tmp.dat");
-
-            System.out.println("  Extract TarGz file: " + filePath);
-
-            // extract file
-            Tar.extract(cachePath + "tmp.dat",
-                        element.getAttribute("Destination"),
-                        element.getAttribute("SourceSubDir"));
-
-            // remove tmp file
-            Files.delete(Paths.get(cachePath + "tmp.dat"));
-
-            System.out.println("");
-        } else {
-            System.err.println("Unknown file type: " + element.getNodeName());
+    private static List<Manifest> loadManifests(List<String> files)
+            throws ParserConfigurationException, SAXException, IOException {
+        List<Manifest> manifests = new ArrayList<>();
+        for (String file: files) {
+            System.out.println("=> Load " + file);
+            manifests.add(Manifest.load(file));
         }
+        return manifests;
     }
 
     /**
-     * Check if the element has a Checksum and check it if exist
-     * @param element Dom element (maybe) with checksum
-     * @param path Path to the downloaded file
-     * @throws IOException
-     * @throws NoSuchAlgorithmException
+     * Close the bundle (if open)
+     * @param bundle Bundle or null
      */
-    private static void checkChecksum(Element element, String path)
-            throws IOException, NoSuchAlgorithmException {
-
-        // check MD5
-        if (element.hasAttribute("Md5")) {
-            Checksum.checkMd5(path, element.getAttribute("Md5"));
-        }
-        // check SHA1
-        if (element.hasAttribute("Sha1")) {
-            Checksum.checkSha1(path, element.getAttribute("Sha1"));
+    private static void closeBundle(Bundle bundle) {
+        if (bundle != null) {
+            try {
+                bundle.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close bundle: " + e.getMessage());
+            }
         }
     }
 
@@ -392,24 +417,4 @@ public class DependencyDownloader {
             return "";
         }
     }
-
-    /**
-     * Delete directory and all files in it
-     * @param path Path to the directory
-     */
-    private static void deleteDir(String path) throws IOException {
-        Files.walkFileTree(Paths.get(path), new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                Files.delete(file);
-                return FileVisitResult.CONTINUE;
-            }
-
-            @Override
-            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-                Files.delete(dir);
-                return FileVisitResult.CONTINUE;
-            }
-        });
-    }
 }
@@ -0,0 +1,1971 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Downloads, checks and installs the dependencies of depend files
+ *
+ * An installer can be used for multiple depend files (e.g. by a build tool
+ * in the same process). All progress is reported to the listener.
+ */
+public class DependencyInstaller {
+    /**
+     * Default location of the download cache
+     */
+    public static final String defaultCachePath = ".dependencyDownloader/";
+
+    /**
+     * Running downloads by cache file (shared by all installers of the process)
+     */
+    private static final SingleFlight<String> downloads = new SingleFlight<>();
+
+    /**
+     * Running unchecked downloads of optimistic installs by cache file
+     * (shared by all installers of the process)
+     */
+    private static final SingleFlight<String> uncheckedDownloads = new SingleFlight<>();
+
+    /**
+     * Locks of the cache files in this process (a file lock can only be
+     * held once per process)
+     */
+    private static final ConcurrentMap<String, Object> cacheLocks = new ConcurrentHashMap<>();
+
+    /**
+     * Downloader instance
+     */
+    private final Downloader downloader;
+
+    /**
+     * Listener for progress and metrics
+     */
+    private final DependencyListener listener;
+
+    /**
+     * Location of the download cache (with trailing slash)
+     */
+    private String cachePath = defaultCachePath;
+
+    /**
+     * Extract cache (null to extract directly)
+     */
+    private ExtractCache extractCache = null;
+
+    /**
+     * Offline bundle (null if not used)
+     */
+    private Bundle bundle = null;
+
+    /**
+     * If true the dependencies are only downloaded into the cache
+     */
+    private boolean downloadOnly = false;
+
+    /**
+     * Remote cache between the local cache and the origin (null if disabled)
+     */
+    private CacheBackend remoteCache = null;
+
+    /**
+     * If true files loaded from the origin are stored in the remote cache
+     */
+    private boolean remoteCachePush = true;
+
+    /**
+     * Downloads up to this size are checked and installed from memory
+     */
+    private long memoryThreshold = 1024*1024;
+
+    /**
+     * Maximum total size of the downloads in memory
+     */
+    private static final long memoryBudget = 64*1024*1024;
+
+    /**
+     * Content of small downloads that are not installed yet (cache file -> data)
+     */
+    private final Map<String, byte[]> memoryFiles = new HashMap<>();
+
+    /**
+     * Total size of the content in memoryFiles
+     */
+    private long memoryUsed = 0;
+
+    /**
+     * If true changed files are created from older versions in the cache
+     */
+    private boolean deltaUpdates = false;
+
+    /**
+     * If true the hosts of the downloads are resolved before the first download
+     */
+    private boolean warmUp = true;
+
+    /**
+     * If true a TLS connection to each HTTPS host is opened before the first download
+     */
+    private boolean warmUpTls = false;
+
+    /**
+     * Maximum time of the connection warm-up in ms
+     */
+    private static final long warmUpTimeout = 10000;
+
+    /**
+     * If true archives are extracted into a staging directory while their
+     * checksum is checked
+     */
+    private boolean optimistic = false;
+
+    /**
+     * If true cached files are always hashed again (verify stamps are ignored)
+     */
+    private boolean paranoid = false;
+
+    /**
+     * True to download only the selected entries of ZIP files
+     */
+    private boolean partialZip = false;
+
+    /**
+     * Amount of parallel downloads in batch mode
+     */
+    private int threads = 4;
+
+    /**
+     * Amount of threads that write the files of Tar archives
+     */
+    private int extractThreads = 1;
+
+    /**
+     * Total download rate limit that overrides the depend files (null if not set)
+     */
+    private String rateLimit = null;
+
+    /**
+     * Download rate limits per host that override the depend files (null if not set)
+     */
+    private String hostRateLimit = null;
+
+    /**
+     * Create the installer
+     * @param downloader Downloader instance
+     * @param listener Listener for progress and metrics
+     */
+    public DependencyInstaller(Downloader downloader, DependencyListener listener) {
+        this.downloader = downloader;
+        this.listener = listener;
+        downloader.setListener(listener);
+    }
+
+    /**
+     * Set the location of the download cache
+     * @param cachePath Path to the cache directory
+     */
+    public void setCachePath(String cachePath) {
+        if (!cachePath.endsWith("/")) {
+            cachePath += "/";
+        }
+        this.cachePath = cachePath;
+    }
+
+    /**
+     * Install archives from an extract cache
+     * @param path Path to the extract cache or null to extract directly
+     * @throws IOException
+     */
+    public void setExtractCache(String path) throws IOException {
+        if (path != null) {
+            extractCache = new ExtractCache(path);
+        } else {
+            extractCache = null;
+        }
+    }
+
+    /**
+     * Read files from an offline bundle (if it contains them)
+     * @param bundle Open bundle or null (not closed by the installer)
+     */
+    public void setBundle(Bundle bundle) {
+        this.bundle = bundle;
+    }
+
+    /**
+     * Only download the dependencies into the cache (no installation)
+     * @param downloadOnly True to skip the installation
+     */
+    public void setDownloadOnly(boolean downloadOnly) {
+        this.downloadOnly = downloadOnly;
+    }
+
+    /**
+     * Set a remote cache that is asked before the origin of a dependency
+     *
+     * Only dependencies with a checksum can be loaded from the remote cache
+     * (the checksum is the key of the file).
+     * @param remoteCache Remote cache or null to disable
+     * @param push If true files loaded from the origin are stored in the remote cache
+     */
+    public void setRemoteCache(CacheBackend remoteCache, boolean push) {
+        this.remoteCache = remoteCache;
+        this.remoteCachePush = push;
+    }
+
+    /**
+     * Set the size up to which downloads are kept in memory until they are
+     * checked and installed (written only once into the cache)
+     * @param memoryThreshold Size in bytes (0 to always use files)
+     */
+    public void setMemoryThreshold(long memoryThreshold) {
+        this.memoryThreshold = Math.max(0, memoryThreshold);
+    }
+
+    /**
+     * Set the connection warm-up before the first download
+     *
+     * The hosts of all files that are not in the cache or bundle are
+     * resolved in parallel (and optionally connected with TLS), so the
+     * downloads do not wait for DNS lookups and handshakes one after another.
+     * @param enabled True to resolve the hosts before the first download
+     * @param tls True to open a TLS connection to each HTTPS host too
+     */
+    public void setWarmUp(boolean enabled, boolean tls) {
+        this.warmUp = enabled;
+        this.warmUpTls = tls;
+    }
+
+    /**
+     * Extract archives while their checksum is checked (optimistic extraction)
+     *
+     * The archive is extracted into a staging directory next to the
+     * destination while another thread calculates its checksum. The staged
+     * files are moved to the destination only if the checksum is valid.
+     * Used for archives and GZip files with checksum if no extract cache is set.
+     * @param optimistic True to overlap extraction and checksum check
+     */
+    public void setOptimistic(boolean optimistic) {
+        this.optimistic = optimistic;
+    }
+
+    /**
+     * Create downloads from older versions in the cache if the source has a
+     * delta control file ("SOURCE.ddsync", see DeltaUpdate)
+     * @param deltaUpdates True to enable delta updates
+     */
+    public void setDeltaUpdates(boolean deltaUpdates) {
+        this.deltaUpdates = deltaUpdates;
+    }
+
+    /**
+     * Download only the selected entries of ZIP files (see RemoteZip)
+     *
+     * Used for ZIP files with a sub directory or include/exclude patterns
+     * that are not in the cache if no extract cache is set. The checksum of
+     * the whole file can not be checked, the extracted entries are checked
+     * with the CRC32 of the central directory. The whole file is downloaded
+     * if the server does not support ranges.
+     * @param partialZip True to enable partial downloads of ZIP files
+     */
+    public void setPartialZip(boolean partialZip) {
+        this.partialZip = partialZip;
+    }
+
+    /**
+     * Verify cached files always by their content
+     *
+     * By default the digest of a cached file is only calculated again if the
+     * file was changed since its last successful check (see VerifyStamp).
+     * @param paranoid True to ignore the verify stamps
+     */
+    public void setParanoid(boolean paranoid) {
+        this.paranoid = paranoid;
+    }
+
+    /**
+     * Set the amount of parallel downloads in batch mode
+     * @param threads Amount of parallel downloads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Set the amount of threads that write the files of Tar archives
+     *
+     * With more than one thread small files are created and written by a
+     * pool of writer threads while the archive is read (see Tar).
+     * @param extractThreads Amount of writer threads (1 to write in the reading thread)
+     */
+    public void setExtractThreads(int extractThreads) {
+        this.extractThreads = Math.max(1, extractThreads);
+    }
+
+    /**
+     * Set bandwidth limits that override the limits of the depend files
+     * @param rateLimit Total download rate limit (null to use the depend file setting)
+     * @param hostRateLimit Download rate limits per host (null to use the depend file setting)
+     */
+    public void setRateLimits(String rateLimit, String hostRateLimit) {
+        this.rateLimit = rateLimit;
+        this.hostRateLimit = hostRateLimit;
+    }
+
+    /**
+     * Download and install all dependencies of a depend file
+     * @param manifest Dependency list
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public void install(Manifest manifest) throws IOException, NoSuchAlgorithmException {
+        // set bandwidth limits (overrides replace depend file)
+        applyRateLimits(Collections.singletonList(manifest));
+
+        // resolve the hosts of all downloads in parallel
+        warmUpConnections(manifest.getDependencies(), Collections.<String, String>emptyMap());
+
+        for (Dependency dependency: manifest.getDependencies()) {
+            long start = System.nanoTime();
+            listener.taskStarted("Handle " + dependency.getType() +
+                    " file: " + dependency.getSource());
+
+            // use bundle if it contains the file
+            Bundle.Entry bundleEntry = null;
+            if (bundle != null) {
+                bundleEntry = bundle.getEntry(dependency.getSource());
+            }
+
+            if (bundleEntry != null) {
+                listener.message("-> Found file in bundle!");
+                checkChecksum(dependency, bundleEntry);
+
+                // extract if allowed
+                if (!downloadOnly) {
+                    installDependency(dependency, bundleEntry);
+                }
+
+            } else if (isPartialZip(dependency) && installPartialZip(dependency)) {
+                // only the selected entries were downloaded (no cache file)
+                listener.message("-> Installed selected entries without cache file");
+
+            } else if (isOptimistic(dependency)) {
+                // check the archive while it is extracted
+                installOptimistic(dependency);
+
+            } else {
+                // download and/or check file
+                String filePath = download(dependency);
+
+                // extract if allowed
+                try {
+                    if (!downloadOnly) {
+                        installDependency(dependency, filePath);
+                    }
+                } finally {
+                    releaseMemory(filePath);
+                }
+            }
+            listener.dependencyFinished(dependency, (System.nanoTime() - start) / 1000000);
+        }
+    }
+
+    /**
+     * List the entries of the Tar files of a depend file
+     *
+     * The files are downloaded into the cache (if not cached) and the
+     * entries are read from the archive index. Only the entries selected by
+     * the sub directory and include/exclude patterns are listed.
+     * @param manifest Dependency list
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public void list(Manifest manifest) throws IOException, NoSuchAlgorithmException {
+        for (Dependency dependency: manifest.getDependencies()) {
+            listener.taskStarted("List " + dependency.getType() +
+                    " file: " + dependency.getSource());
+            if (!dependency.getType().equals(Dependency.typeTar)) {
+                listener.message("Only Tar files can be listed");
+                continue;
+            }
+
+            // download and/or check file
+            String filePath = download(dependency);
+            releaseMemory(filePath);
+
+            TarIndex index = loadTarIndex(filePath);
+            EntryFilter filter = dependency.getFilter();
+            int selected = 0;
+            for (TarIndex.Entry entry: index.getEntries()) {
+                if (entry.getType() == 0 && filter.map(entry.getName()) != null) {
+                    listener.message(String.format("%10s  %s",
+                            Downloader.convertSize(entry.getSize()), entry.getName()));
+                    selected++;
+                }
+            }
+            listener.message(selected + " of " + index.getEntries().size() + " entries selected");
+        }
+    }
+
+    /**
+     * Remove all installed dependencies of a depend file
+     * @param manifest Dependency list
+     */
+    public void clean(Manifest manifest) {
+        for (Dependency dependency: manifest.getDependencies()) {
+            deleteDependency(dependency);
+        }
+    }
+
+    /**
+     * Download and install multiple dependency lists in one pass
+     *
+     * All entries are merged, each unique source is downloaded once (in
+     * parallel, largest files first) and installed into all destinations as
+     * soon as it is available. Destinations are relative to the directory of
+     * their depend file.
+     * @param manifests Dependency lists
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public void installBatch(List<Manifest> manifests)
+            throws IOException, NoSuchAlgorithmException {
+        List<Dependency> dependencies = resolveDestinations(manifests);
+
+        // the first depend file with a limit is used if not overridden
+        applyRateLimits(manifests);
+
+        // get unique sources and the entries that use them
+        final Map<String, Dependency> sources = new LinkedHashMap<>();
+        Map<String, List<Dependency>> entries = new HashMap<>();
+        for (Dependency dependency: dependencies) {
+            if (!sources.containsKey(dependency.getSource())) {
+                sources.put(dependency.getSource(), dependency);
+                entries.put(dependency.getSource(), new ArrayList<Dependency>());
+            }
+            entries.get(dependency.getSource()).add(dependency);
+        }
+        listener.taskStarted("Prefetch " + sources.size() + " files for " +
+                dependencies.size() + " entries of " + manifests.size() + " depend files");
+
+        // order the downloads by size (files in bundle or cache first)
+        Map<String, String> available = new HashMap<>();
+        for (Dependency dependency: sources.values()) {
+            if (bundle != null && bundle.getEntry(dependency.getSource()) != null) {
+                available.put(dependency.getSource(), "bundle");
+            } else if (new File(cachePath + dependency.getCacheName()).exists()) {
+                available.put(dependency.getSource(), "cache");
+            }
+        }
+        warmUpConnections(sources.values(), available);
+
+        final DownloadScheduler scheduler = new DownloadScheduler(
+                downloader, new File(cachePath + ".sizes"), listener);
+        List<Dependency> order = scheduler.schedule(sources.values(), available, threads);
+
+        // download all sources in parallel (no progress output)
+        downloader.setShowProgress(false);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CompletionService<String> downloads = new ExecutorCompletionService<>(executor);
+        final Map<String, String> cacheFiles = new ConcurrentHashMap<>();
+        for (final Dependency dependency: order) {
+            downloads.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    // only check files of the bundle
+                    if (bundle != null) {
+                        Bundle.Entry entry = bundle.getEntry(dependency.getSource());
+                        if (entry != null) {
+                            listener.message("Check bundle file " + entry.getSource());
+                            checkChecksum(dependency, entry);
+                            return dependency.getSource();
+                        }
+                    }
+
+                    listener.message("Prefetch " + dependency.getSource());
+                    String cacheFile = download(dependency);
+                    scheduler.record(dependency.getSource(), new File(cacheFile).length());
+                    cacheFiles.put(dependency.getSource(), cacheFile);
+                    return dependency.getSource();
+                }
+            });
+        }
+        executor.shutdown();
+
+        // install the entries of each source while the other downloads continue
+        try {
+            for (int finished = 0; finished < order.size(); ++finished) {
+                String source = downloads.take().get();
+                if (downloadOnly) {
+                    continue;
+                }
+
+                int running = order.size() - finished - 1;
+                try {
+                    for (Dependency dependency: entries.get(source)) {
+                        installPrefetched(dependency, sources.get(source),
+                                cacheFiles.get(source), running);
+                    }
+                } finally {
+                    releaseMemory(cacheFiles.get(source));
+                }
+            }
+
+            // final limits of the adaptive concurrency
+            HostConcurrency concurrency = downloader.getConcurrency();
+            if (concurrency != null) {
+                for (String line: concurrency.getSummary()) {
+                    listener.message(line);
+                }
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for downloads");
+
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof NoSuchAlgorithmException) {
+                throw (NoSuchAlgorithmException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+
+        } catch (IOException | NoSuchAlgorithmException | RuntimeException e) {
+            executor.shutdownNow();
+            throw e;
+
+        } finally {
+            // sizes are only a hint for the next run
+            try {
+                scheduler.save();
+            } catch (IOException e) {
+                listener.message("Failed to store download sizes: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Install an entry of a batch after its source was prefetched
+     * @param dependency Dependency to install
+     * @param prefetched Dependency used for the prefetch of the source
+     * @param cacheFile Path of the cache file (null if the file is in the bundle)
+     * @param running Amount of downloads that are still running
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    private void installPrefetched(Dependency dependency, Dependency prefetched,
+                                   String cacheFile, int running)
+            throws IOException, NoSuchAlgorithmException {
+        long start = System.nanoTime();
+        String source = dependency.getSource();
+        if (running > 0) {
+            listener.taskStarted("Install " + dependency.getType() + " file: " + source +
+                    " (" + running + " downloads pending)");
+        } else {
+            listener.taskStarted("Install " + dependency.getType() + " file: " + source);
+        }
+
+        // entries with other checksums than the prefetched one are checked again
+        boolean check = !dependency.getMd5().equals(prefetched.getMd5()) ||
+                        !dependency.getSha1().equals(prefetched.getSha1());
+
+        if (cacheFile == null) {
+            // file of the bundle
+            Bundle.Entry entry = bundle.getEntry(source);
+            if (check) {
+                checkChecksum(dependency, entry);
+            }
+            installDependency(dependency, entry);
+
+        } else {
+            if (check) {
+                checkCachedChecksum(dependency, cacheFile);
+            }
+            installDependency(dependency, cacheFile);
+        }
+        listener.dependencyFinished(dependency, (System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * Remove all installed dependencies of multiple depend files
+     * @param manifests Dependency lists
+     */
+    public void cleanBatch(List<Manifest> manifests) {
+        for (Dependency dependency: resolveDestinations(manifests)) {
+            deleteDependency(dependency);
+        }
+    }
+
+    /**
+     * Download a dependency into the cache (if not cached) and check it
+     *
+     * Concurrent requests for the same cache file (in this process or in
+     * other processes with the same cache) wait for the first download and
+     * use its result. The cache file name contains a hash of the source URL,
+     * so only requests of the same URL are joined. A joined result is
+     * checked against the checksum of the caller (the first caller may
+     * declare another checksum).
+     * @param dependency Dependency
+     * @return Path to the cache file
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public String download(final Dependency dependency)
+            throws IOException, NoSuchAlgorithmException {
+        // get path for cache file
+        final String cacheFilePath = cachePath + dependency.getCacheName();
+        String key = new File(cacheFilePath).getAbsolutePath();
+
+        if (downloads.isRunning(key)) {
+            listener.message("Wait for running download of " + dependency.getCacheName());
+        }
+        try {
+            final AtomicBoolean first = new AtomicBoolean(false);
+            String filePath = downloads.run(key, new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    first.set(true);
+                    return runLocked(cacheFilePath, new Callable<String>() {
+                        @Override
+                        public String call() throws Exception {
+                            return downloadIntoCache(dependency, cacheFilePath, true);
+                        }
+                    });
+                }
+            });
+
+            // joined download -> check the checksum of this dependency
+            if (!first.get()) {
+                checkCachedChecksum(dependency, filePath);
+            }
+            return filePath;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof NoSuchAlgorithmException) {
+                throw (NoSuchAlgorithmException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Run a call while the cache file is locked for other processes
+     * @param cacheFilePath Path to the cache file
+     * @param call Call to run (e.g. the download into the cache)
+     * @return Result of the call
+     * @throws Exception
+     */
+    private String runLocked(String cacheFilePath, Callable<String> call) throws Exception {
+        Files.createDirectories(Paths.get(cachePath));
+
+        // lock for other threads of this process
+        String key = new File(cacheFilePath).getAbsolutePath();
+        cacheLocks.putIfAbsent(key, new Object());
+        synchronized (cacheLocks.get(key)) {
+            return runFileLocked(cacheFilePath, call);
+        }
+    }
+
+    /**
+     * Run a call while the cache file is locked with a file lock
+     * @param cacheFilePath Path to the cache file
+     * @param call Call to run
+     * @return Result of the call
+     * @throws Exception
+     */
+    private String runFileLocked(String cacheFilePath, Callable<String> call) throws Exception {
+
+        // the lock file is kept (removing it would race with other processes)
+        FileChannel lockChannel = FileChannel.open(Paths.get(cacheFilePath + ".lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            FileLock lock = lockChannel.tryLock();
+            if (lock == null) {
+                listener.message("Wait for download of another process...");
+                lock = lockChannel.lock();
+            }
+            try {
+                return call.call();
+            } finally {
+                lock.release();
+            }
+        } finally {
+            lockChannel.close();
+        }
+    }
+
+    /**
+     * Download a dependency into the cache (if not cached) and check it
+     *
+     * Without verification large files are not checked and get no verify
+     * stamp (the caller checks them, see installOptimistic).
+     * @param dependency Dependency
+     * @param cacheFilePath Path to the cache file
+     * @param verify False to skip the check of large files
+     * @return Path to the cache file
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    private String downloadIntoCache(Dependency dependency, String cacheFilePath, boolean verify)
+            throws IOException, NoSuchAlgorithmException {
+        // check if file is in cache
+        if (new File(cacheFilePath).exists()) {
+            listener.message("-> Found file in cache!");
+            if (!verify) {
+                return cacheFilePath;
+            }
+            try {
+                // check checksum (if exist)
+                checkCachedChecksum(dependency, cacheFilePath);
+
+                // file exist and checksum is valid or missing -> use cache
+                return cacheFilePath;
+            } catch (IOException e) {
+                listener.message("Checksum of cached file is invalid! Try redownload!");
+            }
+        }
+
+        // download the file into an unique temp file (parallel downloads)
+        Files.createDirectories(Paths.get(cachePath));
+        File tmpFile = File.createTempFile("download", ".tmp", new File(cachePath));
+        try {
+            // load from the remote cache, update an older version or
+            // download the complete file (small files are kept in memory)
+            byte[] data = null;
+            boolean fromRemote = loadRemote(dependency, tmpFile);
+            if (!fromRemote && (!deltaUpdates || !downloadDelta(dependency, tmpFile))) {
+                DownloadBuffer buffer = new DownloadBuffer(tmpFile, memoryThreshold);
+                downloader.download(dependency.getSource(), buffer);
+                data = buffer.getData();
+                buffer.writeFile();
+            }
+
+            // check checksum (if exist, remote files are already checked)
+            boolean checked = true;
+            if (data != null) {
+                checkChecksum(dependency, data);
+            } else if (!fromRemote && verify) {
+                checkChecksum(dependency, tmpFile.getPath());
+            } else if (!fromRemote) {
+                checked = false;
+            }
+
+            // move file into the cache (no second write)
+            Files.move(tmpFile.toPath(), new File(cacheFilePath).toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            // the cache file has the checked content
+            if (checked) {
+                stampChecksum(dependency, cacheFilePath);
+
+                // write back into the remote cache
+                if (!fromRemote) {
+                    storeRemote(dependency, cacheFilePath);
+                }
+            }
+
+            // install from memory instead of reading the cache file again
+            if (data != null && !downloadOnly) {
+                keepInMemory(cacheFilePath, data);
+            }
+
+        } finally {
+            // remove tmp file
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+
+        return cacheFilePath;
+    }
+
+    /**
+     * Warm up the connections to the hosts of the files that must be downloaded
+     * @param dependencies Dependencies
+     * @param available Sources that are in the bundle or cache (may be incomplete)
+     * @throws IOException
+     */
+    private void warmUpConnections(Collection<Dependency> dependencies, Map<String, String> available)
+            throws IOException {
+        if (!warmUp) {
+            return;
+        }
+
+        List<String> sources = new ArrayList<>();
+        for (Dependency dependency: dependencies) {
+            String source = dependency.getSource();
+            if (available.containsKey(source) ||
+                    bundle != null && bundle.getEntry(source) != null ||
+                    new File(cachePath + dependency.getCacheName()).exists()) {
+                continue;
+            }
+            sources.add(source);
+        }
+
+        new ConnectionWarmup(downloader, listener, warmUpTls).run(
+                sources, Math.max(threads, 4), warmUpTimeout);
+    }
+
+    /**
+     * Check if only the selected entries of a dependency are downloaded
+     * @param dependency Dependency
+     * @return True if the dependency is a filtered ZIP file that is not cached
+     */
+    private boolean isPartialZip(Dependency dependency) {
+        if (!partialZip || downloadOnly || extractCache != null ||
+                !dependency.getType().equals(Dependency.typeZip) ||
+                dependency.getFilter().isEmpty() ||
+                !dependency.getSource().matches("https?://.*") ||
+                new File(cachePath + dependency.getCacheName()).exists()) {
+            return false;
+        }
+
+        // the checksum of the whole file can not be checked with a partial download
+        if (!dependency.getMd5().isEmpty() || !dependency.getSha1().isEmpty()) {
+            listener.message("No partial download (checksum of the whole file is checked)");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Download and install only the selected entries of a ZIP file
+     * @param dependency Dependency (filtered ZIP file)
+     * @return False if the whole file must be downloaded
+     * @throws IOException
+     */
+    private boolean installPartialZip(Dependency dependency) throws IOException {
+        // the parts are written into a sparse copy of the archive
+        Files.createDirectories(Paths.get(cachePath));
+        File tmpFile = File.createTempFile("partial", ".tmp", new File(cachePath));
+
+        // staging directory next to the destination (nothing is left on errors)
+        Path destination = Paths.get(dependency.getDestination()).toAbsolutePath();
+        Files.createDirectories(destination.getParent());
+        Path staging = Files.createTempDirectory(destination.getParent(), ".staging");
+        try {
+            if (!new RemoteZip(downloader, listener).fetch(dependency.getSource(),
+                    dependency.getFilter(), tmpFile)) {
+                return false;
+            }
+
+            listener.message("Extract zip entries: " + dependency.getSource());
+            Zip.decompress(tmpFile.getPath(), staging.toString(),
+                    dependency.getFilter(), true, listener);
+
+            // move staged files to the destination
+            commitStaging(staging, destination);
+            return true;
+
+        } catch (IOException e) {
+            listener.message("Partial download failed: " + e.getMessage() +
+                    ", download the whole file");
+            return false;
+
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+            if (Files.exists(staging)) {
+                deleteDir(staging.toString());
+            }
+        }
+    }
+
+    /**
+     * Check if a dependency is installed with optimistic extraction
+     * @param dependency Dependency
+     * @return True if the checksum is checked while extracting
+     */
+    private boolean isOptimistic(Dependency dependency) {
+        return optimistic && !downloadOnly && extractCache == null &&
+                !dependency.getType().equals(Dependency.typeFile) &&
+                (!dependency.getMd5().isEmpty() || !dependency.getSha1().isEmpty());
+    }
+
+    /**
+     * Download (if not cached) and install an archive while its checksum is
+     * checked (optimistic extraction)
+     *
+     * Concurrent calls for the same cache file share the download, but each
+     * caller extracts the archive into its own destination.
+     * @param dependency Dependency (archive with checksum)
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    private void installOptimistic(final Dependency dependency)
+            throws IOException, NoSuchAlgorithmException {
+        final String cacheFilePath = cachePath + dependency.getCacheName();
+        String key = new File(cacheFilePath).getAbsolutePath();
+        boolean cached = new File(cacheFilePath).exists();
+
+        // download without the check of large files
+        if (uncheckedDownloads.isRunning(key)) {
+            listener.message("Wait for running download of " + dependency.getCacheName());
+        }
+        String filePath;
+        try {
+            filePath = uncheckedDownloads.run(key, new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return runLocked(cacheFilePath, new Callable<String>() {
+                        @Override
+                        public String call() throws Exception {
+                            return downloadIntoCache(dependency, cacheFilePath, false);
+                        }
+                    });
+                }
+            });
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof NoSuchAlgorithmException) {
+                throw (NoSuchAlgorithmException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+
+        try {
+            // checked files (verify stamp or small download) are installed as usual
+            if (getMemoryFile(filePath) != null || isStamped(dependency, filePath)) {
+                checkCachedChecksum(dependency, filePath);
+                installDependency(dependency, filePath);
+                return;
+            }
+
+            try {
+                extractChecked(dependency, filePath);
+            } catch (ChecksumException e) {
+                // a downloaded file is invalid
+                if (!cached) {
+                    Files.deleteIfExists(Paths.get(filePath));
+                    throw e;
+                }
+
+                // a cached file is checked and downloaded again
+                filePath = download(dependency);
+                installDependency(dependency, filePath);
+            }
+        } finally {
+            releaseMemory(filePath);
+        }
+    }
+
+    /**
+     * Extract an archive into a staging directory while its checksum is
+     * checked by another thread and move the staged files to the destination
+     * @param dependency Dependency (archive with checksum)
+     * @param filePath Path to the unchecked cache file
+     * @throws ChecksumException if the checksum is invalid (staged files are removed)
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    private void extractChecked(final Dependency dependency, final String filePath)
+            throws IOException, NoSuchAlgorithmException {
+        // calculate the checksum in parallel
+        FutureTask<Void> check = new FutureTask<>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                if (!dependency.getMd5().isEmpty()) {
+                    Checksum.checkMd5(filePath, dependency.getMd5());
+                }
+                if (!dependency.getSha1().isEmpty()) {
+                    Checksum.checkSha1(filePath, dependency.getSha1());
+                }
+                return null;
+            }
+        });
+        Thread thread = new Thread(check, "checksum");
+        thread.setDaemon(true);
+        thread.start();
+        listener.message("Check checksum while extracting...");
+
+        // staging directory next to the destination (same file system)
+        Path destination = Paths.get(dependency.getDestination()).toAbsolutePath();
+        Files.createDirectories(destination.getParent());
+        Path staging = Files.createTempDirectory(destination.getParent(), ".staging");
+        try {
+            // GZip files are decompressed to a single file
+            Path stagedDestination = staging;
+            if (dependency.getType().equals(Dependency.typeGZip)) {
+                stagedDestination = staging.resolve(destination.getFileName());
+            }
+
+            IOException extractError = null;
+            try {
+                extractDependency(dependency, filePath, stagedDestination.toString());
+            } catch (IOException e) {
+                extractError = e;
+            }
+
+            // wait for the checksum (an invalid file is the reason of extract errors too)
+            try {
+                check.get();
+            } catch (InterruptedException e) {
+                thread.interrupt();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while checking checksum");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof ChecksumException) {
+                    listener.message("Checksum invalid -> discard extracted files");
+                    throw (ChecksumException) e.getCause();
+                } else if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                } else if (e.getCause() instanceof NoSuchAlgorithmException) {
+                    throw (NoSuchAlgorithmException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+            if (extractError != null) {
+                throw extractError;
+            }
+            listener.message("Checksum OK!");
+            stampChecksum(dependency, filePath);
+            storeRemote(dependency, filePath);
+
+            // move staged files to the destination
+            commitStaging(stagedDestination, destination);
+
+        } finally {
+            if (Files.exists(staging)) {
+                deleteDir(staging.toString());
+            }
+        }
+    }
+
+    /**
+     * Move the staged files to the destination (existing files are replaced)
+     * @param staging Staged file or directory
+     * @param destination Destination file or directory
+     * @throws IOException
+     */
+    private static void commitStaging(final Path staging, final Path destination)
+            throws IOException {
+        if (!Files.isDirectory(staging)) {
+            Files.move(staging, destination, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+
+        Files.walkFileTree(staging, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                    throws IOException {
+                Files.createDirectories(destination.resolve(staging.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                    throws IOException {
+                Files.move(file, destination.resolve(staging.relativize(file).toString()),
+                        StandardCopyOption.REPLACE_EXISTING);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Check if all checksums of a cache file are verified before
+     * @param dependency Dependency with checksum
+     * @param path Path to the cache file
+     * @return True if the verify stamp contains all checksums
+     * @throws IOException
+     */
+    private boolean isStamped(Dependency dependency, String path) throws IOException {
+        VerifyStamp stamp = loadStamp(path);
+        return (dependency.getMd5().isEmpty() || stamp.isVerified("MD5", dependency.getMd5())) &&
+               (dependency.getSha1().isEmpty() || stamp.isVerified("SHA1", dependency.getSha1()));
+    }
+
+    /**
+     * Get the key of a dependency in the remote cache
+     * @param dependency Dependency
+     * @return Key ("ALGORITHM/HEX") or null if the dependency has no checksum
+     */
+    private static String getRemoteKey(Dependency dependency) {
+        if (!dependency.getSha1().isEmpty()) {
+            return "sha1/" + dependency.getSha1().toLowerCase();
+        }
+        if (!dependency.getMd5().isEmpty()) {
+            return "md5/" + dependency.getMd5().toLowerCase();
+        }
+        return null;
+    }
+
+    /**
+     * Load a dependency from the remote cache (if enabled)
+     *
+     * The loaded file is checked, an invalid file or a failed request falls
+     * back to the origin of the dependency.
+     * @param dependency Dependency
+     * @param tmpFile Destination file
+     * @return True if the file was loaded and is valid
+     * @throws NoSuchAlgorithmException
+     */
+    private boolean loadRemote(Dependency dependency, File tmpFile)
+            throws NoSuchAlgorithmException {
+        String key = getRemoteKey(dependency);
+        if (remoteCache == null || key == null) {
+            return false;
+        }
+
+        try {
+            long start = System.nanoTime();
+            if (!remoteCache.load(key, tmpFile)) {
+                listener.message("Not in remote cache");
+                return false;
+            }
+            listener.message("Loaded from remote cache (" +
+                    Downloader.convertSize(tmpFile.length()) + " in " +
+                    (System.nanoTime() - start) / 1000000 + " ms)");
+
+            checkChecksum(dependency, tmpFile.getPath());
+            return true;
+
+        } catch (IOException e) {
+            listener.message("Remote cache failed: " + e.getMessage() + " -> use origin");
+            return false;
+        }
+    }
+
+    /**
+     * Store a checked dependency in the remote cache (if enabled)
+     * @param dependency Dependency
+     * @param filePath Path to the checked file
+     */
+    private void storeRemote(Dependency dependency, String filePath) {
+        String key = getRemoteKey(dependency);
+        if (remoteCache == null || !remoteCachePush || key == null) {
+            return;
+        }
+
+        try {
+            remoteCache.store(key, new File(filePath));
+            listener.message("Stored in remote cache");
+        } catch (IOException e) {
+            // the remote cache is optional
+            listener.message("Remote cache store failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Create the file from an older version in the cache (delta update)
+     * @param dependency Dependency
+     * @param tmpFile Destination file
+     * @return True if the file was created, false if it must be downloaded
+     * @throws NoSuchAlgorithmException
+     */
+    private boolean downloadDelta(Dependency dependency, File tmpFile)
+            throws NoSuchAlgorithmException {
+        File seed = DeltaUpdate.findSeed(new File(cachePath), dependency.getCacheName());
+        if (seed == null) {
+            return false;
+        }
+
+        listener.message("Delta update from " + seed.getName());
+        try {
+            return new DeltaUpdate(downloader, listener).update(
+                    dependency.getSource(), seed, tmpFile);
+        } catch (IOException e) {
+            listener.message("Delta update failed (" + e.getMessage() + "), download complete file");
+            return false;
+        }
+    }
+
+    /**
+     * Write all files of the dependency lists into a bundle
+     * @param manifests Dependency lists
+     * @param bundlePath Path to the bundle file
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public void exportBundle(List<Manifest> manifests, String bundlePath)
+            throws IOException, NoSuchAlgorithmException {
+        // download and check all files
+        Map<String, String> files = new LinkedHashMap<>();
+        for (Manifest manifest: manifests) {
+            for (Dependency dependency: manifest.getDependencies()) {
+                String source = dependency.getSource();
+                if (files.containsKey(source)) {
+                    continue;
+                }
+
+                listener.taskStarted("Handle " + dependency.getType() + " file: " + source);
+                files.put(source, download(dependency));
+                releaseMemory(files.get(source));
+            }
+        }
+
+        // write bundle
+        listener.taskStarted("Write " + files.size() + " files to bundle " + bundlePath);
+        Bundle.write(bundlePath, files);
+        listener.stepFinished();
+    }
+
+    /**
+     * Copy all files of a bundle into the cache
+     *
+     * Each file is checked with the SHA1 of the bundle index and gets a
+     * verify stamp, so it is not hashed again on install.
+     * @param bundlePath Path to the bundle file
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public void importBundle(String bundlePath) throws IOException, NoSuchAlgorithmException {
+        Bundle bundle = new Bundle(bundlePath);
+        try {
+            Files.createDirectories(Paths.get(cachePath));
+
+            for (Bundle.Entry entry: bundle.getEntries()) {
+                String source = entry.getSource();
+                File cacheFile = new File(cachePath + Dependency.getCacheName(source));
+
+                listener.taskStarted("Import " + source);
+                if (cacheFile.exists()) {
+                    listener.message("Already in cache!");
+                    continue;
+                }
+
+                // copy into temp file, check it and move it into place
+                File tmpFile = File.createTempFile("import", ".tmp", new File(cachePath));
+                try {
+                    bundle.copyTo(entry, tmpFile);
+                    listener.message("Check SHA1 checksum...");
+                    Checksum.checkSha1(tmpFile.getPath(), entry.getSha1());
+                    listener.message("Checksum OK!");
+                    Files.move(tmpFile.toPath(), cacheFile.toPath());
+                } finally {
+                    Files.deleteIfExists(tmpFile.toPath());
+                }
+
+                // the content is checked
+                VerifyStamp stamp = new VerifyStamp(cacheFile);
+                stamp.add("SHA1", entry.getSha1());
+                saveStamp(stamp);
+            }
+        } finally {
+            bundle.close();
+        }
+    }
+
+    /**
+     * Remove the download cache
+     * @throws IOException
+     */
+    public void clearCache() throws IOException {
+        deleteDir(cachePath);
+    }
+
+    /**
+     * Set the bandwidth limits of the downloader
+     * @param manifests Dependency lists (the first one with a limit is used)
+     */
+    private void applyRateLimits(List<Manifest> manifests) {
+        String rate = rateLimit;
+        String hostRate = hostRateLimit;
+        for (Manifest manifest: manifests) {
+            if (rate == null) {
+                rate = manifest.getRateLimit();
+            }
+            if (hostRate == null) {
+                hostRate = manifest.getHostRateLimit();
+            }
+        }
+
+        if (rate != null) {
+            downloader.setRateLimit(RateLimiter.parseRate(rate));
+        }
+        if (hostRate != null) {
+            downloader.setHostRateLimits(hostRate);
+        }
+    }
+
+    /**
+     * Get all dependencies with destinations relative to their depend file
+     * @param manifests Dependency lists
+     * @return Dependencies with resolved destinations
+     */
+    private static List<Dependency> resolveDestinations(List<Manifest> manifests) {
+        List<Dependency> dependencies = new ArrayList<>();
+        for (Manifest manifest: manifests) {
+            File baseDir = null;
+            if (manifest.getPath() != null) {
+                baseDir = new File(manifest.getPath()).getAbsoluteFile().getParentFile();
+            }
+
+            for (Dependency dependency: manifest.getDependencies()) {
+                if (baseDir != null) {
+                    dependency.resolveDestination(baseDir);
+                }
+                dependencies.add(dependency);
+            }
+        }
+        return dependencies;
+    }
+
+    /**
+     * Remove the installed files of a dependency
+     * @param dependency Dependency
+     */
+    private void deleteDependency(Dependency dependency) {
+        listener.taskStarted("Remove " + dependency.getDestination());
+
+        // delete destination
+        try {
+            deleteDir(dependency.getDestination());
+        } catch (IOException e) {
+            listener.message("Already removed!");
+        }
+    }
+
+    /**
+     * Extraction of a dependency into a destination
+     */
+    private interface Extraction {
+        /**
+         * Extract the dependency
+         * @param destination Destination of the extracted file(s)
+         * @throws IOException
+         */
+        void extract(String destination) throws IOException;
+    }
+
+    /**
+     * Install the dependency (with the extract cache if possible)
+     * @param dependency Dependency to install
+     * @param filePath Path of the cache file
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    private void installDependency(final Dependency dependency, final String filePath)
+            throws IOException, NoSuchAlgorithmException {
+        // extract without cache if disabled or not an archive
+        if (extractCache == null || !dependency.isArchive()) {
+            extractDependency(dependency, filePath, dependency.getDestination());
+            return;
+        }
+
+        // get digest of archive (use known checksum if exist)
+        String digest;
+        if (!dependency.getSha1().isEmpty()) {
+            digest = dependency.getSha1().toLowerCase();
+        } else {
+            digest = getCachedSha1(filePath);
+        }
+
+        installCached(dependency, digest, new Extraction() {
+            @Override
+            public void extract(String destination) throws IOException {
+                extractDependency(dependency, filePath, destination);
+            }
+        });
+    }
+
+    /**
+     * Install the dependency from the bundle (with the extract cache if possible)
+     * @param dependency Dependency to install
+     * @param entry Bundle entry of the file
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    private void installDependency(final Dependency dependency, final Bundle.Entry entry)
+            throws IOException, NoSuchAlgorithmException {
+        // extract without cache if disabled or not an archive
+        if (extractCache == null || !dependency.isArchive()) {
+            extractDependency(dependency, entry, dependency.getDestination());
+            return;
+        }
+
+        // the digest of bundle entries is known
+        installCached(dependency, entry.getSha1(), new Extraction() {
+            @Override
+            public void extract(String destination) throws IOException {
+                extractDependency(dependency, entry, destination);
+            }
+        });
+    }
+
+    /**
+     * Install an archive from the extract cache
+     * @param dependency Dependency to install
+     * @param digest Digest of the archive
+     * @param extraction Extraction of the archive
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    private void installCached(Dependency dependency, String digest, Extraction extraction)
+            throws IOException, NoSuchAlgorithmException {
+        String destination = dependency.getDestination();
+        String key = ExtractCache.createKey(digest,
+                dependency.getSourceSubDir(),
+                dependency.getInclude(),
+                dependency.getExclude());
+
+        // extract archive into cache if not exist
+        File tree = extractCache.getTree(key);
+        if (tree != null) {
+            listener.message("Found extracted tree in cache!");
+        } else {
+            File staging = extractCache.createStaging();
+            try {
+                extraction.extract(staging.getPath());
+            } catch (IOException e) {
+                deleteDir(staging.getPath());
+                throw e;
+            }
+            tree = extractCache.commit(staging, key);
+        }
+
+        // link tree to destination
+        listener.message("Link extracted tree to: " + destination);
+        ExtractCache.install(tree, destination, listener);
+    }
+
+    /**
+     * Extract the dependency
+     * @param dependency Dependency to extract
+     * @param filePath Path of the cache file
+     * @param destination Destination of the extracted file(s)
+     * @throws IOException
+     */
+    private void extractDependency(Dependency dependency, String filePath, String destination)
+            throws IOException {
+        String type = dependency.getType();
+
+        // use the content of a small download if it is still in memory
+        byte[] data = getMemoryFile(filePath);
+        if (data != null) {
+            extractDependency(dependency, data, destination);
+            return;
+        }
+
+        // handle normal files
+        if (type.equals(Dependency.typeFile)) {
+            listener.message("Copy plain file: " + filePath);
+
+            // copy the file (parent may not exist yet)
+            File destinationFile = new File(destination).getAbsoluteFile();
+            Files.createDirectories(destinationFile.getParentFile().toPath());
+            Files.copy(new File(filePath).toPath(), destinationFile.toPath());
+
+            // handle ZIP files
+        } else if (type.equals(Dependency.typeZip)) {
+            listener.message("Extract zip file: " + filePath);
+
+            // decompress file
+            Zip.decompress(filePath, destination, dependency.getFilter(), listener);
+
+            // handle GZIP files
+        } else if (type.equals(Dependency.typeGZip)) {
+            listener.message("Decompress Gzip file: " + filePath);
+
+            // decompress file
+            GZip.decompress(filePath, destination, listener);
+
+            // handle TAR files
+        } else if (type.equals(Dependency.typeTar)) {
+            listener.message("Extract Tar file: " + filePath);
+
+            // extract only the selected entries with the archive index
+            Tar.extract(filePath, loadTarIndex(filePath), destination,
+                        dependency.getFilter(), extractThreads, listener);
+
+            // handle TAR.GZ files with sub directory
+        } else if (type.equals(Dependency.typeTarGz) &&
+                !dependency.getSourceSubDir().isEmpty()) {
+            listener.message("Extract TarGz file: " + filePath);
+
+            // extract only the part with the sub directory
+            extractIndexedTarGz(filePath, destination, dependency.getSourceSubDir(),
+                                dependency.getFilter());
+
+            // handle TAR.GZ files
+        } else if (type.equals(Dependency.typeTarGz)) {
+            listener.message("Decompress TarGz file: " + filePath);
+
+            // decompress file into an unique temp file
+            File tmpFile = File.createTempFile("extract", ".tar", new File(cachePath));
+            try {
+                GZip.decompress(filePath, tmpFile.getPath(), listener);
+
+                listener.message("Extract TarGz file: " + filePath);
+
+                // extract file
+                Tar.extract(tmpFile.getPath(), destination, dependency.getFilter(),
+                            extractThreads, listener);
+
+            } finally {
+                // remove tmp file
+                Files.deleteIfExists(tmpFile.toPath());
+            }
+        } else {
+            throw new IOException("Unknown file type: " + type);
+        }
+    }
+
+    /**
+     * Load the entry index of a Tar cache file (created if not exist or outdated)
+     * @param filePath Path of the cache file
+     * @return Index of the Tar file
+     * @throws IOException
+     */
+    private TarIndex loadTarIndex(String filePath) throws IOException {
+        File archive = new File(filePath);
+        File indexFile = new File(filePath + ".tarindex");
+
+        TarIndex index = TarIndex.load(indexFile, archive);
+        if (index == null) {
+            listener.message("Create archive index");
+            index = Tar.createIndex(filePath);
+
+            // the index is only an optimization
+            try {
+                index.save(indexFile, archive);
+            } catch (IOException e) {
+                listener.message("Failed to store archive index: " + e.getMessage());
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Extract a sub directory of a TarGz file with the archive index
+     *
+     * The first extraction decompresses the whole archive with the fast
+     * GZIPInputStream and stores the offsets of the TAR entries next to the
+     * cache file. If a sub directory of the archive is requested again, the
+     * archive is decompressed once more to create the GZip access points.
+     * Later extractions decompress only the part of the archive that
+     * contains the sub directory.
+     * @param filePath Path of the cache file
+     * @param destination Destination of the extracted files
+     * @param subdir Extracted sub directory
+     * @param filter Filter of the extracted entries
+     * @throws IOException
+     */
+    private void extractIndexedTarGz(String filePath, String destination,
+                                     String subdir, EntryFilter filter)
+            throws IOException {
+        File archive = new File(filePath);
+        File gzipIndexFile = new File(filePath + ".gzindex");
+        File tarIndexFile = new File(filePath + ".tarindex");
+
+        // extract with existing index
+        GZipIndex gzipIndex = GZipIndex.load(gzipIndexFile, archive);
+        TarIndex tarIndex = TarIndex.load(tarIndexFile, archive);
+        if (gzipIndex != null && tarIndex != null) {
+            long[] range = tarIndex.getRange(subdir);
+            if (range == null) {
+                listener.message("No entries in " + subdir);
+                return;
+            }
+            listener.message("Decompress " + Downloader.convertSize(range[1] - range[0]) +
+                    " at offset " + Downloader.convertSize(range[0]) + " (indexed)");
+
+            InputStream in = gzipIndex.open(archive, range[0], range[1] - range[0]);
+            try {
+                Tar.extract(in, destination, filter, null, extractThreads, listener);
+            } finally {
+                in.close();
+            }
+            return;
+        }
+
+        // archive extracted before -> create access points for the next extractions
+        if (tarIndex != null) {
+            listener.message("Create archive index");
+            GZipIndex.Builder in = new GZipIndex.Builder(archive);
+            try {
+                Tar.extract(in, destination, filter, null, extractThreads, listener);
+                readTrailer(in);
+            } finally {
+                in.close();
+            }
+
+            gzipIndex = in.getIndex();
+            if (gzipIndex != null) {
+                // the index is only an optimization
+                try {
+                    gzipIndex.save(gzipIndexFile, archive);
+                } catch (IOException e) {
+                    listener.message("Failed to store archive index: " + e.getMessage());
+                }
+            }
+            return;
+        }
+
+        // first extraction -> only the TAR entries are indexed
+        InputStream in = new GZIPInputStream(new FileInputStream(archive), 65536);
+        tarIndex = new TarIndex();
+        try {
+            Tar.extract(in, destination, filter, tarIndex, extractThreads, listener);
+            readTrailer(in);
+        } finally {
+            in.close();
+        }
+
+        // the index is only an optimization
+        try {
+            tarIndex.save(tarIndexFile, archive);
+        } catch (IOException e) {
+            listener.message("Failed to store archive index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read the rest of a GZip stream after the end of the TAR data
+     *
+     * The checksum and the size in the GZip trailer are only checked at the
+     * end of the stream.
+     * @param in GZip stream
+     * @throws IOException
+     */
+    private static void readTrailer(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (in.read(buffer) != -1) {
+            // padding after the end of the TAR archive
+        }
+    }
+
+    /**
+     * Extract the dependency from the bundle (without a cache file)
+     * @param dependency Dependency to extract
+     * @param entry Bundle entry of the file
+     * @param destination Destination of the extracted file(s)
+     * @throws IOException
+     */
+    private void extractDependency(Dependency dependency, Bundle.Entry entry, String destination)
+            throws IOException {
+        // plain files are copied without reading them into memory
+        if (dependency.getType().equals(Dependency.typeFile)) {
+            listener.message("Copy plain file from bundle");
+            bundle.copyTo(entry, new File(destination));
+            return;
+        }
+
+        extractStream(dependency, bundle.openStream(entry), destination, "bundle");
+    }
+
+    /**
+     * Extract the dependency from the content in memory
+     * @param dependency Dependency to extract
+     * @param data Content of the file
+     * @param destination Destination of the extracted file(s)
+     * @throws IOException
+     */
+    private void extractDependency(Dependency dependency, byte[] data, String destination)
+            throws IOException {
+        if (dependency.getType().equals(Dependency.typeFile)) {
+            listener.message("Write plain file from memory");
+
+            // write the file (parent may not exist yet)
+            File destinationFile = new File(destination).getAbsoluteFile();
+            Files.createDirectories(destinationFile.getParentFile().toPath());
+            Files.write(destinationFile.toPath(), data, StandardOpenOption.CREATE_NEW);
+            return;
+        }
+
+        extractStream(dependency, new ByteArrayInputStream(data), destination, "memory");
+    }
+
+    /**
+     * Extract an archive from a stream
+     * @param dependency Dependency to extract
+     * @param in Stream of the archive (closed after extraction)
+     * @param destination Destination of the extracted files
+     * @param origin Origin of the stream for the output (e.g. "bundle")
+     * @throws IOException
+     */
+    private void extractStream(Dependency dependency, InputStream in, String destination,
+                               String origin) throws IOException {
+        String type = dependency.getType();
+        try {
+            if (type.equals(Dependency.typeZip)) {
+                listener.message("Extract zip file from " + origin);
+                Zip.decompress(in, destination, dependency.getFilter(), listener);
+
+            } else if (type.equals(Dependency.typeGZip)) {
+                listener.message("Decompress Gzip file from " + origin);
+                GZip.decompress(in, destination, listener);
+
+            } else if (type.equals(Dependency.typeTar)) {
+                listener.message("Extract Tar file from " + origin);
+                Tar.extract(in, destination, dependency.getFilter(), null,
+                            extractThreads, listener);
+
+            } else if (type.equals(Dependency.typeTarGz)) {
+                listener.message("Extract TarGz file from " + origin);
+                InputStream gzip = new GZIPInputStream(in, 65536);
+                Tar.extract(gzip, destination, dependency.getFilter(), null,
+                            extractThreads, listener);
+                readTrailer(gzip);
+
+            } else {
+                throw new IOException("Unknown file type: " + type);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Keep the content of a small download until it is installed
+     * @param path Path of the cache file
+     * @param data Content of the file
+     */
+    private synchronized void keepInMemory(String path, byte[] data) {
+        // the file is in the cache too -> skip if the budget is used
+        if (memoryUsed + data.length <= memoryBudget && !memoryFiles.containsKey(path)) {
+            memoryFiles.put(path, data);
+            memoryUsed += data.length;
+        }
+    }
+
+    /**
+     * Get the content of a small download
+     * @param path Path of the cache file
+     * @return Content or null if not in memory
+     */
+    private synchronized byte[] getMemoryFile(String path) {
+        return memoryFiles.get(path);
+    }
+
+    /**
+     * Release the content of a download after its installation
+     * @param path Path of the cache file (may be null)
+     */
+    private synchronized void releaseMemory(String path) {
+        byte[] data = memoryFiles.remove(path);
+        if (data != null) {
+            memoryUsed -= data.length;
+        }
+    }
+
+    /**
+     * Check the checksum of a bundle file
+     * @param dependency Dependency (maybe) with checksum
+     * @param entry Bundle entry of the file
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    private void checkChecksum(Dependency dependency, Bundle.Entry entry)
+            throws IOException, NoSuchAlgorithmException {
+
+        // check MD5
+        if (!dependency.getMd5().isEmpty()) {
+            listener.message("Check MD5 checksum...");
+            InputStream in = bundle.openStream(entry);
+            try {
+                Checksum.checkMd5(in, dependency.getMd5());
+            } finally {
+                in.close();
+            }
+            listener.message("Checksum OK!");
+        }
+        // check SHA1
+        if (!dependency.getSha1().isEmpty()) {
+            listener.message("Check SHA1 checksum...");
+            InputStream in = bundle.openStream(entry);
+            try {
+                Checksum.checkSha1(in, dependency.getSha1());
+            } finally {
+                in.close();
+            }
+            listener.message("Checksum OK!");
+        }
+    }
+
+    /**
+     * Check the checksums of a file in memory (if the dependency has checksums)
+     * @param dependency Dependency (maybe) with checksum
+     * @param data Content of the file
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    private void checkChecksum(Dependency dependency, byte[] data)
+            throws IOException, NoSuchAlgorithmException {
+
+        // check MD5
+        if (!dependency.getMd5().isEmpty()) {
+            listener.message("Check MD5 checksum...");
+            Checksum.checkMd5(new ByteArrayInputStream(data), dependency.getMd5());
+            listener.message("Checksum OK!");
+        }
+        // check SHA1
+        if (!dependency.getSha1().isEmpty()) {
+            listener.message("Check SHA1 checksum...");
+            Checksum.checkSha1(new ByteArrayInputStream(data), dependency.getSha1());
+            listener.message("Checksum OK!");
+        }
+    }
+
+    /**
+     * Check the checksums of a file (if the dependency has checksums)
+     * @param dependency Dependency (maybe) with checksum
+     * @param path Path to the downloaded file
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    private void checkChecksum(Dependency dependency, String path)
+            throws IOException, NoSuchAlgorithmException {
+
+        // check MD5
+        if (!dependency.getMd5().isEmpty()) {
+            listener.message("Check MD5 checksum...");
+            Checksum.checkMd5(path, dependency.getMd5());
+            listener.message("Checksum OK!");
+        }
+        // check SHA1
+        if (!dependency.getSha1().isEmpty()) {
+            listener.message("Check SHA1 checksum...");
+            Checksum.checkSha1(path, dependency.getSha1());
+            listener.message("Checksum OK!");
+        }
+    }
+
+    /**
+     * Check the checksums of a cache file (if the dependency has checksums)
+     *
+     * Digests that were already verified for the unchanged file are not
+     * calculated again (except in paranoid mode).
+     * @param dependency Dependency (maybe) with checksum
+     * @param path Path to the cache file
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    private void checkCachedChecksum(Dependency dependency, String path)
+            throws IOException, NoSuchAlgorithmException {
+        if (dependency.getMd5().isEmpty() && dependency.getSha1().isEmpty()) {
+            return;
+        }
+        VerifyStamp stamp = loadStamp(path);
+        boolean changed = false;
+
+        // check MD5
+        if (!dependency.getMd5().isEmpty()) {
+            if (stamp.isVerified("MD5", dependency.getMd5())) {
+                listener.message("MD5 checksum OK! (verified before)");
+            } else {
+                listener.message("Check MD5 checksum...");
+                Checksum.checkMd5(path, dependency.getMd5());
+                listener.message("Checksum OK!");
+                stamp.add("MD5", dependency.getMd5());
+                changed = true;
+            }
+        }
+        // check SHA1
+        if (!dependency.getSha1().isEmpty()) {
+            if (stamp.isVerified("SHA1", dependency.getSha1())) {
+                listener.message("SHA1 checksum OK! (verified before)");
+            } else {
+                listener.message("Check SHA1 checksum...");
+                Checksum.checkSha1(path, dependency.getSha1());
+                listener.message("Checksum OK!");
+                stamp.add("SHA1", dependency.getSha1());
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            saveStamp(stamp);
+        }
+    }
+
+    /**
+     * Get the SHA1 digest of a cache file (calculated only if not stamped)
+     * @param path Path to the cache file
+     * @return SHA1 digest
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    private String getCachedSha1(String path) throws IOException, NoSuchAlgorithmException {
+        VerifyStamp stamp = loadStamp(path);
+        String digest = stamp.getDigest("SHA1");
+        if (digest == null) {
+            digest = Checksum.createSha1(path);
+            stamp.add("SHA1", digest);
+            saveStamp(stamp);
+        }
+        return digest;
+    }
+
+    /**
+     * Stamp the checksums of a new cache file as verified
+     * @param dependency Dependency (maybe) with checksum
+     * @param path Path to the cache file
+     * @throws IOException
+     */
+    private void stampChecksum(Dependency dependency, String path) throws IOException {
+        if (dependency.getMd5().isEmpty() && dependency.getSha1().isEmpty()) {
+            return;
+        }
+        VerifyStamp stamp = new VerifyStamp(new File(path));
+        if (!dependency.getMd5().isEmpty()) {
+            stamp.add("MD5", dependency.getMd5());
+        }
+        if (!dependency.getSha1().isEmpty()) {
+            stamp.add("SHA1", dependency.getSha1());
+        }
+        saveStamp(stamp);
+    }
+
+    /**
+     * Load the verify stamp of a cache file
+     * @param path Path to the cache file
+     * @return Stamp (empty in paranoid mode)
+     * @throws IOException
+     */
+    private VerifyStamp loadStamp(String path) throws IOException {
+        if (paranoid) {
+            return new VerifyStamp(new File(path));
+        }
+        return VerifyStamp.load(new File(path));
+    }
+
+    /**
+     * Store a verify stamp (failures only disable the stamp)
+     * @param stamp Verify stamp
+     */
+    private void saveStamp(VerifyStamp stamp) {
+        try {
+            stamp.save();
+        } catch (IOException e) {
+            listener.message("Failed to store verify stamp: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Delete directory and all files in it
+     * @param path Path to the directory
+     * @throws IOException
+     */
+    static void deleteDir(String path) throws IOException {
+        Files.walkFileTree(Paths.get(path), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
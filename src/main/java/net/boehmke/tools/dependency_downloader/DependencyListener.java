@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.IOException;
+
+/**
+ * Listener for progress and metrics of the dependency handling
+ *
+ * The listener may be called from multiple threads (e.g. parallel
+ * downloads of the batch mode).
+ */
+public interface DependencyListener {
+    /**
+     * A new task was started (e.g. the handling of a dependency)
+     * @param task Description of the task
+     */
+    void taskStarted(String task);
+
+    /**
+     * Status message of the current task
+     * @param message Message
+     */
+    void message(String message);
+
+    /**
+     * Progress of a download
+     * @param source Source URL
+     * @param loaded Already loaded bytes
+     * @param size Size of the file (-1 if unknown)
+     */
+    void downloadProgress(String source, long loaded, long size);
+
+    /**
+     * A download failed and is retried
+     * @param source Source URL
+     * @param attempt Number of the retry
+     * @param retries Maximal amount of retries
+     * @param delay Delay before the retry in ms
+     * @param error Error of the failed attempt
+     */
+    void downloadRetry(String source, int attempt, int retries, long delay, IOException error);
+
+    /**
+     * A download was finished
+     * @param source Source URL
+     * @param bytes Amount of transferred bytes
+     * @param millis Duration of the transfer in ms
+     */
+    void downloadFinished(String source, long bytes, long millis);
+
+    /**
+     * Progress of an extraction
+     * @param files Amount of extracted files
+     * @param total Amount of files in the archive (-1 if unknown)
+     */
+    void extractProgress(long files, long total);
+
+    /**
+     * The current step (e.g. an extraction) was finished
+     */
+    void stepFinished();
+
+    /**
+     * The handling of a dependency was finished
+     * @param dependency Handled dependency
+     * @param millis Duration of the handling in ms
+     */
+    void dependencyFinished(Dependency dependency, long millis);
+}
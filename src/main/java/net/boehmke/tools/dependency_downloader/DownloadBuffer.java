@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.*;
+import java.nio.file.Files;
+
+/**
+ * Destination of a download that is kept in memory up to a threshold
+ *
+ * Small downloads stay in memory, so they can be checked and installed
+ * without reading them from disk. If the data exceeds the threshold it is
+ * moved into the file and all further data is appended to the file.
+ */
+public class DownloadBuffer {
+    /**
+     * File for data above the threshold
+     */
+    private final File file;
+
+    /**
+     * Maximum size of the data in memory
+     */
+    private final long threshold;
+
+    /**
+     * Data in memory (null if the data is in the file)
+     */
+    private ByteArrayOutputStream memory;
+
+    /**
+     * Create the buffer
+     * @param file File for data above the threshold
+     * @param threshold Maximum size of the data in memory (0 to always use the file)
+     */
+    public DownloadBuffer(File file, long threshold) {
+        this.file = file;
+        this.threshold = threshold;
+        this.memory = threshold > 0 ? new ByteArrayOutputStream() : null;
+    }
+
+    /**
+     * @return File for data above the threshold
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return True if the data is in memory
+     */
+    public boolean isInMemory() {
+        return memory != null;
+    }
+
+    /**
+     * @return Data in memory (null if the data is in the file)
+     */
+    public byte[] getData() {
+        return memory != null ? memory.toByteArray() : null;
+    }
+
+    /**
+     * @return Size of the buffered data
+     */
+    public long length() {
+        return memory != null ? memory.size() : file.length();
+    }
+
+    /**
+     * Remove all data
+     * @throws IOException
+     */
+    public void reset() throws IOException {
+        if (threshold > 0) {
+            memory = new ByteArrayOutputStream();
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+    /**
+     * Open a stream for new data
+     * @param append True to keep the existing data
+     * @return Output stream (must be closed)
+     * @throws IOException
+     */
+    public OutputStream open(boolean append) throws IOException {
+        if (!append) {
+            reset();
+        }
+        if (memory == null) {
+            return new FileOutputStream(file, true);
+        }
+
+        return new OutputStream() {
+            /**
+             * File stream after the threshold was exceeded
+             */
+            private OutputStream out = null;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (out == null && memory.size() + len > threshold) {
+                    // move data into file
+                    out = new FileOutputStream(file, true);
+                    memory.writeTo(out);
+                    memory = null;
+                }
+                if (out != null) {
+                    out.write(b, off, len);
+                } else {
+                    memory.write(b, off, len);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (out != null) {
+                    out.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Write the data in memory into the file (single write)
+     * @throws IOException
+     */
+    public void writeFile() throws IOException {
+        if (memory != null) {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                memory.writeTo(out);
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
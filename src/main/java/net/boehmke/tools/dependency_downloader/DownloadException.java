@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.IOException;
+
+/**
+ * Exception for failed downloads
+ */
+public class DownloadException extends IOException {
+    /**
+     * HTTP response code (or -1 if no response)
+     */
+    private final int responseCode;
+
+    /**
+     * True if a retry of the download could succeed
+     */
+    private final boolean retryable;
+
+    /**
+     * Create new exception
+     * @param msg Message of the exception
+     * @param responseCode HTTP response code or -1
+     * @param retryable True if a retry of the download could succeed
+     */
+    public DownloadException(String msg, int responseCode, boolean retryable) {
+        super(msg);
+        this.responseCode = responseCode;
+        this.retryable = retryable;
+    }
+
+    /**
+     * Get the HTTP response code
+     * @return Response code or -1 if no response was received
+     */
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    /**
+     * Check if a retry of the download could succeed
+     * @return True if retryable
+     */
+    public boolean isRetryable() {
+        return retryable;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Orders the downloads of a batch by their size
+ *
+ * The sizes are taken from previous runs (stored in the cache) or requested
+ * with HEAD requests. The largest downloads are started first and the small
+ * ones fill the remaining download slots, so a large file at the end of a
+ * depend file does not define the total time. Files that are already
+ * available (cache or bundle) are handled before all downloads.
+ */
+public class DownloadScheduler {
+    /**
+     * Downloader instance (for the HEAD requests)
+     */
+    private final Downloader downloader;
+
+    /**
+     * Listener for the scheduling decisions
+     */
+    private final DependencyListener listener;
+
+    /**
+     * File with the recorded sizes
+     */
+    private final File sizesFile;
+
+    /**
+     * Recorded sizes of previous runs (source URL -> size)
+     */
+    private final Properties sizes = new Properties();
+
+    /**
+     * Create the scheduler
+     * @param downloader Downloader instance
+     * @param sizesFile File with the recorded sizes (created if not exist)
+     * @param listener Listener for the scheduling decisions
+     */
+    public DownloadScheduler(Downloader downloader, File sizesFile, DependencyListener listener) {
+        this.downloader = downloader;
+        this.sizesFile = sizesFile;
+        this.listener = listener;
+
+        // recorded sizes are only a hint -> ignore broken files
+        if (sizesFile.isFile()) {
+            try {
+                InputStream in = new FileInputStream(sizesFile);
+                try {
+                    sizes.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                sizes.clear();
+            }
+        }
+    }
+
+    /**
+     * Order the dependencies for the download
+     * @param dependencies Dependencies with unique sources
+     * @param available Sources that need no download (source -> origin, e.g. "cache")
+     * @param threads Amount of parallel HEAD requests
+     * @return Dependencies in download order
+     * @throws IOException
+     */
+    public List<Dependency> schedule(Collection<Dependency> dependencies,
+                                     Map<String, String> available, int threads)
+            throws IOException {
+        List<Dependency> order = new ArrayList<>();
+        List<Dependency> downloads = new ArrayList<>();
+        for (Dependency dependency: dependencies) {
+            if (available.containsKey(dependency.getSource())) {
+                order.add(dependency);
+            } else {
+                downloads.add(dependency);
+            }
+        }
+
+        // get the sizes of all downloads
+        final Map<String, Long> downloadSizes = new HashMap<>();
+        final Map<String, String> origins = new HashMap<>();
+        List<Dependency> unknown = new ArrayList<>();
+        for (Dependency dependency: downloads) {
+            String recorded = getRecordedSize(dependency.getSource());
+            if (recorded != null) {
+                downloadSizes.put(dependency.getSource(), Long.parseLong(recorded));
+                origins.put(dependency.getSource(), "recorded");
+            } else {
+                unknown.add(dependency);
+            }
+        }
+        requestSizes(unknown, downloadSizes, origins, threads);
+
+        // largest first (unknown sizes could be large too)
+        Collections.sort(downloads, new Comparator<Dependency>() {
+            @Override
+            public int compare(Dependency a, Dependency b) {
+                long sizeA = downloadSizes.get(a.getSource());
+                long sizeB = downloadSizes.get(b.getSource());
+                if (sizeA < 0 || sizeB < 0) {
+                    return Long.compare(sizeA, sizeB);
+                }
+                return Long.compare(sizeB, sizeA);
+            }
+        });
+        order.addAll(downloads);
+
+        // show decisions
+        listener.taskStarted("Schedule " + downloads.size() + " downloads (largest first), " +
+                (order.size() - downloads.size()) + " files available");
+        int position = 0;
+        for (Dependency dependency: order) {
+            String source = dependency.getSource();
+            if (available.containsKey(source)) {
+                listener.message("#" + (++position) + " " + available.get(source) + ": " + source);
+            } else if (downloadSizes.get(source) < 0) {
+                listener.message("#" + (++position) + " unknown size: " + source);
+            } else {
+                listener.message("#" + (++position) + " " +
+                        Downloader.convertSize(downloadSizes.get(source)) +
+                        " (" + origins.get(source) + "): " + source);
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Record the size of a downloaded file for the next runs
+     * @param source Source URL
+     * @param size Size of the file
+     */
+    public synchronized void record(String source, long size) {
+        sizes.setProperty(source, Long.toString(size));
+    }
+
+    /**
+     * Store the recorded sizes
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        File directory = sizesFile.getAbsoluteFile().getParentFile();
+        Files.createDirectories(directory.toPath());
+
+        // write into temp file and move it into place (parallel runs)
+        File tmpFile = File.createTempFile("sizes", ".tmp", directory);
+        try {
+            OutputStream out = new FileOutputStream(tmpFile);
+            try {
+                sizes.store(out, "Download sizes of DependencyDownloader");
+            } finally {
+                out.close();
+            }
+            Files.move(tmpFile.toPath(), sizesFile.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+    }
+
+    /**
+     * Get a recorded size
+     * @param source Source URL
+     * @return Size as string or null if not recorded
+     */
+    private synchronized String getRecordedSize(String source) {
+        String size = sizes.getProperty(source);
+        if (size != null && !size.matches("[0-9]+")) {
+            return null;
+        }
+        return size;
+    }
+
+    /**
+     * Request the sizes of the files with parallel HEAD requests
+     * @param dependencies Dependencies without known size
+     * @param downloadSizes Map for the sizes (-1 if unknown)
+     * @param origins Map for the origins of the sizes
+     * @param threads Amount of parallel requests
+     * @throws IOException
+     */
+    private void requestSizes(List<Dependency> dependencies,
+                              Map<String, Long> downloadSizes, Map<String, String> origins,
+                              int threads) throws IOException {
+        if (dependencies.isEmpty()) {
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(threads, dependencies.size()));
+        Map<String, Future<Long>> requests = new LinkedHashMap<>();
+        for (final Dependency dependency: dependencies) {
+            requests.put(dependency.getSource(), executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    try {
+                        return downloader.getContentLength(dependency.getSource());
+                    } catch (IOException e) {
+                        // the download reports the error
+                        return -1L;
+                    }
+                }
+            }));
+        }
+        executor.shutdown();
+
+        try {
+            for (Map.Entry<String, Future<Long>> request: requests.entrySet()) {
+                downloadSizes.put(request.getKey(), request.getValue().get());
+                origins.put(request.getKey(), "HEAD");
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for HEAD requests");
+
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
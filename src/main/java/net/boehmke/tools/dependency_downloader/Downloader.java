@@ -8,10 +8,15 @@
 package net.boehmke.tools.dependency_downloader;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Simple HTTP download functionality
@@ -22,6 +27,77 @@ public class Downloader {
      */
     private Proxy proxy;
 
+    /**
+     * Limiter for the bandwidth of all downloads (null if unlimited)
+     */
+    private RateLimiter rateLimiter = null;
+
+    /**
+     * Limiter for the bandwidth of single hosts
+     */
+    private final Map<String, RateLimiter> hostRateLimiters = new HashMap<>();
+
+    /**
+     * Timeout for the connect in ms
+     */
+    private int connectTimeout = 30000;
+
+    /**
+     * Timeout for a single read in ms
+     */
+    private int readTimeout = 60000;
+
+    /**
+     * Amount of retries for a failed download
+     */
+    private int retries = 3;
+
+    /**
+     * Delay before the first retry in ms
+     */
+    private long retryBaseDelay = 1000;
+
+    /**
+     * Maximal delay between retries in ms
+     */
+    private long retryMaxDelay = 30000;
+
+    /**
+     * Minimal average download speed in bytes per second (0 = disabled)
+     */
+    private long minSpeed = 0;
+
+    /**
+     * Time in ms the minimal download speed is averaged over
+     */
+    private long minSpeedTime = 30000;
+
+    /**
+     * If true the download progress is shown
+     */
+    private boolean showProgress = true;
+
+    /**
+     * Amount of buffers between the network reader and the file writer
+     * (0 to write in the reading thread)
+     */
+    private int writeBuffers = 8;
+
+    /**
+     * Adaptive limit of the parallel requests per host (null for no limit)
+     */
+    private HostConcurrency concurrency = null;
+
+    /**
+     * Base URL of a mirror server (null for direct downloads)
+     */
+    private String mirror = null;
+
+    /**
+     * Listener for progress and metrics
+     */
+    private DependencyListener listener = new ConsoleListener();
+
     /**
      * Create the downloader
      * @param proxyUrl Proxy URL (Auth not supported)
@@ -49,6 +125,143 @@ public class Downloader {
         }
     }
 
+    /**
+     * Limit the bandwidth of all downloads
+     * @param rate Rate in bytes per second (0 for unlimited)
+     */
+    public void setRateLimit(long rate) {
+        if (rate > 0) {
+            rateLimiter = new RateLimiter(rate);
+        } else {
+            rateLimiter = null;
+        }
+    }
+
+    /**
+     * Limit the bandwidth of all downloads from the given host
+     *
+     * The host is compared with the host of the source URL (also if the
+     * downloads use a mirror).
+     * @param host Host name
+     * @param rate Rate in bytes per second (0 for unlimited)
+     */
+    public void setHostRateLimit(String host, long rate) {
+        synchronized (hostRateLimiters) {
+            if (rate > 0) {
+                hostRateLimiters.put(host.toLowerCase(), new RateLimiter(rate));
+            } else {
+                hostRateLimiters.remove(host.toLowerCase());
+            }
+        }
+    }
+
+    /**
+     * Set the host limits from a list like "example.com=1M,other.org=500K"
+     * @param limits List of host limits
+     * @throws NumberFormatException
+     */
+    public void setHostRateLimits(String limits) throws NumberFormatException {
+        for (String limit: limits.split(",")) {
+            if (limit.trim().isEmpty()) {
+                continue;
+            }
+            int split = limit.indexOf('=');
+            if (split < 1) {
+                throw new NumberFormatException("Invalid host rate limit: " + limit);
+            }
+            setHostRateLimit(limit.substring(0, split).trim(),
+                             RateLimiter.parseRate(limit.substring(split+1)));
+        }
+    }
+
+    /**
+     * Set the timeouts of the connection
+     * @param connectTimeout Timeout for the connect in ms (0 for infinite)
+     * @param readTimeout Timeout for a single read in ms (0 for infinite)
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Set the amount of retries for a failed download
+     * @param retries Amount of retries
+     */
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * Set the stall detection of downloads
+     * @param minSpeed Minimal average speed in bytes per second (0 to disable)
+     * @param time Time in ms the speed is averaged over
+     */
+    public void setStallDetection(long minSpeed, long time) {
+        this.minSpeed = minSpeed;
+        this.minSpeedTime = time;
+    }
+
+    /**
+     * Set the amount of buffers of the write-behind stage
+     *
+     * Downloaded data is written by an extra thread, so a slow disk does not
+     * stop reading from the network until all buffers are filled.
+     * @param buffers Amount of buffers (0 to write in the reading thread)
+     */
+    public void setWriteBuffers(int buffers) {
+        this.writeBuffers = Math.max(0, buffers);
+    }
+
+    /**
+     * Enable the adaptive limit of the parallel requests per host
+     *
+     * The limit of each host starts at the initial limit, is raised while
+     * the throughput of the host improves and is halved on errors, 429/503
+     * responses or rising response times.
+     * @param initialLimit Parallel requests of a new host
+     * @param maxLimit Highest limit (0 to disable the adaptive limit)
+     */
+    public void setAdaptiveConcurrency(int initialLimit, int maxLimit) {
+        this.concurrency = maxLimit > 0 ? new HostConcurrency(initialLimit, maxLimit) : null;
+    }
+
+    /**
+     * @return Adaptive limit of the parallel requests per host (null if disabled)
+     */
+    public HostConcurrency getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Enable or disable the progress output (e.g. for parallel downloads)
+     * @param showProgress True to show the progress
+     */
+    public void setShowProgress(boolean showProgress) {
+        this.showProgress = showProgress;
+    }
+
+    /**
+     * Set the listener for progress and metrics
+     * @param listener Listener
+     */
+    public void setListener(DependencyListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Download all files through a mirror (e.g. the serve mode of another
+     * instance). The URL "http://host/path" is requested as
+     * "MIRROR/http/host/path".
+     * @param mirror Base URL of the mirror or null to disable
+     */
+    public void setMirror(String mirror) {
+        if (mirror != null && mirror.endsWith("/")) {
+            mirror = mirror.substring(0, mirror.length()-1);
+        }
+        this.mirror = mirror;
+    }
+
     /**
      * Download the given file
      * @param source Source URL
@@ -59,14 +272,6 @@ public class Downloader {
         // get file object for destination file
         File destinationFile = new File(destination);
 
-        // convert string to URL object
-        URL url = new URL(source);
-
-        // send request to server
-        HttpURLConnection request = (HttpURLConnection)url.openConnection(proxy);
-        // enable redirect
-        request.setInstanceFollowRedirects(true);
-
         // check if the destination is a directory
         if (destination.endsWith("/")) {
             // get the filename from source url
@@ -78,60 +283,579 @@ public class Downloader {
 
         // create parent directory ifg not exist
         if (destinationFile.getParentFile() != null &&
-            !destinationFile.getParentFile().exists() &&
-            !destinationFile.getParentFile().mkdirs()) {
+            !destinationFile.getParentFile().mkdirs() &&
+            !destinationFile.getParentFile().isDirectory()) {
 
             throw new IOException("Failed to create destination directory: " +
                     destinationFile.getParent());
         }
 
-        // get out stream
-        FileOutputStream out = new FileOutputStream(destinationFile);
+        download(source, new DownloadBuffer(destinationFile, 0));
+    }
+
+    /**
+     * Download the given file into a buffer (memory or file)
+     * @param source Source URL
+     * @param buffer Destination buffer
+     * @throws IOException
+     */
+    public void download(String source, DownloadBuffer buffer) throws IOException {
+        // convert string to URL object (redirect to mirror if set)
+        URL url = getUrl(source);
+
+        // remove data of older runs (only bytes of this run are resumed)
+        buffer.reset();
+
+        // try download until success or no retries left
+        for (int attempt = 0; ; ++attempt) {
+            try {
+                // first attempt starts at 0, retries continue at the last byte
+                transferLimited(source, url, buffer, attempt == 0 ? 0 : buffer.length());
+                return;
+
+            } catch (IOException e) {
+                waitForRetry(source, attempt, e);
+            }
+        }
+    }
+
+    /**
+     * Wait before the retry of a failed download (exponential backoff)
+     * @param source Source URL
+     * @param attempt Number of the failed attempt (0 for the first)
+     * @param e Exception of the failed attempt
+     * @throws IOException The exception of the attempt if no retry is left or useful
+     */
+    private void waitForRetry(String source, int attempt, IOException e) throws IOException {
+        if (attempt >= retries || !isRetryable(e)) {
+            throw e;
+        }
 
-        // get the size of the content
-        long fileSize = request.getContentLengthLong();
-        System.out.println("  Download (Size " + convertSize(fileSize) + ")...");
+        // exponential backoff with jitter (50-100% of delay)
+        long delay = Math.min(retryMaxDelay, retryBaseDelay << attempt);
+        delay = delay/2 + (long) (Math.random() * (delay/2));
+
+        listener.downloadRetry(source, attempt+1, retries, delay, e);
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for retry");
+        }
+    }
+
+    /**
+     * Get the size of a file without downloading it (HEAD request)
+     * @param source Source URL
+     * @return Size of the file or -1 if unknown
+     * @throws IOException
+     */
+    public long getContentLength(String source) throws IOException {
+        URLConnection request = getUrl(source).openConnection(proxy);
+        request.setConnectTimeout(connectTimeout);
+        request.setReadTimeout(readTimeout);
+
+        if (request instanceof HttpURLConnection) {
+            HttpURLConnection httpRequest = (HttpURLConnection) request;
+            httpRequest.setInstanceFollowRedirects(true);
+            httpRequest.setRequestMethod("HEAD");
+            try {
+                if (httpRequest.getResponseCode() != 200) {
+                    return -1;
+                }
+                return httpRequest.getContentLengthLong();
+            } finally {
+                httpRequest.disconnect();
+            }
+        }
+
+        // other protocols (e.g. file:) know the size without a request
+        try {
+            return request.getContentLengthLong();
+        } finally {
+            request.getInputStream().close();
+        }
+    }
+
+    /**
+     * Open a connection to the server of a source and keep it for the next
+     * request (TCP connect and TLS handshake before the download)
+     * @param source Source URL
+     * @throws IOException
+     */
+    public void connect(String source) throws IOException {
+        URLConnection request = getUrl(source).openConnection(proxy);
+        request.setConnectTimeout(connectTimeout);
+        request.setReadTimeout(readTimeout);
+        if (!(request instanceof HttpURLConnection)) {
+            return;
+        }
+
+        HttpURLConnection httpRequest = (HttpURLConnection) request;
+        httpRequest.setInstanceFollowRedirects(true);
+        httpRequest.setRequestMethod("HEAD");
+
+        // closing the stream (without disconnect) keeps the connection alive
+        InputStream in = httpRequest.getResponseCode() < 400 ?
+                httpRequest.getInputStream() : httpRequest.getErrorStream();
+        if (in != null) {
+            in.close();
+        }
+    }
+
+    /**
+     * @return Proxy of the downloads (Proxy.NO_PROXY for direct connections)
+     */
+    public Proxy getProxy() {
+        return proxy;
+    }
+
+    /**
+     * Check if the downloads connect to the servers directly
+     * @return False if a proxy is used (the proxy resolves the host names)
+     */
+    public boolean isDirect() {
+        return proxy == Proxy.NO_PROXY;
+    }
+
+    /**
+     * Download a part of a file (HTTP Range request) into a file channel
+     *
+     * Failed requests are retried with the same backoff as downloads and
+     * stalled transfers fail like downloads. A retry requests the whole
+     * part again (the data is written at fixed positions).
+     * @param source Source URL
+     * @param offset Offset of the part in the source file
+     * @param length Length of the part
+     * @param out Channel of the destination file (written at the same offset)
+     * @throws IOException
+     */
+    public void downloadRange(String source, long offset, long length, FileChannel out)
+            throws IOException {
+        URL url = getUrl(source);
+
+        // try download until success or no retries left
+        for (int attempt = 0; ; ++attempt) {
+            try {
+                transferRange(source, url, offset, length, out);
+                return;
+
+            } catch (IOException e) {
+                waitForRetry(source, attempt, e);
+            }
+        }
+    }
+
+    /**
+     * Download a part of a file (HTTP Range request) into a file channel
+     * @param source Source URL of the dependency (for the rate limits)
+     * @param url Source URL
+     * @param offset Offset of the part in the source file
+     * @param length Length of the part
+     * @param out Channel of the destination file (written at the same offset)
+     * @throws IOException
+     */
+    private void transferRange(String source, URL url, long offset, long length, FileChannel out)
+            throws IOException {
+        HttpURLConnection request = (HttpURLConnection)url.openConnection(proxy);
+        request.setInstanceFollowRedirects(true);
+        setTimeouts(request);
+        request.setRequestProperty("Range", "bytes=" + offset + "-" + (offset + length - 1));
+
+        // only a partial response at the requested position is usable
+        int responseCode = request.getResponseCode();
+        String range = request.getHeaderField("Content-Range");
+        if (responseCode != 206 || range == null || !range.startsWith("bytes " + offset + "-")) {
+            request.disconnect();
+            throw new DownloadException("No range response: " + responseCode + " " +
+                    request.getResponseMessage(), responseCode,
+                    responseCode >= 500 || responseCode == 408 || responseCode == 429);
+        }
+
+        // get bandwidth limiter of the host
+        RateLimiter hostRateLimiter = getHostRateLimiter(source);
+
+        InputStream in = request.getInputStream();
+        ByteBuffer buffer = BufferPool.acquireHeap(Math.min(length, 1024*64));
+        try {
+            // read the stream into the array of the heap buffer
+            byte[] data = buffer.array();
+            long position = offset;
+            long end = offset + length;
+
+            // start of the current stall detection window
+            long windowStart = System.nanoTime();
+            long windowSize = 0;
+
+            int size;
+            while (position < end) {
+                if ((size = in.read(data, 0, (int) Math.min(data.length, end - position))) == -1) {
+                    break;
+                }
+
+                // wait for bandwidth if limited
+                if (hostRateLimiter != null) {
+                    hostRateLimiter.acquire(size);
+                }
+                if (rateLimiter != null) {
+                    rateLimiter.acquire(size);
+                }
+
+                buffer.clear();
+                buffer.limit(size);
+                while (buffer.hasRemaining()) {
+                    position += out.write(buffer, position);
+                }
+
+                // check the average speed of the last window
+                if (minSpeed > 0) {
+                    windowSize += size;
+                    long elapsed = (System.nanoTime() - windowStart) / 1000000;
+                    if (elapsed >= minSpeedTime) {
+                        if (windowSize * 1000 / elapsed < minSpeed) {
+                            throw new DownloadException("Download stalled (" +
+                                    convertSize(windowSize * 1000 / elapsed) + "/s)",
+                                    -1, true);
+                        }
+                        windowStart = System.nanoTime();
+                        windowSize = 0;
+                    }
+                }
+            }
+
+            // check if the connection was closed too early
+            if (position < end) {
+                throw new DownloadException("Connection closed after " +
+                        convertSize(position - offset), -1, true);
+            }
+        } finally {
+            in.close();
+            BufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Get the URL of a source (redirected to the mirror if set)
+     * @param source Source URL
+     * @return URL object
+     * @throws MalformedURLException
+     */
+    URL getUrl(String source) throws MalformedURLException {
+        if (mirror != null && source.matches("https?://.*")) {
+            return new URL(mirror + "/" + source.replaceFirst("://", "/"));
+        }
+        return new URL(source);
+    }
+
+    /**
+     * Get the bandwidth limiter of the host of a source
+     *
+     * The limits belong to the host of the source URL, so they apply also
+     * if the file is downloaded through the mirror.
+     * @param source Source URL (not redirected to the mirror)
+     * @return Limiter or null if the host is not limited
+     */
+    private RateLimiter getHostRateLimiter(String source) {
+        String host;
+        try {
+            host = new URL(source).getHost().toLowerCase();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+        synchronized (hostRateLimiters) {
+            return hostRateLimiters.get(host);
+        }
+    }
+
+    /**
+     * Download the given URL to a buffer within the adaptive limit of the host
+     * @param source Source URL of the dependency (for the listener)
+     * @param url Source URL
+     * @param destination Destination buffer
+     * @param offset Already downloaded bytes that should not be requested again
+     * @throws IOException
+     */
+    private void transferLimited(String source, URL url, DownloadBuffer destination, long offset)
+            throws IOException {
+        if (concurrency == null) {
+            transferFile(source, url, destination, offset);
+            return;
+        }
+
+        // wait for a free request slot of the host
+        String host = url.getHost().toLowerCase();
+        long started = concurrency.acquire(host);
+        try {
+            report(concurrency.finished(host, transferFile(source, url, destination, offset)));
+
+        } catch (IOException e) {
+            if (isOverload(e)) {
+                report(concurrency.overloaded(host, started, getOverloadReason(e)));
+            }
+            throw e;
+
+        } finally {
+            concurrency.release(host);
+        }
+    }
+
+    /**
+     * Download the given URL to a buffer
+     * @param source Source URL of the dependency (for the listener)
+     * @param url Source URL
+     * @param destination Destination buffer
+     * @param offset Already downloaded bytes that should not be requested again
+     * @return Amount of transferred bytes
+     * @throws IOException
+     */
+    private long transferFile(String source, URL url, DownloadBuffer destination, long offset)
+            throws IOException {
+        // send request to server
+        HttpURLConnection request = (HttpURLConnection)url.openConnection(proxy);
+        // enable redirect
+        request.setInstanceFollowRedirects(true);
+        // set timeouts
+        setTimeouts(request);
+
+        // request only missing part
+        if (offset > 0) {
+            request.setRequestProperty("Range", "bytes=" + offset + "-");
+        }
 
         // check response code of request
-        if (request.getResponseCode() != 200) {
-            throw new IOException("Bad response: " + request.getResponseMessage());
+        long requestStart = System.nanoTime();
+        int responseCode = request.getResponseCode();
+        if (concurrency != null) {
+            report(concurrency.responded(url.getHost().toLowerCase(), requestStart,
+                    (System.nanoTime() - requestStart) / 1000000));
         }
+        if (responseCode == 200) {
+            // server sends the whole file -> start from the beginning
+            if (offset > 0) {
+                listener.message("Server does not support resume, restart download");
+            }
+            offset = 0;
+
+        } else if (responseCode == 206) {
+            // check that the server continues at the expected position
+            String range = request.getHeaderField("Content-Range");
+            if (range == null || !range.startsWith("bytes " + offset + "-")) {
+                request.disconnect();
+                // remove partial data to force a full download on retry
+                destination.reset();
+                throw new DownloadException("Invalid range response: " + range,
+                                            responseCode, true);
+            }
+            listener.message("Resume download at " + convertSize(offset));
+
+        } else {
+            request.disconnect();
+            if (responseCode == 416) {
+                // remove partial data to force a full download on retry
+                destination.reset();
+            }
+            throw new DownloadException("Bad response: " + responseCode + " " +
+                    request.getResponseMessage(), responseCode,
+                    responseCode >= 500 || responseCode == 408 ||
+                    responseCode == 416 || responseCode == 429);
+        }
+
+        // get the size of the content
+        long fileSize = request.getContentLengthLong();
+        if (fileSize >= 0) {
+            fileSize += offset;
+        }
+        listener.message("Download (Size " + convertSize(fileSize) + ")...");
+        long start = System.nanoTime();
+
+        // get out stream (append if resumed)
+        OutputStream out = destination.open(offset > 0);
 
         // get in stream
         InputStream in = request.getInputStream();
 
-        // prepare buffer
-        byte[] buffer = new byte[1024*10];
+        // size of the pooled buffers
+        long bufferSize = fileSize >= 0 ? Math.min(fileSize - offset, 1024*64) : -1;
+
+        // write-behind stage (null to write in this thread)
+        WriteBehind writeBehind = null;
+        ByteBuffer buffer = null;
+
+        try {
+            // get bandwidth limiter of the host
+            RateLimiter hostRateLimiter = getHostRateLimiter(source);
 
-        // already loaded data size
-        long loadedSize = 0;
+            // prepare heap buffer (the streams read and write arrays)
+            if (writeBuffers > 0) {
+                writeBehind = new WriteBehind(out, writeBuffers, bufferSize);
+                buffer = writeBehind.take();
+            } else {
+                buffer = BufferPool.acquireHeap(bufferSize);
+            }
+
+            // already loaded data size
+            long loadedSize = offset;
+
+            // last shown progress
+            long lastProgress = -1;
+
+            // start of the current stall detection window
+            long windowStart = System.nanoTime();
+            long windowSize = 0;
+
+            // read data
+            int size;
+            while ((size = in.read(buffer.array(), buffer.position(), buffer.remaining())) != -1) {
+                buffer.position(buffer.position() + size);
+                // wait for bandwidth if limited
+                if (hostRateLimiter != null) {
+                    hostRateLimiter.acquire(size);
+                }
+                if (rateLimiter != null) {
+                    rateLimiter.acquire(size);
+                }
 
-        // last shown progress
-        long lastProgress = -1;
+                // write data to file (or queue it for the writer thread)
+                if (writeBehind != null) {
+                    writeBehind.submit(buffer);
+                    buffer = writeBehind.take();
+                } else {
+                    out.write(buffer.array(), 0, size);
+                    buffer.clear();
+                }
 
-        // read data
-        int size;
-        while ((size = in.read(buffer)) != -1) {
-            // write data to file
-            out.write(buffer, 0, size);
+                // add size to loaded data size
+                loadedSize += size;
+
+                // check the average speed of the last window
+                if (minSpeed > 0) {
+                    windowSize += size;
+                    long elapsed = (System.nanoTime() - windowStart) / 1000000;
+                    if (elapsed >= minSpeedTime) {
+                        if (windowSize * 1000 / elapsed < minSpeed) {
+                            throw new DownloadException("Download stalled (" +
+                                    convertSize(windowSize * 1000 / elapsed) + "/s)",
+                                    -1, true);
+                        }
+                        windowStart = System.nanoTime();
+                        windowSize = 0;
+                    }
+                }
 
-            // add size to loaded data size
-            loadedSize += size;
+                // update progress if changed
+                if (showProgress && fileSize > 0 && loadedSize*100/fileSize > lastProgress) {
+                    lastProgress = loadedSize*100/fileSize;
+                    listener.downloadProgress(source, loadedSize, fileSize);
+                }
+            }
 
-            // calculate progress
-            long pro = loadedSize*100/fileSize;
+            // wait until all data is written
+            if (writeBehind != null) {
+                WriteBehind stage = writeBehind;
+                writeBehind = null;
+                stage.close();
+
+                // disk was slower than the network
+                if (stage.getBackPressureCount() > 0) {
+                    listener.message(String.format(
+                            "Write-behind: waited %d times (%d ms) for the disk, queue max %d/%d avg %.1f",
+                            stage.getBackPressureCount(), stage.getBackPressureMillis(),
+                            stage.getMaxOccupancy(), stage.getCapacity(),
+                            stage.getAverageOccupancy()));
+                }
+            }
 
-            // update progress if changed
-            if (pro > lastProgress) {
-                lastProgress = pro;
-                System.out.print("\r  " + pro + "%");
+            // check if the connection was closed too early
+            if (fileSize >= 0 && loadedSize < fileSize) {
+                throw new DownloadException("Connection closed after " +
+                        convertSize(loadedSize), -1, true);
+            }
+            listener.downloadFinished(source, loadedSize - offset,
+                                      (System.nanoTime() - start) / 1000000);
+            return loadedSize - offset;
+
+        } finally {
+            // write the queued data (a resumed download continues after it)
+            if (writeBehind != null) {
+                try {
+                    writeBehind.close();
+                } catch (IOException e) {
+                    // the error of the download is thrown
+                }
             }
+
+            // close streams
+            in.close();
+            out.close();
+            BufferPool.release(buffer);
         }
-        System.out.println("\r  Done!");
+    }
 
-        // close streams
-        in.close();
-        out.close();
+    /**
+     * Set the timeouts of a download request
+     * @param request Request
+     */
+    private void setTimeouts(HttpURLConnection request) {
+        request.setConnectTimeout(connectTimeout);
+        // a read without data longer than the stall window is a stall too
+        if (minSpeed > 0 && (readTimeout == 0 || minSpeedTime < readTimeout)) {
+            request.setReadTimeout((int) minSpeedTime);
+        } else {
+            request.setReadTimeout(readTimeout);
+        }
+    }
+
+    /**
+     * Check if a retry of a failed download could succeed
+     * @param e Exception of the failed download
+     * @return True if the download should be retried
+     */
+    private boolean isRetryable(IOException e) {
+        if (e instanceof DownloadException) {
+            return ((DownloadException) e).isRetryable();
+        }
+        // do not retry if the URL is invalid
+        return !(e instanceof MalformedURLException ||
+                 e instanceof UnknownServiceException ||
+                 e instanceof InterruptedIOException &&
+                         !(e instanceof SocketTimeoutException));
+    }
+
+    /**
+     * Check if a failed download is a sign of an overloaded host
+     * @param e Exception of the failed download
+     * @return True if the parallel requests to the host should be reduced
+     */
+    private boolean isOverload(IOException e) {
+        if (e instanceof DownloadException) {
+            // invalid ranges are no sign of load
+            int responseCode = ((DownloadException) e).getResponseCode();
+            return responseCode != 206 && responseCode != 416 &&
+                    ((DownloadException) e).isRetryable();
+        }
+        return isRetryable(e);
+    }
+
+    /**
+     * Get the reason of an overload for the metrics output
+     * @param e Exception of the failed download
+     * @return Reason (e.g. "HTTP 503")
+     */
+    private static String getOverloadReason(IOException e) {
+        if (e instanceof DownloadException && ((DownloadException) e).getResponseCode() > 0) {
+            return "HTTP " + ((DownloadException) e).getResponseCode();
+        }
+        return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+    }
+
+    /**
+     * Show a change of the adaptive concurrency
+     * @param change Message of the change (null if unchanged)
+     */
+    private void report(String change) {
+        if (change != null) {
+            listener.message(change);
+        }
     }
 
     /**
@@ -139,7 +863,7 @@ public class Downloader {
      * @param size Size to convert
      * @return Size as string
      */
-    private String convertSize(long size) {
+    static String convertSize(long size) {
         // lower than 2KB -> show as byte
         if (size < 1024*2) {
             return size + " B";
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.util.*;
+
+/**
+ * Selection of archive entries by sub directory and include/exclude globs
+ *
+ * All include (and all exclude) patterns are compiled into one tree of path
+ * segments. Literal segments are looked up in a map, so the cost of a match
+ * depends on the depth of the entry and not on the amount of patterns.
+ *
+ * Supported glob syntax: "*" and "?" inside a segment, "**" for any amount
+ * of segments. A pattern ending with "/" selects a directory and everything
+ * below it.
+ */
+public class EntryFilter {
+    /**
+     * Node of the compiled pattern tree
+     */
+    private static class Node {
+        /**
+         * Children for literal segments
+         */
+        final Map<String, Node> literals = new HashMap<>();
+        /**
+         * Wildcard segments of the children (same order as wildcardNodes)
+         */
+        final List<String> wildcards = new ArrayList<>();
+        /**
+         * Children for wildcard segments
+         */
+        final List<Node> wildcardNodes = new ArrayList<>();
+        /**
+         * Child for "**" (matches any amount of segments)
+         */
+        Node anyDepth = null;
+        /**
+         * True if a pattern ends at this node
+         */
+        boolean terminal = false;
+        /**
+         * True if this node is a "**" node (consumes any segment)
+         */
+        boolean loop = false;
+    }
+
+    /**
+     * Sub directory that should be extracted
+     */
+    private final String subdir;
+
+    /**
+     * Compiled include patterns (null if everything is included)
+     */
+    private final Node includes;
+
+    /**
+     * Compiled exclude patterns (null if nothing is excluded)
+     */
+    private final Node excludes;
+
+    /**
+     * Create the filter
+     * @param subdir Sub directory that should be extracted (or empty)
+     * @param include Comma separated list of include globs (or empty)
+     * @param exclude Comma separated list of exclude globs (or empty)
+     */
+    public EntryFilter(String subdir, String include, String exclude) {
+        this.subdir = subdir;
+        this.includes = compile(include);
+        this.excludes = compile(exclude);
+    }
+
+    /**
+     * Check if the filter selects all entries
+     * @return True if no sub directory or patterns are set
+     */
+    public boolean isEmpty() {
+        return subdir.isEmpty() && includes == null && excludes == null;
+    }
+
+    /**
+     * Get the destination name of an archive entry
+     * @param name Name of the entry in the archive
+     * @return Name relative to the destination or null if the entry is skipped
+     */
+    public String map(String name) {
+        // if sub directory is set copy only this files
+        if (!subdir.isEmpty()) {
+            if (name.startsWith(subdir)) {
+                name = name.substring(subdir.length());
+            } else {
+                return null;
+            }
+        }
+
+        // check patterns (relative to sub directory)
+        if (includes != null || excludes != null) {
+            String[] segments = split(name);
+            if (includes != null && !matches(includes, segments)) {
+                return null;
+            }
+            if (excludes != null && matches(excludes, segments)) {
+                return null;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Compile a pattern list into a pattern tree
+     * @param patterns Comma separated list of globs
+     * @return Root node or null if the list is empty
+     */
+    private static Node compile(String patterns) {
+        Node root = null;
+
+        for (String pattern: patterns.split(",")) {
+            pattern = pattern.trim().replace('\\', '/');
+            if (pattern.isEmpty()) {
+                continue;
+            }
+            // directory selects everything below
+            if (pattern.endsWith("/")) {
+                pattern += "**";
+            }
+            if (root == null) {
+                root = new Node();
+            }
+
+            // add segments to the tree
+            Node node = root;
+            for (String segment: split(pattern)) {
+                if (segment.equals("**")) {
+                    if (node.anyDepth == null) {
+                        node.anyDepth = new Node();
+                        node.anyDepth.loop = true;
+                    }
+                    node = node.anyDepth;
+
+                } else if (segment.contains("*") || segment.contains("?")) {
+                    int index = node.wildcards.indexOf(segment);
+                    if (index == -1) {
+                        node.wildcards.add(segment);
+                        node.wildcardNodes.add(new Node());
+                        index = node.wildcards.size()-1;
+                    }
+                    node = node.wildcardNodes.get(index);
+
+                } else {
+                    Node child = node.literals.get(segment);
+                    if (child == null) {
+                        child = new Node();
+                        node.literals.put(segment, child);
+                    }
+                    node = child;
+                }
+            }
+            node.terminal = true;
+        }
+        return root;
+    }
+
+    /**
+     * Check if the path segments match the pattern tree
+     * @param root Root node of the pattern tree
+     * @param segments Path segments
+     * @return True if any pattern matches
+     */
+    private static boolean matches(Node root, String[] segments) {
+        // simulate all possible positions in the tree at once
+        List<Node> states = new ArrayList<>();
+        addState(states, root);
+
+        for (String segment: segments) {
+            List<Node> next = new ArrayList<>();
+            for (Node state: states) {
+                if (state.loop) {
+                    addState(next, state);
+                }
+                Node child = state.literals.get(segment);
+                if (child != null) {
+                    addState(next, child);
+                }
+                for (int i = 0; i < state.wildcards.size(); ++i) {
+                    if (matchSegment(state.wildcards.get(i), segment)) {
+                        addState(next, state.wildcardNodes.get(i));
+                    }
+                }
+            }
+            if (next.isEmpty()) {
+                return false;
+            }
+            states = next;
+        }
+
+        for (Node state: states) {
+            if (state.terminal) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add a node and the nodes reachable without a segment ("**" matches zero segments)
+     * @param states State list
+     * @param node Node to add
+     */
+    private static void addState(List<Node> states, Node node) {
+        while (node != null && !states.contains(node)) {
+            states.add(node);
+            node = node.anyDepth;
+        }
+    }
+
+    /**
+     * Match a single segment against a glob with "*" and "?"
+     * @param pattern Glob of the segment
+     * @param segment Path segment
+     * @return True if the segment matches
+     */
+    private static boolean matchSegment(String pattern, String segment) {
+        int p = 0;
+        int s = 0;
+        int star = -1;
+        int starMatch = 0;
+
+        while (s < segment.length()) {
+            if (p < pattern.length() &&
+                (pattern.charAt(p) == '?' || pattern.charAt(p) == segment.charAt(s))) {
+                ++p;
+                ++s;
+            } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                star = p++;
+                starMatch = s;
+            } else if (star != -1) {
+                // let the last "*" consume one more char
+                p = star + 1;
+                s = ++starMatch;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            ++p;
+        }
+        return p == pattern.length();
+    }
+
+    /**
+     * Split a path into its segments
+     * @param path Path to split
+     * @return Non empty segments of the path
+     */
+    private static String[] split(String path) {
+        List<String> segments = new ArrayList<>();
+        for (String segment: path.split("/")) {
+            if (!segment.isEmpty() && !segment.equals(".")) {
+                segments.add(segment);
+            }
+        }
+        return segments.toArray(new String[segments.size()]);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Cache of extracted archives that is installed with hard links
+ *
+ * Each archive is extracted once per archive digest and selection into
+ * the cache directory. Installing it into a destination only creates the
+ * directories and a hard link for every file.
+ *
+ * Copy-on-write safety: a hard link shares the file content with the cache,
+ * so a tool that modifies an installed file in place also modifies the
+ * cached tree (and every other installation of it). The downloader itself
+ * never writes into an existing file, it always removes and recreates it,
+ * so repeated installs and extractions without the cache never change
+ * cached content. Tools that replace files (write new file + rename) are
+ * safe as well. If installed files are modified in place, the extract cache
+ * must not be used for them.
+ */
+public class ExtractCache {
+    /**
+     * Directory of the cache
+     */
+    private final File directory;
+
+    /**
+     * Create the extract cache
+     * @param path Path to the cache directory
+     * @throws IOException
+     */
+    public ExtractCache(String path) throws IOException {
+        directory = new File(path);
+
+        // create cache directory if not exists
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create cache directory: " + path);
+        }
+    }
+
+    /**
+     * Create the cache key of an extracted archive
+     * @param archiveDigest Digest of the archive content
+     * @param subdir Extracted sub directory of the archive
+     * @param include Include patterns of the extraction
+     * @param exclude Exclude patterns of the extraction
+     * @return Cache key
+     * @throws NoSuchAlgorithmException
+     */
+    public static String createKey(String archiveDigest, String subdir,
+                                   String include, String exclude)
+            throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA1");
+        digest.update((archiveDigest + "\n" + subdir).getBytes(StandardCharsets.UTF_8));
+
+        // keep keys of unfiltered archives stable
+        if (!include.isEmpty() || !exclude.isEmpty()) {
+            digest.update(("\n" + include + "\n" + exclude).getBytes(StandardCharsets.UTF_8));
+        }
+
+        String key = "";
+        for (byte b: digest.digest()) {
+            key += String.format("%02x", b);
+        }
+        return key;
+    }
+
+    /**
+     * Get the extracted tree of the given key
+     * @param key Cache key
+     * @return Directory of the tree or null if not cached
+     */
+    public File getTree(String key) {
+        File tree = new File(directory, key);
+        if (tree.isDirectory()) {
+            return tree;
+        }
+        return null;
+    }
+
+    /**
+     * Create a new staging directory for an extraction
+     * @return Staging directory
+     * @throws IOException
+     */
+    public File createStaging() throws IOException {
+        return Files.createTempDirectory(directory.toPath(), "staging").toFile();
+    }
+
+    /**
+     * Move a completely extracted staging directory into the cache
+     * @param staging Staging directory
+     * @param key Cache key
+     * @return Directory of the tree
+     * @throws IOException
+     */
+    public File commit(File staging, String key) throws IOException {
+        File tree = new File(directory, key);
+        try {
+            Files.move(staging.toPath(), tree.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+            // tree was created by a parallel run -> use it
+            DependencyInstaller.deleteDir(staging.getPath());
+        }
+        return tree;
+    }
+
+    /**
+     * Install the given tree into the destination with hard links
+     *
+     * If hard links are not supported (e.g. different file system) the
+     * files are copied.
+     * @param tree Directory of the extracted tree
+     * @param destination Destination directory
+     * @param listener Listener for messages
+     * @throws IOException
+     */
+    public static void install(File tree, String destination,
+                               final DependencyListener listener) throws IOException {
+        final Path source = tree.toPath();
+        final Path target = Paths.get(destination);
+
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            /**
+             * False if hard links failed once
+             */
+            private boolean useLinks = true;
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                    throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                    throws IOException {
+                Path link = target.resolve(source.relativize(file).toString());
+
+                // never write into an existing file (could be linked)
+                Files.deleteIfExists(link);
+
+                if (useLinks) {
+                    try {
+                        Files.createLink(link, file);
+                        return FileVisitResult.CONTINUE;
+
+                    } catch (IOException | UnsupportedOperationException e) {
+                        listener.message("Hard links not supported, copy files");
+                        useLinks = false;
+                    }
+                }
+                Files.copy(file, link);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
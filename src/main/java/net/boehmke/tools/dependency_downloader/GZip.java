@@ -9,6 +9,9 @@ package net.boehmke.tools.dependency_downloader;
 
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -20,31 +23,48 @@ public class GZip {
      * Decompress the given GZIP file
      * @param sourceFile Path to the GZIP file
      * @param destination Destination path for decompression
+     * @param listener Listener for the progress
      * @throws IOException
      */
-    public static void decompress(String sourceFile, String destination) throws IOException {
-        System.out.println("  GZip decompress...");
-
+    public static void decompress(String sourceFile, String destination,
+                                  DependencyListener listener) throws IOException {
         // get input stream
-        GZIPInputStream gzip =
-                new GZIPInputStream(new FileInputStream(sourceFile));
+        FileInputStream in = new FileInputStream(sourceFile);
+        try {
+            decompress(in, destination, listener);
+        } finally {
+            in.close();
+        }
+    }
 
-        // get output stream
-        FileOutputStream out = new FileOutputStream(destination);
+    /**
+     * Decompress the given GZIP stream
+     * @param in Stream with GZIP data
+     * @param destination Destination path for decompression
+     * @param listener Listener for the progress
+     * @throws IOException
+     */
+    public static void decompress(InputStream in, String destination,
+                                  DependencyListener listener) throws IOException {
+        listener.message("GZip decompress...");
+
+        // get input stream
+        GZIPInputStream gzip = new GZIPInputStream(in);
 
-        // prepare buffer
-        byte[] buffer = new byte[1024*10];
+        // replace existing file (never write into a maybe linked file)
+        Files.deleteIfExists(Paths.get(destination));
 
-        // read data
-        int size;
-        while ((size = gzip.read(buffer)) != -1) {
-            // write data to file
-            out.write(buffer, 0, size);
+        // get output stream
+        OutputStream out = Files.newOutputStream(Paths.get(destination),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            // copy data with a pooled heap buffer
+            BufferPool.copyAll(gzip, out, -1);
+        } finally {
+            // close streams
+            gzip.close();
+            out.close();
         }
-        System.out.println("  Done!");
-
-        // close streams
-        gzip.close();
-        out.close();
+        listener.stepFinished();
     }
 }
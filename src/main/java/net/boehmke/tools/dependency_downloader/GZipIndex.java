@@ -0,0 +1,1020 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.*;
+
+/**
+ * Index of access points into a GZip file
+ *
+ * A deflate stream can only be decompressed from its start because every
+ * block can refer to the last 32KB of output. An access point stores the
+ * bit position of a block start and the 32KB of output before it, so the
+ * decompression can start at the access point (zran).
+ *
+ * The index is built while the whole file is decompressed with an own
+ * inflater (java.util.zip does not report block boundaries). It is slower
+ * than GZIPInputStream, so it is only used if the index is required. Later
+ * decompressions start at the nearest access point with a raw Inflater
+ * and the stored window as dictionary.
+ *
+ * Layout (big endian):
+ * <pre>
+ *   "DDGZINDX"         magic (8 bytes)
+ *   int version        format version (1)
+ *   long archiveSize   size of the indexed GZip file
+ *   long archiveTime   modification time of the indexed GZip file
+ *   int count          amount of access points
+ *   count * access point:
+ *     long out         offset in the decompressed data
+ *     long in          byte offset in the GZip file
+ *     byte bits        bit offset in the byte
+ *     int length       length of the window (deflate compressed)
+ *     length bytes     window (last 32KB of output)
+ * </pre>
+ *
+ * Only the first member of a GZip file is indexed. For files with multiple
+ * members no index is created.
+ */
+public class GZipIndex {
+    /**
+     * Magic at the start of every index file
+     */
+    private static final byte[] magic = "DDGZINDX".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Version of the index format
+     */
+    private static final int version = 1;
+
+    /**
+     * Minimal distance of access points in the decompressed data
+     */
+    private static final long span = 4*1024*1024;
+
+    /**
+     * Size of the deflate window
+     */
+    private static final int windowSize = 32768;
+
+    /**
+     * Access point into the GZip file
+     */
+    private static class AccessPoint {
+        /**
+         * Offset in the decompressed data
+         */
+        final long out;
+        /**
+         * Byte offset in the GZip file
+         */
+        final long in;
+        /**
+         * Bit offset in the byte
+         */
+        final int bits;
+        /**
+         * Deflate compressed window
+         */
+        final byte[] window;
+
+        /**
+         * Create the access point
+         * @param out Offset in the decompressed data
+         * @param in Byte offset in the GZip file
+         * @param bits Bit offset in the byte
+         * @param window Deflate compressed window
+         */
+        AccessPoint(long out, long in, int bits, byte[] window) {
+            this.out = out;
+            this.in = in;
+            this.bits = bits;
+            this.window = window;
+        }
+    }
+
+    /**
+     * Access points ordered by offset
+     */
+    private final List<AccessPoint> points;
+
+    /**
+     * Create the index
+     * @param points Access points ordered by offset
+     */
+    private GZipIndex(List<AccessPoint> points) {
+        this.points = points;
+    }
+
+    /**
+     * @return Amount of access points
+     */
+    public int getSize() {
+        return points.size();
+    }
+
+    /**
+     * Open a stream of the decompressed data starting at the given offset
+     * @param archive GZip file
+     * @param offset Offset in the decompressed data
+     * @param length Amount of bytes provided by the stream
+     * @return Stream of the decompressed data
+     * @throws IOException
+     */
+    public InputStream open(File archive, long offset, final long length) throws IOException {
+        // get nearest access point before the offset
+        AccessPoint point = points.get(0);
+        for (AccessPoint p: points) {
+            if (p.out > offset) {
+                break;
+            }
+            point = p;
+        }
+
+        // open file at the access point
+        FileInputStream file = new FileInputStream(archive);
+        InputStream in;
+        final Inflater inflater = new Inflater(true);
+        try {
+            file.getChannel().position(point.in);
+            in = new BufferedInputStream(file, 65536);
+            if (point.bits > 0) {
+                in = new BitShiftInputStream(in, point.bits);
+            }
+
+            // restore window
+            byte[] window = decompressWindow(point.window);
+            if (window.length > 0) {
+                inflater.setDictionary(window);
+            }
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            inflater.end();
+            throw e;
+        }
+
+        InputStream data = new InflaterInputStream(in, inflater, 65536) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inflater.end();
+            }
+        };
+
+        // skip data between access point and offset
+        long skip = offset - point.out;
+        while (skip > 0) {
+            long skipped = data.skip(skip);
+            if (skipped <= 0) {
+                data.close();
+                throw new EOFException("Unexpected end of GZip data");
+            }
+            skip -= skipped;
+        }
+
+        // limit stream to the requested data
+        return new FilterInputStream(data) {
+            /**
+             * Remaining bytes of the stream
+             */
+            private long remaining = length;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int read = super.read(b, off, (int) Math.min(len, remaining));
+                if (read > 0) {
+                    remaining -= read;
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(Math.min(n, remaining));
+                remaining -= skipped;
+                return skipped;
+            }
+        };
+    }
+
+    /**
+     * Load the index of a GZip file
+     * @param indexFile Index file
+     * @param archive Indexed GZip file
+     * @return Index or null if it not exists or the GZip file was changed
+     * @throws IOException
+     */
+    public static GZipIndex load(File indexFile, File archive) throws IOException {
+        if (!indexFile.isFile()) {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            byte[] fileMagic = new byte[magic.length];
+            in.readFully(fileMagic);
+            if (!Arrays.equals(fileMagic, magic) || in.readInt() != version ||
+                    in.readLong() != archive.length() ||
+                    in.readLong() != archive.lastModified()) {
+                return null;
+            }
+
+            int count = in.readInt();
+            if (count < 1) {
+                return null;
+            }
+            List<AccessPoint> points = new ArrayList<>();
+            for (int i = 0; i < count; ++i) {
+                long out = in.readLong();
+                long pos = in.readLong();
+                int bits = in.readByte();
+                byte[] window = new byte[in.readInt()];
+                in.readFully(window);
+                points.add(new AccessPoint(out, pos, bits, window));
+            }
+            return new GZipIndex(points);
+
+        } catch (EOFException e) {
+            // incomplete index -> rebuild
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Save the index of a GZip file
+     * @param indexFile Index file
+     * @param archive Indexed GZip file
+     * @throws IOException
+     */
+    public void save(File indexFile, File archive) throws IOException {
+        // write into temp file and move it into place (parallel runs)
+        File tmpFile = File.createTempFile("index", ".tmp", indexFile.getAbsoluteFile().getParentFile());
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.write(magic);
+                out.writeInt(version);
+                out.writeLong(archive.length());
+                out.writeLong(archive.lastModified());
+                out.writeInt(points.size());
+                for (AccessPoint point: points) {
+                    out.writeLong(point.out);
+                    out.writeLong(point.in);
+                    out.writeByte(point.bits);
+                    out.writeInt(point.window.length);
+                    out.write(point.window);
+                }
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(tmpFile.toPath(), indexFile.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                // replace an outdated index without atomic move
+                Files.move(tmpFile.toPath(), indexFile.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+    }
+
+    /**
+     * Compress a window for the index
+     * @param window Window data
+     * @return Compressed window
+     */
+    private static byte[] compressWindow(byte[] window) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(window);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompress a window of the index
+     * @param window Compressed window
+     * @return Window data
+     * @throws IOException
+     */
+    private static byte[] decompressWindow(byte[] window) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            // raw inflate requires an extra dummy byte
+            inflater.setInput(Arrays.copyOf(window, window.length + 1));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int size = inflater.inflate(buffer);
+                if (size == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Invalid GZip index");
+                }
+                out.write(buffer, 0, size);
+            }
+            return out.toByteArray();
+
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid GZip index", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Stream that starts a bit stream at a bit offset of the first byte
+     *
+     * Deflate reads the bits of a byte from the lowest bit, so every output
+     * byte is made of the upper bits of a byte and the lower bits of the
+     * next one.
+     */
+    private static class BitShiftInputStream extends FilterInputStream {
+        /**
+         * Bit offset in the first byte
+         */
+        private final int bits;
+
+        /**
+         * Current byte (-1 at end of stream)
+         */
+        private int current;
+
+        /**
+         * Create the stream
+         * @param in Source stream (positioned at the first byte)
+         * @param bits Bit offset in the first byte
+         * @throws IOException
+         */
+        BitShiftInputStream(InputStream in, int bits) throws IOException {
+            super(in);
+            this.bits = bits;
+            this.current = in.read();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (current == -1) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+
+            int read = in.read(b, off, len);
+            if (read == -1) {
+                // last bits of the stream
+                b[off] = (byte) (current >>> bits);
+                current = -1;
+                return 1;
+            }
+
+            for (int i = off; i < off + read; ++i) {
+                int next = b[i] & 0xff;
+                b[i] = (byte) ((current >>> bits) | (next << (8 - bits)));
+                current = next;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public int available() {
+            return 0;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Decompressing stream of a GZip file that builds the index
+     *
+     * The decompression is done by an own inflater that knows the position
+     * of every deflate block. Access points are created at block starts at
+     * least every span bytes of output.
+     */
+    public static class Builder extends InputStream {
+        /**
+         * Need member header
+         */
+        private static final int stateMember = 0;
+        /**
+         * Need block header
+         */
+        private static final int stateBlock = 1;
+        /**
+         * Inside a stored block
+         */
+        private static final int stateStored = 2;
+        /**
+         * Inside a compressed block
+         */
+        private static final int stateCodes = 3;
+        /**
+         * Inside a back reference
+         */
+        private static final int stateCopy = 4;
+        /**
+         * Need member trailer
+         */
+        private static final int stateTrailer = 5;
+        /**
+         * End of the GZip data
+         */
+        private static final int stateEnd = 6;
+
+        /**
+         * Base lengths of the length symbols
+         */
+        private static final int[] lengthBase = {
+                3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+                35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258};
+        /**
+         * Extra bits of the length symbols
+         */
+        private static final int[] lengthExtra = {
+                0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+                3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0};
+        /**
+         * Base distances of the distance symbols
+         */
+        private static final int[] distBase = {
+                1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+                257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145,
+                8193, 12289, 16385, 24577};
+        /**
+         * Extra bits of the distance symbols
+         */
+        private static final int[] distExtra = {
+                0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+                7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13};
+        /**
+         * Order of the code length code lengths
+         */
+        private static final int[] lengthOrder = {
+                16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+
+        /**
+         * Fixed literal/length table
+         */
+        private static final int[] fixedLiterals;
+        /**
+         * Fixed distance table
+         */
+        private static final int[] fixedDistances;
+
+        static {
+            int[] lengths = new int[288];
+            Arrays.fill(lengths, 0, 144, 8);
+            Arrays.fill(lengths, 144, 256, 9);
+            Arrays.fill(lengths, 256, 280, 7);
+            Arrays.fill(lengths, 280, 288, 8);
+            int[] distances = new int[30];
+            Arrays.fill(distances, 5);
+            try {
+                fixedLiterals = buildTable(lengths, 0, 288);
+                fixedDistances = buildTable(distances, 0, 30);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * GZip file
+         */
+        private final InputStream file;
+        /**
+         * Input buffer
+         */
+        private final byte[] buffer = new byte[65536];
+        /**
+         * Position in the input buffer
+         */
+        private int bufferPos = 0;
+        /**
+         * Amount of data in the input buffer
+         */
+        private int bufferLength = 0;
+        /**
+         * File offset of the input buffer
+         */
+        private long bufferOffset = 0;
+        /**
+         * Bit buffer
+         */
+        private long bitBuffer = 0;
+        /**
+         * Amount of bits in the bit buffer
+         */
+        private int bitCount = 0;
+
+        /**
+         * Last output (deflate window)
+         */
+        private final byte[] window = new byte[windowSize];
+        /**
+         * Total amount of output
+         */
+        private long total = 0;
+        /**
+         * Output of the current member
+         */
+        private long memberTotal = 0;
+        /**
+         * Checksum of the current member
+         */
+        private final CRC32 crc = new CRC32();
+
+        /**
+         * Decoder state
+         */
+        private int state = stateMember;
+        /**
+         * True if the current block is the last one of the member
+         */
+        private boolean lastBlock;
+        /**
+         * Remaining bytes of a stored block
+         */
+        private int storedRemaining;
+        /**
+         * Literal/length table of the current block
+         */
+        private int[] literals;
+        /**
+         * Distance table of the current block
+         */
+        private int[] distances;
+        /**
+         * Remaining length of the current back reference
+         */
+        private int copyLength;
+        /**
+         * Distance of the current back reference
+         */
+        private int copyDistance;
+
+        /**
+         * Access points (null if no index can be created)
+         */
+        private List<AccessPoint> points = new ArrayList<>();
+        /**
+         * True while the first member is decompressed
+         */
+        private boolean firstMember = true;
+
+        /**
+         * Open the GZip file
+         * @param archive GZip file
+         * @throws IOException
+         */
+        public Builder(File archive) throws IOException {
+            file = new FileInputStream(archive);
+        }
+
+        /**
+         * Get the created index
+         *
+         * The index contains all access points up to the current position.
+         * @return Index or null if no index can be created (multiple members)
+         */
+        public GZipIndex getIndex() {
+            if (points == null || points.isEmpty()) {
+                return null;
+            }
+            return new GZipIndex(new ArrayList<>(points));
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int start = off;
+            int end = off + len;
+            int checksumStart = off;
+
+            while (off < end) {
+                if (state == stateCodes) {
+                    // decode symbols until back reference or end of block
+                    while (off < end) {
+                        int symbol = decode(literals);
+                        if (symbol < 256) {
+                            window[(int) total & (windowSize-1)] = (byte) symbol;
+                            total++;
+                            memberTotal++;
+                            b[off++] = (byte) symbol;
+
+                        } else if (symbol == 256) {
+                            state = lastBlock ? stateTrailer : stateBlock;
+                            break;
+
+                        } else {
+                            symbol -= 257;
+                            if (symbol >= 29) {
+                                throw new IOException("Invalid GZip data");
+                            }
+                            copyLength = lengthBase[symbol] + bits(lengthExtra[symbol]);
+
+                            symbol = decode(distances);
+                            if (symbol >= 30) {
+                                throw new IOException("Invalid GZip data");
+                            }
+                            copyDistance = distBase[symbol] + bits(distExtra[symbol]);
+                            if (copyDistance > memberTotal) {
+                                throw new IOException("Invalid GZip data");
+                            }
+                            state = stateCopy;
+                            break;
+                        }
+                    }
+
+                } else if (state == stateCopy) {
+                    // copy back reference from window
+                    while (copyLength > 0 && off < end) {
+                        byte value = window[(int) (total - copyDistance) & (windowSize-1)];
+                        window[(int) total & (windowSize-1)] = value;
+                        total++;
+                        memberTotal++;
+                        b[off++] = value;
+                        copyLength--;
+                    }
+                    if (copyLength == 0) {
+                        state = stateCodes;
+                    }
+
+                } else if (state == stateStored) {
+                    // copy stored data
+                    while (storedRemaining > 0 && off < end) {
+                        byte value = (byte) bits(8);
+                        window[(int) total & (windowSize-1)] = value;
+                        total++;
+                        memberTotal++;
+                        b[off++] = value;
+                        storedRemaining--;
+                    }
+                    if (storedRemaining == 0) {
+                        state = lastBlock ? stateTrailer : stateBlock;
+                    }
+
+                } else if (state == stateBlock) {
+                    readBlockHeader();
+
+                } else if (state == stateTrailer) {
+                    crc.update(b, checksumStart, off - checksumStart);
+                    checksumStart = off;
+                    readTrailer();
+
+                } else if (state == stateMember) {
+                    if (!readMemberHeader()) {
+                        state = stateEnd;
+                    }
+
+                } else {
+                    break;
+                }
+            }
+
+            crc.update(b, checksumStart, off - checksumStart);
+            if (off == start && len > 0) {
+                return -1;
+            }
+            return off - start;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+
+        /**
+         * Read a block header (creates an access point if required)
+         * @throws IOException
+         */
+        private void readBlockHeader() throws IOException {
+            // create access point at block start
+            if (firstMember && points != null &&
+                    (points.isEmpty() || total - points.get(points.size()-1).out >= span)) {
+                long position = (bufferOffset + bufferPos) * 8 - bitCount;
+
+                int size = (int) Math.min(windowSize, memberTotal);
+                byte[] data = new byte[size];
+                for (int i = 0; i < size; ++i) {
+                    data[i] = window[(int) (total - size + i) & (windowSize-1)];
+                }
+                points.add(new AccessPoint(total, position / 8, (int) (position % 8),
+                                           compressWindow(data)));
+            }
+
+            lastBlock = bits(1) == 1;
+            int type = bits(2);
+            if (type == 0) {
+                // stored block starts at byte boundary
+                bits(bitCount % 8);
+                storedRemaining = bits(16);
+                if ((~bits(16) & 0xffff) != storedRemaining) {
+                    throw new IOException("Invalid GZip data");
+                }
+                state = stateStored;
+
+            } else if (type == 1) {
+                literals = fixedLiterals;
+                distances = fixedDistances;
+                state = stateCodes;
+
+            } else if (type == 2) {
+                readDynamicTables();
+                state = stateCodes;
+
+            } else {
+                throw new IOException("Invalid GZip data");
+            }
+        }
+
+        /**
+         * Read the Huffman tables of a dynamic block
+         * @throws IOException
+         */
+        private void readDynamicTables() throws IOException {
+            int literalCount = bits(5) + 257;
+            int distanceCount = bits(5) + 1;
+            int codeCount = bits(4) + 4;
+            if (literalCount > 286 || distanceCount > 30) {
+                throw new IOException("Invalid GZip data");
+            }
+
+            // code length code
+            int[] lengths = new int[19];
+            for (int i = 0; i < codeCount; ++i) {
+                lengths[lengthOrder[i]] = bits(3);
+            }
+            int[] lengthTable = buildTable(lengths, 0, 19);
+
+            // code lengths of both tables
+            lengths = new int[literalCount + distanceCount];
+            int index = 0;
+            while (index < lengths.length) {
+                int symbol = decode(lengthTable);
+                if (symbol < 16) {
+                    lengths[index++] = symbol;
+                    continue;
+                }
+
+                int value = 0;
+                int repeat;
+                if (symbol == 16) {
+                    if (index == 0) {
+                        throw new IOException("Invalid GZip data");
+                    }
+                    value = lengths[index-1];
+                    repeat = 3 + bits(2);
+                } else if (symbol == 17) {
+                    repeat = 3 + bits(3);
+                } else {
+                    repeat = 11 + bits(7);
+                }
+                if (index + repeat > lengths.length) {
+                    throw new IOException("Invalid GZip data");
+                }
+                Arrays.fill(lengths, index, index + repeat, value);
+                index += repeat;
+            }
+            if (lengths[256] == 0) {
+                throw new IOException("Invalid GZip data");
+            }
+
+            literals = buildTable(lengths, 0, literalCount);
+            distances = buildTable(lengths, literalCount, distanceCount);
+        }
+
+        /**
+         * Read the member trailer and check the checksum
+         * @throws IOException
+         */
+        private void readTrailer() throws IOException {
+            bits(bitCount % 8);
+            long checksum = bits(16) | ((long) bits(16) << 16);
+            long size = bits(16) | ((long) bits(16) << 16);
+            if (checksum != crc.getValue() || size != (memberTotal & 0xffffffffL)) {
+                throw new IOException("Corrupt GZip data (checksum error)");
+            }
+            state = stateMember;
+            firstMember = false;
+        }
+
+        /**
+         * Read a member header
+         * @return False if the end of the GZip data is reached
+         * @throws IOException
+         */
+        private boolean readMemberHeader() throws IOException {
+            fill();
+            if (bitCount < 16 || (bitBuffer & 0xffff) != 0x8b1f) {
+                if (total == 0) {
+                    throw new IOException("Not in GZIP format");
+                }
+                // ignore trailing data (like GZIPInputStream)
+                return false;
+            }
+            bits(16);
+
+            // further members are not indexed
+            if (!firstMember) {
+                points = null;
+            }
+
+            if (bits(8) != 8) {
+                throw new IOException("Unsupported compression method");
+            }
+            int flags = bits(8);
+            bits(16);
+            bits(16);
+            bits(16);
+
+            // skip optional fields
+            if ((flags & 4) != 0) {
+                int length = bits(16);
+                for (int i = 0; i < length; ++i) {
+                    bits(8);
+                }
+            }
+            if ((flags & 8) != 0) {
+                while (bits(8) != 0) {
+                    // skip file name
+                }
+            }
+            if ((flags & 16) != 0) {
+                while (bits(8) != 0) {
+                    // skip comment
+                }
+            }
+            if ((flags & 2) != 0) {
+                bits(16);
+            }
+
+            crc.reset();
+            memberTotal = 0;
+            state = stateBlock;
+            return true;
+        }
+
+        /**
+         * Fill the bit buffer
+         * @throws IOException
+         */
+        private void fill() throws IOException {
+            while (bitCount <= 56) {
+                if (bufferPos == bufferLength) {
+                    bufferOffset += bufferLength;
+                    bufferPos = 0;
+                    bufferLength = Math.max(0, file.read(buffer));
+                    if (bufferLength == 0) {
+                        return;
+                    }
+                }
+                bitBuffer |= (long) (buffer[bufferPos++] & 0xff) << bitCount;
+                bitCount += 8;
+            }
+        }
+
+        /**
+         * Read bits from the bit buffer
+         * @param count Amount of bits (max 32)
+         * @return Value of the bits
+         * @throws IOException
+         */
+        private int bits(int count) throws IOException {
+            if (bitCount < count) {
+                fill();
+                if (bitCount < count) {
+                    throw new EOFException("Unexpected end of GZip data");
+                }
+            }
+            int value = (int) (bitBuffer & ((1L << count) - 1));
+            bitBuffer >>>= count;
+            bitCount -= count;
+            return value;
+        }
+
+        /**
+         * Decode a symbol with a Huffman table
+         * @param table Decoding table
+         * @return Decoded symbol
+         * @throws IOException
+         */
+        private int decode(int[] table) throws IOException {
+            if (bitCount < 15) {
+                fill();
+            }
+            int entry = table[(int) bitBuffer & (table.length-1)];
+            int length = entry & 15;
+            if (length == 0 || length > bitCount) {
+                throw new IOException("Invalid GZip data");
+            }
+            bitBuffer >>>= length;
+            bitCount -= length;
+            return entry >>> 4;
+        }
+
+        /**
+         * Build a decoding table from code lengths
+         *
+         * The table is indexed by the next bits of the stream (the size is
+         * defined by the longest code) and each entry contains the symbol
+         * and the length of its code.
+         * @param lengths Code lengths
+         * @param offset Offset of the first symbol in lengths
+         * @param count Amount of symbols
+         * @return Decoding table
+         * @throws IOException
+         */
+        private static int[] buildTable(int[] lengths, int offset, int count) throws IOException {
+            int[] lengthCount = new int[16];
+            int maxLength = 1;
+            for (int i = 0; i < count; ++i) {
+                lengthCount[lengths[offset+i]]++;
+                maxLength = Math.max(maxLength, lengths[offset+i]);
+            }
+            lengthCount[0] = 0;
+
+            // first code of every length
+            int[] nextCode = new int[16];
+            int code = 0;
+            for (int length = 1; length < 16; ++length) {
+                code = (code + lengthCount[length-1]) << 1;
+                nextCode[length] = code;
+                if (code + lengthCount[length] > (1 << length)) {
+                    throw new IOException("Invalid GZip data");
+                }
+            }
+
+            // fill table (codes are stored with reversed bits)
+            int[] table = new int[1 << maxLength];
+            for (int symbol = 0; symbol < count; ++symbol) {
+                int length = lengths[offset+symbol];
+                if (length == 0) {
+                    continue;
+                }
+                int reversed = Integer.reverse(nextCode[length]++) >>> (32 - length);
+                for (int i = reversed; i < table.length; i += 1 << length) {
+                    table[i] = (symbol << 4) | length;
+                }
+            }
+            return table;
+        }
+    }
+}
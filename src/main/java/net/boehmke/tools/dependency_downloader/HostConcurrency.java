@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Adaptive limit of the parallel requests per host (AIMD)
+ *
+ * The throughput of a host is measured in rounds (one round ends after as
+ * many finished downloads as the current limit). The limit is raised by
+ * one while the throughput of a round improves and is halved if the host
+ * is overloaded (429/503 responses, connection errors or a response time
+ * far above the fastest one). Signals of requests that were started before
+ * the last decrease are ignored, so one overload halves the limit only
+ * once.
+ *
+ * Changes of a limit are returned as messages for the metrics output.
+ */
+public class HostConcurrency {
+    /**
+     * Minimal gain of the throughput to raise the limit again
+     */
+    private static final double minGain = 1.1;
+
+    /**
+     * Response time that counts as overload (multiple of the fastest one)
+     */
+    private static final double latencyFactor = 2.0;
+
+    /**
+     * Additional response time in ms that is tolerated (jitter of fast hosts)
+     */
+    private static final long latencySlack = 50;
+
+    /**
+     * State of a host
+     */
+    private static class Host {
+        /**
+         * Allowed parallel requests
+         */
+        int limit;
+
+        /**
+         * Running requests
+         */
+        int inFlight = 0;
+
+        /**
+         * Highest limit of the host
+         */
+        int peakLimit;
+
+        /**
+         * Fastest response time in ms (-1 if unknown)
+         */
+        long baseLatency = -1;
+
+        /**
+         * Start of the current round (System.nanoTime)
+         */
+        long roundStart = System.nanoTime();
+
+        /**
+         * Transferred bytes of the current round
+         */
+        long roundBytes = 0;
+
+        /**
+         * Finished downloads of the current round
+         */
+        int roundFinished = 0;
+
+        /**
+         * True if the limit was reached in the current round
+         */
+        boolean roundFull = false;
+
+        /**
+         * Throughput of the last round in bytes/s (0 if unknown)
+         */
+        long lastRate = 0;
+
+        /**
+         * Time of the last decrease (System.nanoTime)
+         */
+        long lastDecrease = Long.MIN_VALUE;
+
+        /**
+         * Amount of increases
+         */
+        int increases = 0;
+
+        /**
+         * Amount of decreases
+         */
+        int decreases = 0;
+
+        /**
+         * Reason of the last change (null if unchanged)
+         */
+        String lastReason = null;
+    }
+
+    /**
+     * Limit of a new host
+     */
+    private final int initialLimit;
+
+    /**
+     * Highest allowed limit
+     */
+    private final int maxLimit;
+
+    /**
+     * State of each host (lower case)
+     */
+    private final Map<String, Host> hosts = new TreeMap<>();
+
+    /**
+     * Create the controller
+     * @param initialLimit Limit of a new host
+     * @param maxLimit Highest allowed limit
+     */
+    public HostConcurrency(int initialLimit, int maxLimit) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.initialLimit = Math.max(1, Math.min(initialLimit, this.maxLimit));
+    }
+
+    /**
+     * Wait until a request to the host is allowed (must be released)
+     * @param host Host of the request
+     * @return Start of the request (System.nanoTime)
+     * @throws InterruptedIOException
+     */
+    public synchronized long acquire(String host) throws InterruptedIOException {
+        Host state = getHost(host);
+        while (state.inFlight >= state.limit) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + host);
+            }
+        }
+        state.inFlight++;
+        if (state.inFlight >= state.limit) {
+            state.roundFull = true;
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Release a request of the host
+     * @param host Host of the request
+     */
+    public synchronized void release(String host) {
+        getHost(host).inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * The server responded to a request
+     * @param host Host of the request
+     * @param started Start of the request (System.nanoTime)
+     * @param latency Response time in ms
+     * @return Message if the limit was changed or null
+     */
+    public synchronized String responded(String host, long started, long latency) {
+        Host state = getHost(host);
+        if (state.baseLatency < 0 || latency < state.baseLatency) {
+            state.baseLatency = latency;
+            return null;
+        }
+
+        // requests queue up on the server
+        if (latency > state.baseLatency * latencyFactor + latencySlack) {
+            return decrease(host, state, started,
+                    "latency " + latency + " ms, fastest " + state.baseLatency + " ms");
+        }
+        return null;
+    }
+
+    /**
+     * A download of the host was finished
+     * @param host Host of the request
+     * @param bytes Transferred bytes
+     * @return Message if the limit was changed or null
+     */
+    public synchronized String finished(String host, long bytes) {
+        Host state = getHost(host);
+        state.roundBytes += bytes;
+        if (++state.roundFinished < state.limit) {
+            return null;
+        }
+
+        // end of the round
+        long elapsed = Math.max(1, (System.nanoTime() - state.roundStart) / 1000000);
+        long rate = state.roundBytes * 1000 / elapsed;
+        long lastRate = state.lastRate;
+        boolean full = state.roundFull;
+        startRound(state);
+        state.lastRate = rate;
+
+        // the limit was not the bottleneck or is already the maximum
+        if (!full || state.limit >= maxLimit) {
+            return null;
+        }
+
+        String reason;
+        if (lastRate == 0) {
+            reason = "probe at " + formatRate(rate);
+        } else if (rate > lastRate * minGain) {
+            reason = "throughput " + formatRate(rate) + ", was " + formatRate(lastRate);
+        } else {
+            return null;
+        }
+        state.increases++;
+        return change(host, state, state.limit + 1, reason);
+    }
+
+    /**
+     * A request failed because the host is overloaded (e.g. 503 response)
+     * @param host Host of the request
+     * @param started Start of the request (System.nanoTime)
+     * @param reason Reason of the failure
+     * @return Message if the limit was changed or null
+     */
+    public synchronized String overloaded(String host, long started, String reason) {
+        return decrease(host, getHost(host), started, reason);
+    }
+
+    /**
+     * Get the current limit of a host
+     * @param host Host
+     * @return Allowed parallel requests
+     */
+    public synchronized int getLimit(String host) {
+        return getHost(host).limit;
+    }
+
+    /**
+     * Get the current limits of all hosts
+     * @return One line for each host
+     */
+    public synchronized List<String> getSummary() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Host> entry: hosts.entrySet()) {
+            Host state = entry.getValue();
+            lines.add("Concurrency " + entry.getKey() + ": limit " + state.limit +
+                    " (peak " + state.peakLimit + "), " + state.increases + " increases, " +
+                    state.decreases + " decreases" +
+                    (state.lastReason != null ? ", last: " + state.lastReason : ""));
+        }
+        return lines;
+    }
+
+    /**
+     * Halve the limit of a host
+     * @param host Host
+     * @param state State of the host
+     * @param started Start of the request that signaled the overload
+     * @param reason Reason of the decrease
+     * @return Message if the limit was changed or null
+     */
+    private String decrease(String host, Host state, long started, String reason) {
+        // already handled by a decrease after the start of the request
+        if (started < state.lastDecrease) {
+            return null;
+        }
+        state.lastDecrease = System.nanoTime();
+
+        // measure the new limit from the start
+        startRound(state);
+        state.lastRate = 0;
+        if (state.limit <= 1) {
+            return null;
+        }
+        state.decreases++;
+        return change(host, state, state.limit / 2, reason);
+    }
+
+    /**
+     * Set a new limit of a host
+     * @param host Host
+     * @param state State of the host
+     * @param limit New limit
+     * @param reason Reason of the change
+     * @return Message of the change
+     */
+    private String change(String host, Host state, int limit, String reason) {
+        String message = "Concurrency " + host + ": " + state.limit + " -> " + limit +
+                " (" + reason + ")";
+        state.limit = limit;
+        state.peakLimit = Math.max(state.peakLimit, limit);
+        state.lastReason = reason;
+        notifyAll();
+        return message;
+    }
+
+    /**
+     * Format a throughput with one decimal (small changes are visible)
+     * @param rate Throughput in bytes/s
+     * @return Throughput as string
+     */
+    private static String formatRate(long rate) {
+        if (rate < 1024*1024) {
+            return String.format("%.1f KB/s", rate / 1024.0);
+        }
+        return String.format("%.1f MB/s", rate / (1024.0*1024.0));
+    }
+
+    /**
+     * Start a new measurement round of a host
+     * @param state State of the host
+     */
+    private static void startRound(Host state) {
+        state.roundStart = System.nanoTime();
+        state.roundBytes = 0;
+        state.roundFinished = 0;
+        state.roundFull = state.inFlight >= state.limit;
+    }
+
+    /**
+     * Get the state of a host (created if unknown)
+     * @param host Host
+     * @return State of the host
+     */
+    private Host getHost(String host) {
+        Host state = hosts.get(host);
+        if (state == null) {
+            state = new Host();
+            state.limit = initialLimit;
+            state.peakLimit = initialLimit;
+            hosts.put(host, state);
+        }
+        return state;
+    }
+}
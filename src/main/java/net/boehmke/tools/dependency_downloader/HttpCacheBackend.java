@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Remote cache on a HTTP server (like the HTTP build cache of Gradle)
+ *
+ * Files are loaded with "GET BASE/ALGORITHM/HEX" and stored with
+ * "PUT BASE/ALGORITHM/HEX". A 404 response is a cache miss. Any server
+ * that supports GET and PUT can be used (e.g. a Gradle build cache node
+ * or a WebDAV directory).
+ */
+public class HttpCacheBackend implements CacheBackend {
+    /**
+     * Base URL of the cache (without trailing slash)
+     */
+    private final String url;
+
+    /**
+     * Proxy of the requests (same as the downloads)
+     */
+    private final Proxy proxy;
+
+    /**
+     * Connect timeout in ms
+     */
+    private final int connectTimeout;
+
+    /**
+     * Read timeout in ms
+     */
+    private final int readTimeout;
+
+    /**
+     * Create the backend
+     * @param url Base URL of the cache (e.g. "http://cache:5071/cache")
+     * @param proxy Proxy of the requests (see Downloader.getProxy)
+     * @param connectTimeout Connect timeout in ms
+     * @param readTimeout Read timeout in ms
+     */
+    public HttpCacheBackend(String url, Proxy proxy, int connectTimeout, int readTimeout) {
+        if (url.endsWith("/")) {
+            url = url.substring(0, url.length()-1);
+        }
+        this.url = url;
+        this.proxy = proxy;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Load a file from the cache
+     * @param key Content digest of the file ("ALGORITHM/HEX")
+     * @param destination Destination file
+     * @return False if the cache does not have the file
+     * @throws IOException
+     */
+    @Override
+    public boolean load(String key, File destination) throws IOException {
+        HttpURLConnection request = openConnection(key);
+
+        int responseCode = request.getResponseCode();
+        if (responseCode == 404) {
+            request.disconnect();
+            return false;
+        }
+        if (responseCode != 200) {
+            request.disconnect();
+            throw new DownloadException("Bad response of remote cache: " + responseCode + " " +
+                    request.getResponseMessage(), responseCode, false);
+        }
+
+        InputStream in = request.getInputStream();
+        try {
+            Files.copy(in, destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            in.close();
+        }
+
+        // check if the connection was closed too early
+        long size = request.getContentLengthLong();
+        if (size >= 0 && destination.length() != size) {
+            throw new DownloadException("Connection to remote cache closed after " +
+                    Downloader.convertSize(destination.length()), -1, false);
+        }
+        return true;
+    }
+
+    /**
+     * Store a checked file in the cache
+     * @param key Content digest of the file ("ALGORITHM/HEX")
+     * @param file File to store
+     * @throws IOException
+     */
+    @Override
+    public void store(String key, File file) throws IOException {
+        HttpURLConnection request = openConnection(key);
+        request.setRequestMethod("PUT");
+        request.setDoOutput(true);
+        request.setFixedLengthStreamingMode(file.length());
+
+        OutputStream out = request.getOutputStream();
+        try {
+            Files.copy(file.toPath(), out);
+        } finally {
+            out.close();
+        }
+
+        int responseCode = request.getResponseCode();
+        request.disconnect();
+        if (responseCode < 200 || responseCode >= 300) {
+            throw new DownloadException("Remote cache rejected file: " + responseCode,
+                    responseCode, false);
+        }
+    }
+
+    /**
+     * Open the connection for a cache entry
+     * @param key Content digest of the file ("ALGORITHM/HEX")
+     * @return Connection (not connected)
+     * @throws IOException
+     */
+    private HttpURLConnection openConnection(String key) throws IOException {
+        HttpURLConnection request = (HttpURLConnection) new URL(url + "/" + key).openConnection(proxy);
+        request.setConnectTimeout(connectTimeout);
+        request.setReadTimeout(readTimeout);
+        return request;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Dependency list (content of a depend file)
+ */
+public class Manifest {
+    /**
+     * Path of the depend file (null if not loaded from a file)
+     */
+    private final String path;
+
+    /**
+     * Dependencies in file order
+     */
+    private final List<Dependency> dependencies = new ArrayList<>();
+
+    /**
+     * Total download rate limit (null if not set)
+     */
+    private String rateLimit = null;
+
+    /**
+     * Download rate limits per host (null if not set)
+     */
+    private String hostRateLimit = null;
+
+    /**
+     * Create an empty dependency list
+     * @param path Path of the depend file (null if not loaded from a file)
+     */
+    public Manifest(String path) {
+        this.path = path;
+    }
+
+    /**
+     * @return Path of the depend file (null if not loaded from a file)
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return Dependencies in file order
+     */
+    public List<Dependency> getDependencies() {
+        return Collections.unmodifiableList(dependencies);
+    }
+
+    /**
+     * Add a dependency to the list
+     * @param dependency Dependency
+     */
+    public void addDependency(Dependency dependency) {
+        dependencies.add(dependency);
+    }
+
+    /**
+     * @return Total download rate limit like "2M" (null if not set)
+     */
+    public String getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * @param rateLimit Total download rate limit like "2M" (null if not set)
+     */
+    public void setRateLimit(String rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    /**
+     * @return Download rate limits per host like "example.com=1M" (null if not set)
+     */
+    public String getHostRateLimit() {
+        return hostRateLimit;
+    }
+
+    /**
+     * @param hostRateLimit Download rate limits per host like "example.com=1M" (null if not set)
+     */
+    public void setHostRateLimit(String hostRateLimit) {
+        this.hostRateLimit = hostRateLimit;
+    }
+
+    /**
+     * Load and validate a depend file
+     * @param path Path to the depend file
+     * @return Dependency list of the file
+     * @throws ParserConfigurationException
+     * @throws SAXException
+     * @throws IOException
+     */
+    public static Manifest load(String path)
+            throws ParserConfigurationException, SAXException, IOException {
+
+        // load XSD file
+        SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+        Source schemaSource = new StreamSource(
+                Manifest.class.getResourceAsStream("/depend.xsd"));
+        Schema schema = schemaFactory.newSchema(schemaSource);
+
+        // get XML factory and doc builder
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        DocumentBuilder docBuilder = factory.newDocumentBuilder();
+
+        // parse document
+        Document doc = docBuilder.parse(path);
+
+        // validate schema
+        schema.newValidator().validate(new DOMSource(doc));
+
+        // get root element
+        Element root = doc.getDocumentElement();
+        Manifest manifest = new Manifest(path);
+        if (root.hasAttribute("RateLimit")) {
+            manifest.setRateLimit(root.getAttribute("RateLimit"));
+        }
+        if (root.hasAttribute("HostRateLimit")) {
+            manifest.setHostRateLimit(root.getAttribute("HostRateLimit"));
+        }
+
+        // convert all elements
+        NodeList nodes = root.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (nodes.item(i).getNodeType() == Node.ELEMENT_NODE) {
+                Element element = (Element) nodes.item(i);
+
+                Dependency dependency = new Dependency(element.getTagName(),
+                        element.getAttribute("Source"),
+                        element.getAttribute("Destination"));
+                dependency.setMd5(element.getAttribute("Md5"));
+                dependency.setSha1(element.getAttribute("Sha1"));
+                dependency.setSourceSubDir(element.getAttribute("SourceSubDir"));
+                dependency.setInclude(element.getAttribute("Include"));
+                dependency.setExclude(element.getAttribute("Exclude"));
+                manifest.addDependency(dependency);
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Find all depend files matching the given patterns
+     * @param patterns Comma separated list of files or glob patterns
+     * @return Sorted list of found files
+     * @throws IOException
+     */
+    public static List<String> find(String patterns) throws IOException {
+        final Set<String> files = new TreeSet<>();
+
+        for (String pattern: patterns.split(",")) {
+            pattern = pattern.trim().replace('\\', '/');
+            if (pattern.isEmpty()) {
+                continue;
+            }
+
+            // plain file
+            if (!pattern.matches(".*[*?\\[{].*")) {
+                if (new File(pattern).isFile()) {
+                    files.add(pattern);
+                }
+                continue;
+            }
+
+            // start search at the directory before the first wildcard
+            String base = pattern.substring(0, pattern.replaceAll("[*?\\[{].*", "").lastIndexOf('/')+1);
+            final Path basePath = Paths.get(base.isEmpty() ? "." : base);
+
+            // "**/" should also match files in the base directory
+            FileSystem fs = FileSystems.getDefault();
+            final PathMatcher matcher = fs.getPathMatcher("glob:" + pattern.substring(base.length()));
+            final PathMatcher baseMatcher = fs.getPathMatcher("glob:" +
+                    pattern.substring(base.length()).replaceFirst("^\\*\\*/", ""));
+
+            if (!Files.isDirectory(basePath)) {
+                continue;
+            }
+            Files.walkFileTree(basePath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    // skip the download cache
+                    if (dir.getFileName() != null &&
+                        dir.getFileName().toString().equals(".dependencyDownloader")) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    Path relative = basePath.relativize(file);
+                    if (matcher.matches(relative) || baseMatcher.matches(relative)) {
+                        files.add(file.toString());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        return new ArrayList<>(files);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket to limit the bandwidth of downloads
+ *
+ * The limiter is thread safe and can be shared between concurrent downloads.
+ * Each call reserves its tokens in the order of arrival and sleeps outside of
+ * the lock until the reservation is due, so concurrent transfers get the
+ * bandwidth in a fair (FIFO) order and the lock is only held for a few
+ * arithmetic operations per read.
+ */
+public class RateLimiter {
+    /**
+     * Allowed rate in bytes per second
+     */
+    private final long rate;
+
+    /**
+     * Maximum amount of tokens that can be stored (burst size)
+     */
+    private final double maxTokens;
+
+    /**
+     * Tokens that are available without waiting
+     */
+    private double storedTokens;
+
+    /**
+     * Time (nanoTime) at which the next reservation is free
+     */
+    private long nextFree;
+
+    /**
+     * Create the rate limiter
+     * @param rate Allowed rate in bytes per second
+     */
+    public RateLimiter(long rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Invalid rate: " + rate);
+        }
+        this.rate = rate;
+
+        // allow bursts of 100ms (at least one read buffer)
+        this.maxTokens = Math.max(rate / 10.0, 1024*10);
+        this.storedTokens = 0;
+        this.nextFree = System.nanoTime();
+    }
+
+    /**
+     * Get the rate of the limiter
+     * @return Rate in bytes per second
+     */
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * Take the given amount of tokens and wait until they are available
+     * @param amount Amount of bytes to transfer
+     * @throws InterruptedIOException
+     */
+    public void acquire(long amount) throws InterruptedIOException {
+        long waitUntil;
+
+        synchronized (this) {
+            long now = System.nanoTime();
+
+            // refill the bucket with the tokens of the idle time
+            if (now > nextFree) {
+                storedTokens = Math.min(maxTokens,
+                        storedTokens + (now - nextFree) * (rate / 1e9));
+                nextFree = now;
+            }
+
+            // this call has to wait for all previous reservations
+            waitUntil = nextFree;
+
+            // use stored tokens first and reserve the rest in the future
+            double fromStored = Math.min(amount, storedTokens);
+            storedTokens -= fromStored;
+            nextFree += (long) ((amount - fromStored) * (1e9 / rate));
+        }
+
+        // wait until the reservation is due
+        long wait = waitUntil - System.nanoTime();
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            }
+        }
+    }
+
+    /**
+     * Convert a rate string (e.g. "500K", "2M", "1G") to bytes per second
+     * @param value Rate string (suffix K, M or G is optional)
+     * @return Rate in bytes per second
+     * @throws NumberFormatException
+     */
+    public static long parseRate(String value) throws NumberFormatException {
+        String rate = value.trim().toUpperCase();
+        if (rate.isEmpty()) {
+            throw new NumberFormatException("Empty rate");
+        }
+
+        // get multiplier of suffix
+        long multiplier = 1;
+        switch (rate.charAt(rate.length()-1)) {
+            case 'K':
+                multiplier = 1024;
+                break;
+            case 'M':
+                multiplier = 1024*1024;
+                break;
+            case 'G':
+                multiplier = 1024*1024*1024;
+                break;
+        }
+        if (multiplier != 1) {
+            rate = rate.substring(0, rate.length()-1);
+        }
+
+        long result = (long) (Double.parseDouble(rate) * multiplier);
+        if (result <= 0) {
+            throw new NumberFormatException("Invalid rate: " + value);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Partial download of a ZIP file (HTTP Range requests)
+ *
+ * The end of central directory record and the central directory are
+ * downloaded first. The byte ranges of the entries selected by the filter
+ * are calculated from the central directory and only these ranges are
+ * downloaded (nearby ranges are joined into one request). All parts are
+ * written at their position into a sparse file of the archive size, so the
+ * result can be extracted with the same filter by Zip.decompress.
+ */
+public class RemoteZip {
+    /**
+     * Signature of the end of central directory record
+     */
+    private static final int endSignature = 0x06054b50;
+
+    /**
+     * Signature of the ZIP64 end of central directory locator
+     */
+    private static final int zip64LocatorSignature = 0x07064b50;
+
+    /**
+     * Signature of the ZIP64 end of central directory record
+     */
+    private static final int zip64EndSignature = 0x06064b50;
+
+    /**
+     * Signature of a central directory file header
+     */
+    private static final int centralSignature = 0x02014b50;
+
+    /**
+     * Size of the end of central directory record (without comment)
+     */
+    private static final int endSize = 22;
+
+    /**
+     * Downloaded end of the file (record with the longest possible comment)
+     */
+    private static final int tailSize = endSize + 0xFFFF;
+
+    /**
+     * Gaps up to this size between two ranges are downloaded with the ranges
+     * (one request instead of two)
+     */
+    private static final long maxGap = 256*1024;
+
+    /**
+     * Entry of the central directory
+     */
+    private static class Entry {
+        /**
+         * Name of the entry
+         */
+        String name;
+
+        /**
+         * Offset of the local file header
+         */
+        long offset;
+
+        /**
+         * End of the entry data (next local header or central directory)
+         */
+        long end;
+    }
+
+    /**
+     * Downloader instance
+     */
+    private final Downloader downloader;
+
+    /**
+     * Listener for progress
+     */
+    private final DependencyListener listener;
+
+    /**
+     * Create the partial download
+     * @param downloader Downloader instance
+     * @param listener Listener for progress
+     */
+    public RemoteZip(Downloader downloader, DependencyListener listener) {
+        this.downloader = downloader;
+        this.listener = listener;
+    }
+
+    /**
+     * Download the central directory and the selected entries of a ZIP file
+     * @param source Source URL of the ZIP file
+     * @param filter Filter of the extracted entries
+     * @param target Sparse copy of the ZIP file (created)
+     * @return False if the size of the source is unknown
+     * @throws IOException
+     */
+    public boolean fetch(String source, EntryFilter filter, File target) throws IOException {
+        long size = downloader.getContentLength(source);
+        if (size < endSize) {
+            listener.message("Size of the ZIP file is unknown");
+            return false;
+        }
+
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        FileChannel out = file.getChannel();
+        try {
+            // parts are written at their position into a sparse file
+            file.setLength(size);
+            long start = System.nanoTime();
+
+            // get end of central directory record
+            long tailOffset = Math.max(0, size - tailSize);
+            downloader.downloadRange(source, tailOffset, size - tailOffset, out);
+            long downloaded = size - tailOffset;
+            ByteBuffer tail = read(out, tailOffset, size - tailOffset);
+            int end = findEnd(tail);
+            if (end < 0) {
+                throw new IOException("No ZIP end of central directory record");
+            }
+            long entryCount = tail.getShort(end + 10) & 0xFFFF;
+            long directorySize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+            long directoryOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+
+            // ZIP64 record (located before the end record)
+            if (entryCount == 0xFFFF || directorySize == 0xFFFFFFFFL ||
+                    directoryOffset == 0xFFFFFFFFL) {
+                if (end < 20 || tail.getInt(end - 20) != zip64LocatorSignature) {
+                    throw new IOException("No ZIP64 end of central directory locator");
+                }
+                long recordOffset = tail.getLong(end - 12);
+                downloaded += fetchMissing(source, out, recordOffset, 56, tailOffset);
+                ByteBuffer record = read(out, recordOffset, 56);
+                if (record.getInt(0) != zip64EndSignature) {
+                    throw new IOException("No ZIP64 end of central directory record");
+                }
+                entryCount = record.getLong(32);
+                directorySize = record.getLong(40);
+                directoryOffset = record.getLong(48);
+            }
+            if (directoryOffset + directorySize > size) {
+                throw new IOException("Invalid ZIP central directory");
+            }
+
+            // get central directory
+            downloaded += fetchMissing(source, out, directoryOffset, directorySize, tailOffset);
+            List<Entry> entries = readDirectory(read(out, directoryOffset, directorySize),
+                    entryCount, directoryOffset);
+
+            // get ranges of the selected entries
+            List<long[]> ranges = new ArrayList<>();
+            long selectedSize = 0;
+            int selected = 0;
+            for (Entry entry: entries) {
+                if (entry.name.endsWith("/") || filter.map(entry.name) == null) {
+                    continue;
+                }
+                selected++;
+                selectedSize += entry.end - entry.offset;
+                addRange(ranges, entry.offset, entry.end);
+            }
+
+            long missing = 0;
+            for (long[] range: ranges) {
+                missing += range[1] - range[0];
+            }
+            listener.message("Partial ZIP: " + selected + " of " + entries.size() +
+                    " entries (" + Downloader.convertSize(selectedSize) + " of " +
+                    Downloader.convertSize(size) + "), download " +
+                    Downloader.convertSize(missing) + " in " + ranges.size() + " ranges");
+
+            // download the selected entries
+            for (long[] range: ranges) {
+                downloaded += fetchMissing(source, out, range[0], range[1] - range[0], tailOffset);
+            }
+            listener.downloadFinished(source, downloaded, (System.nanoTime() - start) / 1000000);
+
+        } finally {
+            file.close();
+        }
+        return true;
+    }
+
+    /**
+     * Download a part of the file that is not in the already downloaded end
+     * @param source Source URL
+     * @param out Channel of the sparse file
+     * @param offset Offset of the part
+     * @param length Length of the part
+     * @param tailOffset Start of the downloaded end of the file
+     * @return Amount of downloaded bytes
+     * @throws IOException
+     */
+    private long fetchMissing(String source, FileChannel out, long offset, long length,
+                              long tailOffset) throws IOException {
+        length = Math.min(length, tailOffset - offset);
+        if (length <= 0) {
+            return 0;
+        }
+        downloader.downloadRange(source, offset, length, out);
+        return length;
+    }
+
+    /**
+     * Read a part of the sparse file
+     * @param channel Channel of the sparse file
+     * @param offset Offset of the part
+     * @param length Length of the part
+     * @return Buffer with the part (little endian)
+     * @throws IOException
+     */
+    private static ByteBuffer read(FileChannel channel, long offset, long length)
+            throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("ZIP central directory too large: " + length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) == -1) {
+                throw new IOException("Unexpected end of ZIP file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Find the end of central directory record
+     * @param tail End of the file
+     * @return Position of the record in the buffer or -1 if not found
+     */
+    private static int findEnd(ByteBuffer tail) {
+        // search from the end (the comment is after the record)
+        for (int position = tail.limit() - endSize; position >= 0; --position) {
+            if (tail.getInt(position) == endSignature &&
+                    position + endSize + (tail.getShort(position + 20) & 0xFFFF) == tail.limit()) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read the entries of the central directory
+     * @param directory Central directory
+     * @param entryCount Amount of entries
+     * @param directoryOffset Offset of the central directory (end of the last entry)
+     * @return Entries ordered by their offset
+     * @throws IOException
+     */
+    private static List<Entry> readDirectory(ByteBuffer directory, long entryCount,
+                                             long directoryOffset) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        int position = 0;
+        for (long i = 0; i < entryCount; ++i) {
+            if (position + 46 > directory.limit() ||
+                    directory.getInt(position) != centralSignature) {
+                throw new IOException("Invalid ZIP central directory entry " + i);
+            }
+            int nameLength = directory.getShort(position + 28) & 0xFFFF;
+            int extraLength = directory.getShort(position + 30) & 0xFFFF;
+            int commentLength = directory.getShort(position + 32) & 0xFFFF;
+
+            Entry entry = new Entry();
+            entry.name = new String(directory.array(), position + 46, nameLength,
+                    StandardCharsets.UTF_8);
+            entry.offset = directory.getInt(position + 42) & 0xFFFFFFFFL;
+
+            // ZIP64 extra field with the large values
+            if (entry.offset == 0xFFFFFFFFL) {
+                entry.offset = readZip64Offset(directory, position,
+                        position + 46 + nameLength, extraLength);
+            }
+            entries.add(entry);
+            position += 46 + nameLength + extraLength + commentLength;
+        }
+
+        // an entry ends at the next local header
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                return Long.compare(o1.offset, o2.offset);
+            }
+        });
+        long end = directoryOffset;
+        for (int i = entries.size() - 1; i >= 0; --i) {
+            Entry entry = entries.get(i);
+            entry.end = end;
+            if (entry.offset < end) {
+                end = entry.offset;
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Get the local header offset of an entry from the ZIP64 extra field
+     * @param directory Central directory
+     * @param header Position of the central directory file header
+     * @param extra Position of the extra fields
+     * @param extraLength Length of the extra fields
+     * @return Offset of the local file header
+     * @throws IOException
+     */
+    private static long readZip64Offset(ByteBuffer directory, int header, int extra,
+                                        int extraLength) throws IOException {
+        int end = extra + extraLength;
+        while (extra + 4 <= end) {
+            int id = directory.getShort(extra) & 0xFFFF;
+            int length = directory.getShort(extra + 2) & 0xFFFF;
+            if (id == 0x0001) {
+                // only the values that are too large for the header are stored
+                int position = extra + 4;
+                if ((directory.getInt(header + 24) & 0xFFFFFFFFL) == 0xFFFFFFFFL) {
+                    position += 8;
+                }
+                if ((directory.getInt(header + 20) & 0xFFFFFFFFL) == 0xFFFFFFFFL) {
+                    position += 8;
+                }
+                if (position + 8 <= extra + 4 + length) {
+                    return directory.getLong(position);
+                }
+            }
+            extra += 4 + length;
+        }
+        throw new IOException("Invalid ZIP64 extra field");
+    }
+
+    /**
+     * Add the range of an entry (joined with the previous range if near)
+     * @param ranges Ranges (start, end)
+     * @param start Start of the entry
+     * @param end End of the entry
+     */
+    private static void addRange(List<long[]> ranges, long start, long end) {
+        if (!ranges.isEmpty()) {
+            long[] last = ranges.get(ranges.size() - 1);
+            if (start - last[1] <= maxGap) {
+                last[1] = Math.max(last[1], end);
+                return;
+            }
+        }
+        ranges.add(new long[] {start, end});
+    }
+}
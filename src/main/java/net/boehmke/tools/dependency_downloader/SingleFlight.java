@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.*;
+
+/**
+ * Coalesces concurrent calls with the same key
+ *
+ * The first caller of a key runs the call, all callers that arrive while it
+ * is running wait for it and get the same result (or exception). A later
+ * call with the same key runs again.
+ * @param <T> Type of the result
+ */
+public class SingleFlight<T> {
+    /**
+     * Running calls by key
+     */
+    private final ConcurrentMap<String, FutureTask<T>> flights = new ConcurrentHashMap<>();
+
+    /**
+     * Run the call or wait for a running call with the same key
+     * @param key Key of the call (e.g. URL)
+     * @param call Call to run
+     * @return Result of the call
+     * @throws IOException
+     * @throws ExecutionException
+     */
+    public T run(String key, Callable<T> call) throws IOException, ExecutionException {
+        FutureTask<T> task = new FutureTask<>(call);
+
+        // start call or join a running one
+        FutureTask<T> running = flights.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                flights.remove(key, task);
+            }
+        }
+
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + key);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Check if a call with the key is running
+     * @param key Key of the call
+     * @return True if a call is running
+     */
+    public boolean isRunning(String key) {
+        return flights.containsKey(key);
+    }
+}
@@ -8,22 +8,52 @@
 package net.boehmke.tools.dependency_downloader;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Base functionality to extract a TAR file
  */
 public class Tar {
-
     /**
      * Extract the given TAR file
      * @param sourceFile Path to the Tar file
      * @param destination Destination path for extraction
-     * @param subdir Sub directory in zip file that should be extracted
+     * @param filter Filter of the extracted entries
+     * @param listener Listener for the progress
      * @throws IOException
      */
     public static void extract(String sourceFile, String destination,
-                               String subdir) throws IOException {
+                               EntryFilter filter, DependencyListener listener)
+            throws IOException {
+        extract(sourceFile, destination, filter, 1, listener);
+    }
+
+    /**
+     * Extract the given TAR file with writer threads
+     *
+     * With more than one thread the TAR data is read by the calling thread
+     * and small files are created and written by a pool of writer threads.
+     * This helps for archives with many small files where opening and
+     * closing the files takes more time than reading the data.
+     * @param sourceFile Path to the Tar file
+     * @param destination Destination path for extraction
+     * @param filter Filter of the extracted entries
+     * @param writerThreads Amount of writer threads (1 to write in the calling thread)
+     * @param listener Listener for the progress
+     * @throws IOException
+     */
+    public static void extract(String sourceFile, String destination, EntryFilter filter,
+                               int writerThreads, DependencyListener listener)
+            throws IOException {
         // create output directory if not exists
         File directory = new File(destination);
         if(!directory.exists() &&
@@ -33,84 +63,634 @@ public class Tar {
                     destination);
         }
 
-        System.out.println("  Tar extract...");
+        listener.message("Tar extract...");
 
         // get input stream
         FileInputStream in = new FileInputStream(sourceFile);
+        try {
+            extractStream(in, directory, filter, null, writerThreads);
+        } finally {
+            in.close();
+        }
+        listener.stepFinished();
+    }
 
-        // prepare buffer
+    /**
+     * Extract the selected entries of a TAR file with the entry index
+     *
+     * Only the data of the selected entries is read (positional reads of
+     * the file), the headers of the other entries are skipped.
+     * @param sourceFile Path to the Tar file
+     * @param index Index of the Tar file (see createIndex)
+     * @param destination Destination path for extraction
+     * @param filter Filter of the extracted entries
+     * @param writerThreads Amount of writer threads (1 to write in the calling thread)
+     * @param listener Listener for the progress
+     * @throws IOException
+     */
+    public static void extract(String sourceFile, TarIndex index, String destination,
+                               EntryFilter filter, int writerThreads,
+                               DependencyListener listener)
+            throws IOException {
+        // create output directory if not exists
+        File directory = new File(destination);
+        if(!directory.exists() &&
+                !directory.mkdirs()) {
+
+            throw new IOException("Failed to create destination directory: " +
+                    destination);
+        }
+
+        listener.message("Tar extract (indexed)...");
+
+        // directories that are known to exist
+        DirectoryCache directories = new DirectoryCache();
+
+        // writer threads for small files (if enabled)
+        ParallelWriter writer = null;
+        if (writerThreads > 1) {
+            writer = new ParallelWriter(writerThreads, directories);
+        }
+
+        FileChannel in = FileChannel.open(Paths.get(sourceFile), StandardOpenOption.READ);
+        try {
+            for (TarIndex.Entry entry: index.getEntries()) {
+                // get destination name if entry is a file (null if entry is filtered)
+                if (entry.getType() != 0) {
+                    continue;
+                }
+                String fileName = filter.map(entry.getName());
+                if (fileName == null) {
+                    continue;
+                }
+
+                // get destination file and position of the data
+                File destinationFile = new File(directory.getPath() + "/" + fileName);
+                long position = entry.getOffset() + 512;
+                long size = entry.getSize();
+
+                // small files are written by the writer threads
+                if (writer != null && size <= ParallelWriter.bufferSize) {
+                    byte[] data = writer.takeBuffer();
+                    ByteBuffer buffer = ByteBuffer.wrap(data, 0, (int) size);
+                    while (buffer.hasRemaining()) {
+                        if (in.read(buffer, position + buffer.position()) == -1) {
+                            writer.releaseBuffer(data);
+                            throw new IOException("Invalid TAR file");
+                        }
+                    }
+                    writer.write(destinationFile, data, (int) size);
+                    continue;
+                }
+
+                // copy data from the file position (after a pending write of the same file)
+                if (writer != null) {
+                    writer.waitFor(destinationFile);
+                }
+                FileOutputStream out = createFile(destinationFile, directories);
+                try {
+                    long copied = 0;
+                    while (copied < size) {
+                        long transferred = in.transferTo(position + copied, size - copied,
+                                                         out.getChannel());
+                        if (transferred <= 0) {
+                            throw new IOException("Invalid TAR file");
+                        }
+                        copied += transferred;
+                    }
+                } finally {
+                    out.close();
+                }
+            }
+
+            // wait for all pending writes
+            if (writer != null) {
+                writer.finish();
+                writer = null;
+            }
+        } finally {
+            in.close();
+            if (writer != null) {
+                writer.abort();
+            }
+        }
+        listener.stepFinished();
+    }
+
+    /**
+     * Create the entry index of a TAR file
+     *
+     * Only the headers are read, the data of the entries is skipped.
+     * @param sourceFile Path to the Tar file
+     * @return Index of all entries
+     * @throws IOException
+     */
+    public static TarIndex createIndex(String sourceFile) throws IOException {
+        TarIndex index = new TarIndex();
         byte[] header = new byte[512];
-        byte[] buffer = new byte[512];
+        ByteBuffer buffer = ByteBuffer.wrap(header);
 
-        // read data
-        int size;
-        while ((size = in.read(header)) != -1) {
-            if (size < 512 || isArrayEmpty(header)) {
-                break;
+        FileChannel in = FileChannel.open(Paths.get(sourceFile), StandardOpenOption.READ);
+        try {
+            // offset of the current header
+            long position = 0;
+            while (true) {
+                // read header at its position
+                buffer.clear();
+                while (buffer.hasRemaining() &&
+                        in.read(buffer, position + buffer.position()) != -1) {
+                    // read until complete
+                }
+                if (buffer.hasRemaining() || isArrayEmpty(header)) {
+                    break;
+                }
+
+                // add entry and skip its data
+                long fileSize = getOctalLong(header, 124, 12);
+                index.add(getString(header, 0, 100), getOctal(header, 156, 1),
+                          position, fileSize);
+                position += 512 + (fileSize + 511) / 512 * 512;
             }
+        } finally {
+            in.close();
+        }
+        return index;
+    }
+
+    /**
+     * Extract the given TAR stream
+     * @param in Stream with TAR data (not closed)
+     * @param destination Destination path for extraction
+     * @param filter Filter of the extracted entries
+     * @param listener Listener for the progress
+     * @throws IOException
+     */
+    public static void extract(InputStream in, String destination,
+                               EntryFilter filter, DependencyListener listener)
+            throws IOException {
+        extract(in, destination, filter, null, 1, listener);
+    }
+
+    /**
+     * Extract the given TAR stream and collect the entry offsets
+     * @param in Stream with TAR data (not closed)
+     * @param destination Destination path for extraction
+     * @param filter Filter of the extracted entries
+     * @param index Index for all entries of the stream (or null)
+     * @param writerThreads Amount of writer threads (1 to write in the calling thread)
+     * @param listener Listener for the progress
+     * @throws IOException
+     */
+    public static void extract(InputStream in, String destination, EntryFilter filter,
+                               TarIndex index, int writerThreads,
+                               DependencyListener listener)
+            throws IOException {
+        // create output directory if not exists
+        File directory = new File(destination);
+        if(!directory.exists() &&
+                !directory.mkdirs()) {
 
-            // get type and file size
-            int type = getOctal(header, 156, 1);
-            long file_size = getOctalLong(header, 124, 12);
+            throw new IOException("Failed to create destination directory: " +
+                    destination);
+        }
 
-            // create out stream if entry is a file
-            FileOutputStream out = null;
-            if (type == 0) {
-                // get file name
-                String fileName = getString(header, 0, 100);
+        listener.message("Tar extract...");
+        extractStream(in, directory, filter, index, writerThreads);
+        listener.stepFinished();
+    }
 
-                // if sub directory is set copy only this files
-                if (!subdir.isEmpty()) {
-                    if (fileName.startsWith(subdir)) {
-                        fileName = fileName.replaceFirst(subdir, "");
-                    } else {
-                        // skip this entry
-                        continue;
-                    }
+    /**
+     * Extract the entries of a TAR stream
+     * @param in Stream with TAR data
+     * @param directory Destination directory
+     * @param filter Filter of the extracted entries
+     * @param index Index for all entries of the stream (or null)
+     * @param writerThreads Amount of writer threads (1 to write in the calling thread)
+     * @throws IOException
+     */
+    private static void extractStream(InputStream in, File directory, EntryFilter filter,
+                                      TarIndex index, int writerThreads) throws IOException {
+        // prepare buffer
+        byte[] header = new byte[512];
+
+        // file data of a TAR file is transferred between the file channels,
+        // data of other streams is copied with pooled heap buffers
+        FileChannel channel = null;
+        if (in instanceof FileInputStream) {
+            channel = ((FileInputStream) in).getChannel();
+        }
+
+        // directories that are known to exist
+        DirectoryCache directories = new DirectoryCache();
+
+        // writer threads for small files (if enabled)
+        ParallelWriter writer = null;
+        if (writerThreads > 1) {
+            writer = new ParallelWriter(writerThreads, directories);
+        }
+
+        try {
+            // offset of the current header
+            long position = 0;
+
+            // read data
+            int size;
+            while ((size = readBlock(in, header)) != -1) {
+                if (size < 512 || isArrayEmpty(header)) {
+                    break;
+                }
+
+                // get type and file size
+                int type = getOctal(header, 156, 1);
+                long file_size = getOctalLong(header, 124, 12);
+                long data_size = (file_size + 511) / 512 * 512;
+
+                // add entry to index
+                if (index != null) {
+                    index.add(getString(header, 0, 100), type, position, file_size);
+                }
+                position += 512 + data_size;
+
+                // get destination name if entry is a file (null if entry is filtered)
+                String fileName = null;
+                if (type == 0) {
+                    fileName = filter.map(getString(header, 0, 100));
+                }
+
+                // skip data of other entries without reading it
+                if (fileName == null) {
+                    skipFully(in, data_size);
+                    continue;
                 }
 
                 // get destination file
                 File destinationFile = new File(directory.getPath() + "/" + fileName);
 
-                // create parent directory of destination file if not exist
-                if(!destinationFile.getParentFile().exists() &&
-                        !destinationFile.getParentFile().mkdirs()) {
+                // small files are written by the writer threads
+                if (writer != null && data_size <= ParallelWriter.bufferSize) {
+                    byte[] data = writer.takeBuffer();
+                    if (readFully(in, data, (int) data_size) < data_size) {
+                        writer.releaseBuffer(data);
+                        throw new IOException("Invalid TAR file");
+                    }
+                    writer.write(destinationFile, data, (int) file_size);
+                    continue;
+                }
 
-                    throw new IOException("Failed to create destination directory: " +
-                            destinationFile.getParent());
+                // create stream (after a pending write of the same file)
+                if (writer != null) {
+                    writer.waitFor(destinationFile);
+                }
+                FileOutputStream out = createFile(destinationFile, directories);
+                try {
+                    // copy TAR data (stop if not enough data was read)
+                    if (channel != null) {
+                        transfer(channel, out.getChannel(), file_size);
+                    } else if (BufferPool.copy(in, out, file_size) < file_size) {
+                        throw new IOException("Invalid TAR file");
+                    }
+                } finally {
+                    // close stream
+                    out.close();
                 }
 
-                // create stream
-                out = new FileOutputStream(destinationFile);
+                // do not append extra "0"s
+                skipFully(in, data_size - file_size);
             }
 
-            // read TAR data
-            for (int i = 0; i*512 < file_size; ++i) {
-                int read = in.read(buffer, 0, 512);
+            // wait for all pending writes
+            if (writer != null) {
+                writer.finish();
+                writer = null;
+            }
+        } finally {
+            if (writer != null) {
+                writer.abort();
+            }
+        }
+    }
 
-                // stop if not enough data was read
-                if (read < 512) {
-                    throw new IOException("Invalid TAR file");
-                }
+    /**
+     * Transfer data from the current position of a file channel
+     * @param in Source channel (position is moved behind the data)
+     * @param out Destination channel
+     * @param size Amount of bytes to transfer
+     * @throws IOException
+     */
+    private static void transfer(FileChannel in, FileChannel out, long size)
+            throws IOException {
+        long position = in.position();
+        long copied = 0;
+        while (copied < size) {
+            long transferred = in.transferTo(position + copied, size - copied, out);
+            if (transferred <= 0) {
+                throw new IOException("Invalid TAR file");
+            }
+            copied += transferred;
+        }
+        in.position(position + size);
+    }
+
+    /**
+     * Create a destination file (and its parent directories)
+     * @param destinationFile File to create
+     * @param directories Directories that are known to exist
+     * @return Stream of the new file
+     * @throws IOException
+     */
+    private static FileOutputStream createFile(File destinationFile,
+                                               DirectoryCache directories)
+            throws IOException {
+        // create parent directory of destination file if not exist
+        directories.create(destinationFile.getParentFile());
+
+        // replace existing file (never write into a maybe linked file)
+        Files.deleteIfExists(destinationFile.toPath());
+
+        // create stream
+        return new FileOutputStream(destinationFile);
+    }
+
+    /**
+     * Cache of directories that are known to exist (thread safe)
+     */
+    private static class DirectoryCache {
+        /**
+         * Paths of existing directories
+         */
+        private final Set<String> directories =
+                Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        /**
+         * Create the directory if it is not known to exist
+         * @param directory Directory to create
+         * @throws IOException
+         */
+        void create(File directory) throws IOException {
+            String path = directory.getPath();
+            if (directories.contains(path)) {
+                return;
+            }
+
+            // mkdirs fails if the directory exist (maybe created by other thread)
+            if (!directory.mkdirs() && !directory.isDirectory()) {
+                throw new IOException("Failed to create destination directory: " + path);
+            }
+
+            // all parents exist too
+            for (File dir = directory; dir != null && directories.add(dir.getPath()); ) {
+                dir = dir.getParentFile();
+            }
+        }
+    }
+
+    /**
+     * Writer threads for small files
+     *
+     * The reader thread reads the complete data of a file into a buffer of a
+     * fixed pool and the writer threads create, write and close the files in
+     * parallel. The pool limits the memory usage and blocks the reader if
+     * all writers are busy.
+     */
+    private static class ParallelWriter {
+        /**
+         * Size of a pool buffer (maximal size of files written in parallel)
+         */
+        static final int bufferSize = 256*1024;
+
+        /**
+         * Pool of free buffers
+         */
+        private final BlockingQueue<byte[]> buffers;
+
+        /**
+         * Writer threads
+         */
+        private final ExecutorService executor;
+
+        /**
+         * Directories that are known to exist
+         */
+        private final DirectoryCache directories;
+
+        /**
+         * First error of a writer thread
+         */
+        private final AtomicReference<IOException> error = new AtomicReference<>();
+
+        /**
+         * Pending writes by path (a later entry with the same name must win)
+         */
+        private final ConcurrentMap<String, Future<?>> pending = new ConcurrentHashMap<>();
+
+        /**
+         * Create the writer
+         * @param threads Amount of writer threads
+         * @param directories Directories that are known to exist
+         */
+        ParallelWriter(int threads, DirectoryCache directories) {
+            this.executor = Executors.newFixedThreadPool(threads);
+            this.directories = directories;
 
-                // write data to out stream if entry is a file
-                if (out != null) {
-                    // do not append extra "0"s
-                    if (i*512 + 512 > file_size) {
-                        out.write(buffer, 0, (int)file_size-i*512);
-                    } else {
-                        out.write(buffer);
+            // four buffers per thread keep the writers busy
+            this.buffers = new ArrayBlockingQueue<>(threads*4);
+            for (int i = 0; i < threads*4; ++i) {
+                buffers.add(new byte[bufferSize]);
+            }
+        }
+
+        /**
+         * Take a free buffer from the pool (waits if all are in use)
+         * @return Buffer
+         * @throws IOException
+         */
+        byte[] takeBuffer() throws IOException {
+            checkError();
+            try {
+                return buffers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for buffer");
+            }
+        }
+
+        /**
+         * Return a buffer to the pool
+         * @param buffer Buffer
+         */
+        void releaseBuffer(byte[] buffer) {
+            buffers.add(buffer);
+        }
+
+        /**
+         * Write the buffer to the file in a writer thread
+         *
+         * A pending write of the same file is finished first, so entries
+         * with the same name (appended TAR files) are written in order.
+         * @param file Destination file
+         * @param data Buffer with file data (returned to pool after write)
+         * @param size Size of the file
+         * @throws IOException
+         */
+        void write(final File file, final byte[] data, final int size) throws IOException {
+            final String path = getKey(file);
+            try {
+                waitFor(file);
+            } catch (IOException e) {
+                releaseBuffer(data);
+                throw e;
+            }
+
+            FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // skip if a previous write failed
+                        if (error.get() != null) {
+                            return;
+                        }
+
+                        FileOutputStream out = createFile(file, directories);
+                        try {
+                            out.write(data, 0, size);
+                        } finally {
+                            out.close();
+                        }
+                    } catch (IOException e) {
+                        error.compareAndSet(null, e);
+                    } finally {
+                        releaseBuffer(data);
                     }
                 }
+            }, null) {
+                @Override
+                protected void done() {
+                    pending.remove(path, this);
+                }
+            };
+            pending.put(path, task);
+            executor.execute(task);
+        }
+
+        /**
+         * Wait until a pending write of the file is finished
+         *
+         * Must be called before the reader thread writes the file itself.
+         * @param file Destination file
+         * @throws IOException
+         */
+        void waitFor(File file) throws IOException {
+            Future<?> task = pending.get(getKey(file));
+            if (task == null) {
+                return;
+            }
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing " + file);
+            } catch (ExecutionException e) {
+                // errors are reported by checkError
+            }
+            checkError();
+        }
+
+        /**
+         * Get the key of a file for the pending writes
+         * @param file Destination file
+         * @return Normalized path
+         */
+        private static String getKey(File file) {
+            return file.toPath().normalize().toString();
+        }
+
+        /**
+         * Wait until all files are written
+         * @throws IOException
+         */
+        void finish() throws IOException {
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    // wait
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing files");
+            }
+            checkError();
+        }
+
+        /**
+         * Stop all writer threads
+         */
+        void abort() {
+            executor.shutdownNow();
+        }
+
+        /**
+         * Throw the error of a writer thread (if any)
+         * @throws IOException
+         */
+        private void checkError() throws IOException {
+            IOException e = error.get();
+            if (e != null) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Skip the given amount of bytes (seeks for files)
+     * @param in Input stream
+     * @param size Amount of bytes to skip
+     * @throws IOException
+     */
+    private static void skipFully(InputStream in, long size) throws IOException {
+        while (size > 0) {
+            long skipped = in.skip(size);
+            if (skipped <= 0) {
+                // skip not possible -> read to check for end of stream
+                if (in.read() == -1) {
+                    throw new IOException("Invalid TAR file");
+                }
+                skipped = 1;
             }
+            size -= skipped;
+        }
+    }
 
-            // close stream if opened
-            if (out != null) {
-                out.close();
+    /**
+     * Read the given amount of bytes from the stream
+     * @param in Input stream
+     * @param buffer Target buffer
+     * @param length Amount of bytes to read
+     * @return Amount of read bytes (lower than length if the stream ended)
+     * @throws IOException
+     */
+    private static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int size = 0;
+        while (size < length) {
+            int read = in.read(buffer, size, length - size);
+            if (read == -1) {
+                break;
             }
+            size += read;
         }
-        System.out.println("  Done!");
-        in.close();
+        return size;
+    }
+
+    /**
+     * Read a complete block from the stream
+     * @param in Input stream
+     * @param block Block buffer
+     * @return Size of the read data or -1 if the stream ended
+     * @throws IOException
+     */
+    private static int readBlock(InputStream in, byte[] block) throws IOException {
+        int size = readFully(in, block, block.length);
+        return size == 0 ? -1 : size;
     }
 
     /**
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Offset table of the entries of a TAR archive
+ *
+ * The table is collected while the archive is extracted and stored next to
+ * the archive. Later extractions of a sub directory only read the part of
+ * the archive that contains the entries of the sub directory.
+ *
+ * Layout (big endian):
+ * <pre>
+ *   "DDTARIDX"         magic (8 bytes)
+ *   int version        format version (1)
+ *   long archiveSize   size of the indexed archive file
+ *   long archiveTime   modification time of the indexed archive file
+ *   int count          amount of entries
+ *   count * entry:
+ *     UTF name         name of the entry
+ *     int type         type of the entry
+ *     long offset      offset of the entry header in the TAR data
+ *     long size        size of the entry data
+ * </pre>
+ */
+public class TarIndex {
+    /**
+     * Magic at the start of every index file
+     */
+    private static final byte[] magic = "DDTARIDX".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Version of the index format
+     */
+    private static final int version = 1;
+
+    /**
+     * Entry of the TAR archive
+     */
+    public static class Entry {
+        /**
+         * Name of the entry
+         */
+        private final String name;
+        /**
+         * Type of the entry
+         */
+        private final int type;
+        /**
+         * Offset of the entry header in the TAR data
+         */
+        private final long offset;
+        /**
+         * Size of the entry data
+         */
+        private final long size;
+
+        /**
+         * Create the entry
+         * @param name Name of the entry
+         * @param type Type of the entry
+         * @param offset Offset of the entry header in the TAR data
+         * @param size Size of the entry data
+         */
+        private Entry(String name, int type, long offset, long size) {
+            this.name = name;
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        /**
+         * @return Name of the entry
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return Type of the entry (0 for files)
+         */
+        public int getType() {
+            return type;
+        }
+
+        /**
+         * @return Offset of the entry header in the TAR data
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return Size of the entry data
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return Offset behind the entry data (next header)
+         */
+        public long getEnd() {
+            return offset + 512 + (size + 511) / 512 * 512;
+        }
+    }
+
+    /**
+     * Entries in archive order
+     */
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * Add an entry (called while the archive is read)
+     * @param name Name of the entry
+     * @param type Type of the entry
+     * @param offset Offset of the entry header in the TAR data
+     * @param size Size of the entry data
+     */
+    public void add(String name, int type, long offset, long size) {
+        entries.add(new Entry(name, type, offset, size));
+    }
+
+    /**
+     * Get all entries of the archive
+     * @return Entries in archive order
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Get the part of the TAR data that contains all entries of a sub directory
+     * @param subdir Sub directory (prefix of the entry names)
+     * @return Start and end offset or null if no entry is in the sub directory
+     */
+    public long[] getRange(String subdir) {
+        long[] range = null;
+        for (Entry entry: entries) {
+            if (entry.name.startsWith(subdir)) {
+                if (range == null) {
+                    range = new long[] {entry.offset, entry.getEnd()};
+                } else {
+                    range[1] = Math.max(range[1], entry.getEnd());
+                }
+            }
+        }
+        return range;
+    }
+
+    /**
+     * Load the index of an archive
+     * @param indexFile Index file
+     * @param archive Indexed archive file
+     * @return Index or null if it not exists or the archive was changed
+     * @throws IOException
+     */
+    public static TarIndex load(File indexFile, File archive) throws IOException {
+        if (!indexFile.isFile()) {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            byte[] fileMagic = new byte[magic.length];
+            in.readFully(fileMagic);
+            if (!Arrays.equals(fileMagic, magic) || in.readInt() != version ||
+                    in.readLong() != archive.length() ||
+                    in.readLong() != archive.lastModified()) {
+                return null;
+            }
+
+            TarIndex index = new TarIndex();
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                index.add(in.readUTF(), in.readInt(), in.readLong(), in.readLong());
+            }
+            return index;
+
+        } catch (EOFException e) {
+            // incomplete index -> rebuild
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Save the index of an archive
+     * @param indexFile Index file
+     * @param archive Indexed archive file
+     * @throws IOException
+     */
+    public void save(File indexFile, File archive) throws IOException {
+        // write into temp file and move it into place (parallel runs)
+        File tmpFile = File.createTempFile("index", ".tmp", indexFile.getAbsoluteFile().getParentFile());
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.write(magic);
+                out.writeInt(version);
+                out.writeLong(archive.length());
+                out.writeLong(archive.lastModified());
+                out.writeInt(entries.size());
+                for (Entry entry: entries) {
+                    out.writeUTF(entry.name);
+                    out.writeInt(entry.type);
+                    out.writeLong(entry.offset);
+                    out.writeLong(entry.size);
+                }
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(tmpFile.toPath(), indexFile.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                // replace an outdated index without atomic move
+                Files.move(tmpFile.toPath(), indexFile.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+    }
+}
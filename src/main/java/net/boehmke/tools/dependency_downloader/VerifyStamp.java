@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Properties;
+
+/**
+ * Verification stamp of a cache file
+ *
+ * After a successful checksum check the digest is stored next to the file
+ * ("FILE.verified") together with the file key (inode), size and
+ * modification time of the file. As long as these attributes are unchanged
+ * the digest is not calculated again.
+ */
+public class VerifyStamp {
+    /**
+     * Suffix of the stamp files
+     */
+    public static final String suffix = ".verified";
+
+    /**
+     * Stamped file
+     */
+    private final File file;
+
+    /**
+     * Attributes of the file at the creation of the stamp
+     */
+    private final Properties attributes;
+
+    /**
+     * Verified digests (algorithm -> digest)
+     */
+    private final Properties digests = new Properties();
+
+    /**
+     * Create an empty stamp with the current attributes of the file
+     * @param file Stamped file
+     * @throws IOException
+     */
+    public VerifyStamp(File file) throws IOException {
+        this.file = file;
+        this.attributes = readAttributes(file);
+    }
+
+    /**
+     * Load the stamp of a file
+     * @param file Stamped file
+     * @return Stamp (without digests if the file was changed)
+     * @throws IOException
+     */
+    public static VerifyStamp load(File file) throws IOException {
+        VerifyStamp stamp = new VerifyStamp(file);
+
+        File stampFile = new File(file.getPath() + suffix);
+        if (!stampFile.isFile()) {
+            return stamp;
+        }
+
+        Properties stored = new Properties();
+        try {
+            InputStream in = new FileInputStream(stampFile);
+            try {
+                stored.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // broken stamp -> verify again
+            return stamp;
+        }
+
+        // digests are only valid for the unchanged file
+        for (String name: stamp.attributes.stringPropertyNames()) {
+            if (!stamp.attributes.getProperty(name).equals(stored.getProperty(name))) {
+                return stamp;
+            }
+        }
+        for (String name: stored.stringPropertyNames()) {
+            if (name.startsWith("digest.")) {
+                stamp.digests.setProperty(name.substring(7), stored.getProperty(name));
+            }
+        }
+        return stamp;
+    }
+
+    /**
+     * Check if a digest was verified
+     * @param algorithm Hash algorithm (e.g. "SHA1")
+     * @param digest Expected digest
+     * @return True if the file was verified with this digest
+     */
+    public boolean isVerified(String algorithm, String digest) {
+        return digest.equals(digests.getProperty(algorithm));
+    }
+
+    /**
+     * Get a verified digest
+     * @param algorithm Hash algorithm (e.g. "SHA1")
+     * @return Digest or null if not verified
+     */
+    public String getDigest(String algorithm) {
+        return digests.getProperty(algorithm);
+    }
+
+    /**
+     * Add a verified digest
+     * @param algorithm Hash algorithm (e.g. "SHA1")
+     * @param digest Digest of the file
+     */
+    public void add(String algorithm, String digest) {
+        digests.setProperty(algorithm, digest);
+    }
+
+    /**
+     * Store the stamp next to the file
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        Properties stored = new Properties();
+        stored.putAll(attributes);
+        for (String name: digests.stringPropertyNames()) {
+            stored.setProperty("digest." + name, digests.getProperty(name));
+        }
+
+        // write into temp file and move it into place (parallel runs)
+        File stampFile = new File(file.getPath() + suffix);
+        File tmpFile = File.createTempFile("stamp", ".tmp",
+                stampFile.getAbsoluteFile().getParentFile());
+        try {
+            OutputStream out = new FileOutputStream(tmpFile);
+            try {
+                stored.store(out, "Verified digests of " + file.getName());
+            } finally {
+                out.close();
+            }
+            Files.move(tmpFile.toPath(), stampFile.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+    }
+
+    /**
+     * Read the attributes of a file that change with its content
+     * @param file File
+     * @return File key, size and modification time
+     * @throws IOException
+     */
+    private static Properties readAttributes(File file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+
+        Properties attributes = new Properties();
+        // file key is not available on all platforms
+        attributes.setProperty("key", String.valueOf(attrs.fileKey()));
+        attributes.setProperty("size", Long.toString(attrs.size()));
+        attributes.setProperty("mtime", attrs.lastModifiedTime().toString());
+        return attributes;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind stage between a network reader and a file writer
+ *
+ * The reader takes a free buffer of a bounded ring, fills it and submits
+ * it. A writer thread writes the submitted buffers in order and returns
+ * them to the ring. A slow disk only blocks the reader if all buffers of
+ * the ring are filled (back-pressure), so short write stalls do not stop
+ * reading from the socket. The buffers are heap buffers, the reader fills
+ * their array and the writer writes it to the stream.
+ */
+public class WriteBehind {
+    /**
+     * Marker for the end of the data
+     */
+    private static final ByteBuffer endMarker = ByteBuffer.allocate(0);
+
+    /**
+     * Destination of the data
+     */
+    private final OutputStream out;
+
+    /**
+     * Amount of buffers in the ring
+     */
+    private final int capacity;
+
+    /**
+     * Free buffers of the ring
+     */
+    private final BlockingQueue<ByteBuffer> free;
+
+    /**
+     * Filled buffers that wait for the writer
+     */
+    private final BlockingQueue<ByteBuffer> filled;
+
+    /**
+     * Writer thread
+     */
+    private final Thread writer;
+
+    /**
+     * First error of the writer thread
+     */
+    private volatile IOException error = null;
+
+    /**
+     * Amount of submitted buffers
+     */
+    private long submitted = 0;
+
+    /**
+     * Sum of the queued buffers at each submit (for the average occupancy)
+     */
+    private long occupancySum = 0;
+
+    /**
+     * Maximum amount of queued buffers
+     */
+    private int maxOccupancy = 0;
+
+    /**
+     * Amount of takes that waited for a free buffer
+     */
+    private long backPressureCount = 0;
+
+    /**
+     * Time the reader waited for free buffers in ns
+     */
+    private long backPressureTime = 0;
+
+    /**
+     * Create the stage and start the writer thread
+     * @param out Destination of the data (written by the writer thread)
+     * @param buffers Amount of buffers in the ring
+     * @param sizeHint Expected amount of data (for the buffer size, negative if unknown)
+     */
+    public WriteBehind(OutputStream out, int buffers, long sizeHint) {
+        this.out = out;
+        this.capacity = Math.max(1, buffers);
+        this.free = new ArrayBlockingQueue<>(capacity);
+        this.filled = new ArrayBlockingQueue<>(capacity + 1);
+        for (int i = 0; i < capacity; ++i) {
+            free.add(BufferPool.acquireHeap(sizeHint));
+        }
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "write-behind");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Take a free buffer (waits if all buffers are filled)
+     * @return Cleared buffer
+     * @throws IOException Error of the writer thread
+     */
+    public ByteBuffer take() throws IOException {
+        checkError();
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            // disk is slower than the network
+            long start = System.nanoTime();
+            backPressureCount++;
+            try {
+                while (buffer == null) {
+                    buffer = free.poll(100, TimeUnit.MILLISECONDS);
+                    checkError();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for write buffer");
+            } finally {
+                backPressureTime += System.nanoTime() - start;
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Submit a filled buffer of take for writing
+     * @param buffer Buffer with the data between 0 and the position
+     * @throws IOException Error of the writer thread
+     */
+    public void submit(ByteBuffer buffer) throws IOException {
+        checkError();
+        buffer.flip();
+        filled.add(buffer);
+
+        // update occupancy
+        int occupancy = filled.size();
+        submitted++;
+        occupancySum += occupancy;
+        maxOccupancy = Math.max(maxOccupancy, occupancy);
+    }
+
+    /**
+     * Write all submitted buffers, stop the writer thread and release the buffers
+     *
+     * Must be called after the last submit (also after errors of the
+     * reader, so the data until the error is written).
+     * @throws IOException Error of the writer thread
+     */
+    public void close() throws IOException {
+        filled.add(endMarker);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            writer.interrupt();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing");
+        } finally {
+            ByteBuffer buffer;
+            while ((buffer = free.poll()) != null) {
+                BufferPool.release(buffer);
+            }
+        }
+        checkError();
+    }
+
+    /**
+     * @return Amount of buffers in the ring
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Maximum amount of filled buffers that waited for the writer
+     */
+    public int getMaxOccupancy() {
+        return maxOccupancy;
+    }
+
+    /**
+     * @return Average amount of filled buffers that waited for the writer
+     */
+    public double getAverageOccupancy() {
+        return submitted > 0 ? (double) occupancySum / submitted : 0;
+    }
+
+    /**
+     * @return Amount of takes that waited for a free buffer
+     */
+    public long getBackPressureCount() {
+        return backPressureCount;
+    }
+
+    /**
+     * @return Time the reader waited for free buffers in ms
+     */
+    public long getBackPressureMillis() {
+        return backPressureTime / 1000000;
+    }
+
+    /**
+     * Loop of the writer thread
+     */
+    private void write() {
+        try {
+            while (true) {
+                ByteBuffer buffer = filled.take();
+                if (buffer == endMarker) {
+                    return;
+                }
+
+                // skip the data after an error (buffers are still returned)
+                try {
+                    if (error == null) {
+                        out.write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                                  buffer.remaining());
+                    }
+                } catch (IOException e) {
+                    error = e;
+                }
+                free.add(buffer);
+            }
+        } catch (InterruptedException e) {
+            error = new InterruptedIOException("Writer interrupted");
+        }
+    }
+
+    /**
+     * Throw the error of the writer thread (if any)
+     * @throws IOException
+     */
+    private void checkError() throws IOException {
+        IOException e = error;
+        if (e != null) {
+            throw e;
+        }
+    }
+}
@@ -9,9 +9,14 @@ package net.boehmke.tools.dependency_downloader;
 
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.Enumeration;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 /**
  * Base functionality to decompress a ZIP file
@@ -22,11 +27,29 @@ public class Zip {
      * Decompress the given ZIP file
      * @param sourceFile Path to the ZIP file
      * @param destination Destination path for decompression
-     * @param subdir Sub directory in zip file that should be extracted
+     * @param filter Filter of the extracted entries
+     * @param listener Listener for the progress
      * @throws IOException
      */
     public static void decompress(String sourceFile, String destination,
-                                  String subdir) throws IOException {
+                                  EntryFilter filter, DependencyListener listener)
+            throws IOException {
+        decompress(sourceFile, destination, filter, false, listener);
+    }
+
+    /**
+     * Decompress the given ZIP file
+     * @param sourceFile Path to the ZIP file
+     * @param destination Destination path for decompression
+     * @param filter Filter of the extracted entries
+     * @param checkCrc True to check the CRC32 of each extracted entry
+     *                 (if the checksum of the whole file is not checked)
+     * @param listener Listener for the progress
+     * @throws IOException
+     */
+    public static void decompress(String sourceFile, String destination, EntryFilter filter,
+                                  boolean checkCrc, DependencyListener listener)
+            throws IOException {
         // create output directory if not exists
         File directory = new File(destination);
         if(!directory.exists() &&
@@ -45,14 +68,11 @@ public class Zip {
         // get amount of files in ZIP file
         int fileCount = zipFile.size();
 
-        System.out.println("  Zip decompress (~" + fileCount + " files)...");
+        listener.message("Zip decompress (~" + fileCount + " files)...");
 
         // actual extracted size
         int extractedFiles = 0;
 
-        // prepare buffer
-        byte[] buffer = new byte[1024*10];
-
         while(entries.hasMoreElements()){
             // get next entry
             ZipEntry entry = entries.nextElement();
@@ -66,51 +86,127 @@ public class Zip {
             // get file name
             String fileName = entry.getName();
 
-            // if sub directory is set copy only this files
-            if (!subdir.isEmpty()) {
-                if (fileName.startsWith(subdir)) {
-                    fileName = fileName.replaceFirst(subdir, "");
-                } else {
-                    // skip this entry
-                    continue;
-                }
+            // skip filtered entries without inflating them
+            fileName = filter.map(fileName);
+            if (fileName == null) {
+                continue;
+            }
+
+            // stream for ZIP entry
+            InputStream in = zipFile.getInputStream(entry);
+            CheckedInputStream checked = null;
+            if (checkCrc) {
+                checked = new CheckedInputStream(in, new CRC32());
+                in = checked;
             }
 
-            // get destination file
-            File destinationFile = new File(destination + File.separator + fileName);
+            // write entry to destination
+            writeEntry(in, destination, fileName, entry.getSize());
 
-            // create parent directory of destination file if not exist
-            if(!destinationFile.getParentFile().exists() &&
-               !destinationFile.getParentFile().mkdirs()) {
+            in.close();
 
-                throw new IOException("Failed to create destination directory: " +
-                        destinationFile.getParent());
+            // compare with the CRC32 of the central directory
+            if (checked != null && checked.getChecksum().getValue() != entry.getCrc()) {
+                throw new ChecksumException("CRC32 of ZIP entry is invalid: " + entry.getName());
             }
 
-            // stream for destination file
-            FileOutputStream out = new FileOutputStream(destinationFile);
+            // update progress if changed
+            ++extractedFiles;
+            listener.extractProgress(extractedFiles, fileCount);
+        }
+        // close ZIP file
+        zipFile.close();
 
-            // stream for ZIP entry
-            InputStream in = zipFile.getInputStream(entry);
+        listener.stepFinished();
+    }
+
+    /**
+     * Decompress the given ZIP stream
+     * @param in Stream with ZIP data
+     * @param destination Destination path for decompression
+     * @param filter Filter of the extracted entries
+     * @param listener Listener for the progress
+     * @throws IOException
+     */
+    public static void decompress(InputStream in, String destination,
+                                  EntryFilter filter, DependencyListener listener)
+            throws IOException {
+        // create output directory if not exists
+        File directory = new File(destination);
+        if(!directory.exists() &&
+           !directory.mkdirs()) {
+
+            throw new IOException("Failed to create destination directory: " +
+                    destination);
+        }
+
+        listener.message("Zip decompress...");
 
-            // read data
-            int size;
-            while ((size = in.read(buffer)) != -1) {
-                // write data to file
-                out.write(buffer, 0, size);
+        // get ZIP stream
+        ZipInputStream zip = new ZipInputStream(in);
+
+        // actual extracted size
+        int extractedFiles = 0;
+
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            // skip directories
+            if (entry.isDirectory()) {
+                continue;
             }
 
-            // close destination file stream
-            out.close();
+            // get file name
+            String fileName = entry.getName();
 
+            // skip filtered entries without inflating them
+            fileName = filter.map(fileName);
+            if (fileName == null) {
+                continue;
+            }
 
-            // update progress if changed
+            // write entry to destination
+            writeEntry(zip, destination, fileName, entry.getSize());
+
+            // update progress
             ++extractedFiles;
-            System.out.print("\r  " + extractedFiles + "/" + fileCount);
+            listener.extractProgress(extractedFiles, -1);
         }
-        // close ZIP file
-        zipFile.close();
 
-        System.out.println("\r  Done!               ");
+        listener.stepFinished();
+    }
+
+    /**
+     * Write a ZIP entry to the destination
+     * @param in Stream of the entry data
+     * @param destination Destination path for decompression
+     * @param fileName Name of the entry
+     * @param size Uncompressed size of the entry (-1 if unknown)
+     * @throws IOException
+     */
+    private static void writeEntry(InputStream in, String destination,
+                                   String fileName, long size) throws IOException {
+        // get destination file
+        File destinationFile = new File(destination + File.separator + fileName);
+
+        // create parent directory of destination file if not exist
+        if(!destinationFile.getParentFile().exists() &&
+           !destinationFile.getParentFile().mkdirs()) {
+
+            throw new IOException("Failed to create destination directory: " +
+                    destinationFile.getParent());
+        }
+
+        // replace existing file (never write into a maybe linked file)
+        Files.deleteIfExists(destinationFile.toPath());
+
+        // stream for destination file
+        OutputStream out = Files.newOutputStream(destinationFile.toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            // copy data with a pooled heap buffer (the entry stream stays open)
+            BufferPool.copyAll(in, out, size);
+        } finally {
+            out.close();
+        }
     }
 }
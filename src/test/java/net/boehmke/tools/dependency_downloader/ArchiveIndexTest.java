@@ -0,0 +1,433 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trip of the GZip access point index and the Tar entry index of a
+ * real TarGz archive (built, saved, loaded and used for extraction)
+ */
+public class ArchiveIndexTest {
+    /**
+     * Temporary directory of the archives
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Content of the archive entries by name
+     */
+    private final Map<String, byte[]> contents = new LinkedHashMap<>();
+
+    /**
+     * TarGz archive (more than one access point)
+     */
+    private File archive;
+
+    /**
+     * Tar index of the last build
+     */
+    private TarIndex buildTarIndex;
+
+    /**
+     * Create the archive with three sub directories of 4MB each
+     * @throws IOException
+     */
+    @Before
+    public void createArchive() throws IOException {
+        Random random = new Random(42);
+        for (String dir: new String[] {"a/", "b/", "c/"}) {
+            for (int i = 0; i < 32; ++i) {
+                contents.put(dir + "file" + i + ".txt", text(random, 128*1024 + i));
+            }
+        }
+
+        archive = folder.newFile("test.tar.gz");
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(archive));
+        try {
+            for (Map.Entry<String, byte[]> entry: contents.entrySet()) {
+                writeTarEntry(out, entry.getKey(), entry.getValue());
+            }
+            out.write(new byte[1024]);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * The index is built while the archive is extracted and survives save/load
+     * @throws IOException
+     */
+    @Test
+    public void testSaveLoad() throws IOException {
+        File gzipIndexFile = new File(folder.getRoot(), "test.gzindex");
+        File tarIndexFile = new File(folder.getRoot(), "test.tarindex");
+        build(folder.newFolder("full")).save(gzipIndexFile, archive);
+        TarIndex tarIndex = buildTarIndex;
+        tarIndex.save(tarIndexFile, archive);
+
+        GZipIndex gzipIndex = GZipIndex.load(gzipIndexFile, archive);
+        assertNotNull(gzipIndex);
+        assertTrue("access points: " + gzipIndex.getSize(), gzipIndex.getSize() >= 2);
+
+        TarIndex loaded = TarIndex.load(tarIndexFile, archive);
+        assertNotNull(loaded);
+        assertEquals(contents.size(), loaded.getEntries().size());
+        for (int i = 0; i < contents.size(); ++i) {
+            TarIndex.Entry expected = tarIndex.getEntries().get(i);
+            TarIndex.Entry entry = loaded.getEntries().get(i);
+            assertEquals(expected.getName(), entry.getName());
+            assertEquals(expected.getType(), entry.getType());
+            assertEquals(expected.getOffset(), entry.getOffset());
+            assertEquals(expected.getSize(), entry.getSize());
+        }
+    }
+
+    /**
+     * The extraction of a sub directory with the loaded index only
+     * decompresses its range and gets the same content
+     * @throws IOException
+     */
+    @Test
+    public void testExtractSubDir() throws IOException {
+        File gzipIndexFile = new File(folder.getRoot(), "test.gzindex");
+        File tarIndexFile = new File(folder.getRoot(), "test.tarindex");
+        build(folder.newFolder("full")).save(gzipIndexFile, archive);
+        buildTarIndex.save(tarIndexFile, archive);
+        GZipIndex gzipIndex = GZipIndex.load(gzipIndexFile, archive);
+        TarIndex tarIndex = TarIndex.load(tarIndexFile, archive);
+
+        long[] range = tarIndex.getRange("c/");
+        assertNotNull(range);
+        assertTrue(range[0] > 4*1024*1024);
+        assertNull(tarIndex.getRange("d/"));
+
+        File destination = folder.newFolder("c");
+        InputStream in = gzipIndex.open(archive, range[0], range[1] - range[0]);
+        try {
+            Tar.extract(in, destination.getPath(), new EntryFilter("c/", "", ""),
+                    new QuietListener());
+        } finally {
+            in.close();
+        }
+
+        int files = 0;
+        for (Map.Entry<String, byte[]> entry: contents.entrySet()) {
+            if (entry.getKey().startsWith("c/")) {
+                File file = new File(destination, entry.getKey().substring(2));
+                assertArrayEquals(entry.getKey(), entry.getValue(),
+                        Files.readAllBytes(file.toPath()));
+                files++;
+            }
+        }
+        assertEquals(32, files);
+        assertEquals(32, destination.list().length);
+    }
+
+    /**
+     * A stream of the index starts at any offset of the decompressed data
+     * @throws IOException
+     */
+    @Test
+    public void testOpenAtOffset() throws IOException {
+        GZipIndex gzipIndex = build(folder.newFolder("full"));
+        byte[] data = decompress(archive);
+
+        for (long offset: new long[] {0, 1, 4*1024*1024 + 17, data.length - 1000}) {
+            byte[] part = new byte[1000];
+            DataInputStream in = new DataInputStream(gzipIndex.open(archive, offset, part.length));
+            try {
+                in.readFully(part);
+                assertEquals(-1, in.read());
+            } finally {
+                in.close();
+            }
+            assertArrayEquals("offset " + offset,
+                    Arrays.copyOfRange(data, (int) offset, (int) offset + part.length), part);
+        }
+    }
+
+    /**
+     * A changed archive invalidates the saved indexes
+     * @throws IOException
+     */
+    @Test
+    public void testChangedArchive() throws IOException {
+        File gzipIndexFile = new File(folder.getRoot(), "test.gzindex");
+        File tarIndexFile = new File(folder.getRoot(), "test.tarindex");
+        build(folder.newFolder("full")).save(gzipIndexFile, archive);
+        buildTarIndex.save(tarIndexFile, archive);
+
+        assertTrue(archive.setLastModified(archive.lastModified() - 10000));
+        assertNull(GZipIndex.load(gzipIndexFile, archive));
+        assertNull(TarIndex.load(tarIndexFile, archive));
+        assertNull(GZipIndex.load(new File(folder.getRoot(), "missing"), archive));
+    }
+
+    /**
+     * The index of a changed archive replaces the outdated index
+     * @throws IOException
+     */
+    @Test
+    public void testReplaceIndex() throws IOException {
+        File gzipIndexFile = new File(folder.getRoot(), "test.gzindex");
+        File tarIndexFile = new File(folder.getRoot(), "test.tarindex");
+        build(folder.newFolder("first")).save(gzipIndexFile, archive);
+        buildTarIndex.save(tarIndexFile, archive);
+
+        assertTrue(archive.setLastModified(archive.lastModified() - 10000));
+        build(folder.newFolder("second")).save(gzipIndexFile, archive);
+        buildTarIndex.save(tarIndexFile, archive);
+        assertNotNull(GZipIndex.load(gzipIndexFile, archive));
+        assertNotNull(TarIndex.load(tarIndexFile, archive));
+    }
+
+    /**
+     * The installer indexes the Tar entries on the first extraction of a
+     * sub directory, the access points on the second one and uses the index
+     * from the third one on
+     * @throws Exception
+     */
+    @Test
+    public void testInstallIndexed() throws Exception {
+        Dependency dependency = createCached("c");
+        File cacheFile = new File(folder.getRoot(), "cache/" + dependency.getCacheName());
+        File gzipIndexFile = new File(cacheFile.getPath() + ".gzindex");
+        File tarIndexFile = new File(cacheFile.getPath() + ".tarindex");
+
+        assertFalse(install(dependency, "first").contains("(indexed)"));
+        assertTrue(tarIndexFile.isFile());
+        assertFalse(gzipIndexFile.exists());
+
+        assertFalse(install(dependency, "second").contains("(indexed)"));
+        assertTrue(gzipIndexFile.isFile());
+
+        assertTrue(install(dependency, "third").contains("(indexed)"));
+        for (String name: new String[] {"first", "second", "third"}) {
+            File destination = new File(folder.getRoot(), name);
+            assertEquals(32, destination.list().length);
+            assertArrayEquals(contents.get("c/file7.txt"),
+                    Files.readAllBytes(new File(destination, "file7.txt").toPath()));
+        }
+    }
+
+    /**
+     * A corrupt GZip trailer fails the extraction of a sub directory
+     * @throws Exception
+     */
+    @Test
+    public void testInstallCorruptTrailer() throws Exception {
+        // change the CRC32 in the trailer
+        RandomAccessFile file = new RandomAccessFile(archive, "rw");
+        try {
+            file.seek(archive.length() - 8);
+            int value = file.read();
+            file.seek(archive.length() - 8);
+            file.write(value ^ 0xff);
+        } finally {
+            file.close();
+        }
+
+        Dependency dependency = createCached("a");
+        try {
+            install(dependency, "first");
+            fail("exception expected");
+        } catch (IOException e) {
+            assertEquals("Corrupt GZIP trailer", e.getMessage());
+        }
+    }
+
+    /**
+     * GZip files with multiple members get no index
+     * @throws IOException
+     */
+    @Test
+    public void testMultipleMembers() throws IOException {
+        File multi = folder.newFile("multi.gz");
+        for (int i = 0; i < 2; ++i) {
+            OutputStream out = new GZIPOutputStream(new FileOutputStream(multi, true));
+            try {
+                out.write(text(new Random(i), 5*1024*1024));
+            } finally {
+                out.close();
+            }
+        }
+
+        GZipIndex.Builder in = new GZipIndex.Builder(multi);
+        try {
+            byte[] buffer = new byte[65536];
+            while (in.read(buffer, 0, buffer.length) != -1) {
+                // decompress everything
+            }
+        } finally {
+            in.close();
+        }
+        assertNull(in.getIndex());
+    }
+
+    /**
+     * Create a TarGz dependency with a sub directory that is in the cache
+     * @param subDir Sub directory
+     * @return Dependency
+     * @throws IOException
+     */
+    private Dependency createCached(String subDir) throws IOException {
+        Dependency dependency = new Dependency(Dependency.typeTarGz,
+                "http://127.0.0.1:1/test.tar.gz", "");
+        dependency.setSourceSubDir(subDir);
+        File cacheFile = new File(folder.newFolder("cache"), dependency.getCacheName());
+        Files.copy(archive.toPath(), cacheFile.toPath());
+        assertTrue(cacheFile.setLastModified(archive.lastModified()));
+        return dependency;
+    }
+
+    /**
+     * Install a dependency from the cache
+     * @param dependency Dependency
+     * @param name Name of the destination in the temporary directory
+     * @return Messages of the installation
+     * @throws Exception
+     */
+    private String install(Dependency dependency, String name) throws Exception {
+        final StringBuilder messages = new StringBuilder();
+        DependencyInstaller installer = new DependencyInstaller(new Downloader(""),
+                new QuietListener() {
+                    @Override
+                    public void message(String message) {
+                        messages.append(message).append('\n');
+                    }
+                });
+        installer.setCachePath(new File(folder.getRoot(), "cache").getPath());
+        dependency.setDestination(new File(folder.getRoot(), name).getPath());
+
+        Manifest manifest = new Manifest(new File(folder.getRoot(), "depend.xml").getPath());
+        manifest.addDependency(dependency);
+        installer.install(manifest);
+        return messages.toString();
+    }
+
+    /**
+     * Extract the whole archive while both indexes are built
+     * @param destination Destination of the extraction
+     * @return GZip index (the Tar index is stored in buildTarIndex)
+     * @throws IOException
+     */
+    private GZipIndex build(File destination) throws IOException {
+        buildTarIndex = new TarIndex();
+        GZipIndex.Builder in = new GZipIndex.Builder(archive);
+        try {
+            Tar.extract(in, destination.getPath(), new EntryFilter("", "", ""),
+                    buildTarIndex, 1, new QuietListener());
+        } finally {
+            in.close();
+        }
+        assertEquals(contents.size(), buildTarIndex.getEntries().size());
+        assertArrayEquals(contents.get("b/file3.txt"),
+                Files.readAllBytes(new File(destination, "b/file3.txt").toPath()));
+
+        GZipIndex index = in.getIndex();
+        assertNotNull(index);
+        return index;
+    }
+
+    /**
+     * Decompress a GZip file completely
+     * @param file GZip file
+     * @return Decompressed data
+     * @throws IOException
+     */
+    private static byte[] decompress(File file) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        InputStream in = new GZIPInputStream(new FileInputStream(file));
+        try {
+            byte[] buffer = new byte[65536];
+            int size;
+            while ((size = in.read(buffer)) != -1) {
+                data.write(buffer, 0, size);
+            }
+        } finally {
+            in.close();
+        }
+        return data.toByteArray();
+    }
+
+    /**
+     * Write a Tar entry (ustar header, data and padding)
+     * @param out Output stream
+     * @param name Name of the entry
+     * @param content Content of the entry
+     * @throws IOException
+     */
+    static void writeTarEntry(OutputStream out, String name, byte[] content) throws IOException {
+        byte[] header = new byte[512];
+        put(header, 0, name);
+        put(header, 100, "0000644");
+        put(header, 108, "0000000");
+        put(header, 116, "0000000");
+        put(header, 124, String.format("%011o", content.length));
+        put(header, 136, String.format("%011o", 0));
+        header[156] = '0';
+        put(header, 257, "ustar");
+        put(header, 263, "00");
+
+        // checksum with spaces in the checksum field
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        int checksum = 0;
+        for (byte b: header) {
+            checksum += b & 0xff;
+        }
+        put(header, 148, String.format("%06o", checksum));
+        header[154] = 0;
+
+        out.write(header);
+        out.write(content);
+        out.write(new byte[(512 - content.length % 512) % 512]);
+    }
+
+    /**
+     * Put an ASCII string into a header
+     * @param header Header
+     * @param offset Offset of the field
+     * @param value Value of the field
+     */
+    private static void put(byte[] header, int offset, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, header, offset, bytes.length);
+    }
+
+    /**
+     * Create compressible text
+     * @param random Random generator
+     * @param size Size of the text
+     * @return Text bytes
+     */
+    static byte[] text(Random random, int size) {
+        String[] words = {"dependency", "download", "archive", "extract", "cache", "\n"};
+        StringBuilder text = new StringBuilder(size + 16);
+        while (text.length() < size) {
+            text.append(words[random.nextInt(words.length)]).append(' ');
+            if (random.nextInt(8) == 0) {
+                text.append(random.nextInt());
+            }
+        }
+        return text.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the request handling of the CacheServer
+ */
+public class CacheServerTest {
+    /**
+     * Allowed servers of the allowlist tests
+     */
+    private static final List<String> allowed = Arrays.asList(
+            "https://repo.example.com/libs/", "mirror.example.com");
+
+    /**
+     * Ranges with start and end
+     */
+    @Test
+    public void testRange() {
+        assertArrayEquals(new long[] {0, 99}, CacheServer.parseRange("bytes=0-99", 1000));
+        assertArrayEquals(new long[] {100, 999}, CacheServer.parseRange("bytes=100-", 1000));
+        assertArrayEquals(new long[] {999, 999}, CacheServer.parseRange("bytes=999-999", 1000));
+    }
+
+    /**
+     * The end of a range is limited to the file size
+     */
+    @Test
+    public void testRangeEndAfterFile() {
+        assertArrayEquals(new long[] {500, 999}, CacheServer.parseRange("bytes=500-5000", 1000));
+    }
+
+    /**
+     * Suffix ranges select the last bytes of the file
+     */
+    @Test
+    public void testSuffixRange() {
+        assertArrayEquals(new long[] {900, 999}, CacheServer.parseRange("bytes=-100", 1000));
+        assertArrayEquals(new long[] {0, 999}, CacheServer.parseRange("bytes=-5000", 1000));
+    }
+
+    /**
+     * Ranges outside of the file are not satisfiable
+     */
+    @Test
+    public void testUnsatisfiableRange() {
+        assertEquals(0, CacheServer.parseRange("bytes=1000-", 1000).length);
+        assertEquals(0, CacheServer.parseRange("bytes=500-100", 1000).length);
+        assertEquals(0, CacheServer.parseRange("bytes=-0", 1000).length);
+        assertEquals(0, CacheServer.parseRange("bytes=0-", 0).length);
+    }
+
+    /**
+     * Missing, invalid and multiple ranges send the whole file
+     */
+    @Test
+    public void testWholeFile() {
+        assertNull(CacheServer.parseRange(null, 1000));
+        assertNull(CacheServer.parseRange("items=0-10", 1000));
+        assertNull(CacheServer.parseRange("bytes=0-10,20-30", 1000));
+        assertNull(CacheServer.parseRange("bytes=a-b", 1000));
+        assertNull(CacheServer.parseRange("bytes=-", 1000));
+        assertNull(CacheServer.parseRange("bytes=1-2-3", 1000));
+    }
+
+    /**
+     * Proxy and mirror request targets
+     */
+    @Test
+    public void testGetUrl() {
+        assertEquals("http://example.com/a.zip", CacheServer.getUrl("http://example.com/a.zip"));
+        assertEquals("http://example.com/a.zip", CacheServer.getUrl("/http/example.com/a.zip"));
+        assertEquals("https://example.com/a.zip", CacheServer.getUrl("/https/example.com/a.zip"));
+        assertNull(CacheServer.getUrl("/ftp/example.com/a.zip"));
+        assertNull(CacheServer.getUrl("/a.zip"));
+    }
+
+    /**
+     * URLs below an allowed prefix or of an allowed host
+     */
+    @Test
+    public void testAllowed() {
+        assertTrue(CacheServer.isAllowed("https://repo.example.com/libs/a.zip", allowed));
+        assertTrue(CacheServer.isAllowed("https://REPO.example.com:443/libs/x/a.zip", allowed));
+        assertTrue(CacheServer.isAllowed("http://mirror.example.com/a.zip", allowed));
+        assertTrue(CacheServer.isAllowed("https://mirror.example.com/b/a.zip", allowed));
+        assertTrue(CacheServer.isAllowed("http://10.0.0.1/a.zip", Collections.singletonList("*")));
+    }
+
+    /**
+     * Other servers, ports, paths and tricks to leave the allowed path
+     */
+    @Test
+    public void testNotAllowed() {
+        assertFalse(CacheServer.isAllowed("http://repo.example.com/libs/a.zip", allowed));
+        assertFalse(CacheServer.isAllowed("https://repo.example.com/other/a.zip", allowed));
+        assertFalse(CacheServer.isAllowed("https://repo.example.com/libs-private/a.zip", allowed));
+        assertFalse(CacheServer.isAllowed("https://repo.example.com:8443/libs/a.zip", allowed));
+        assertFalse(CacheServer.isAllowed("https://repo.example.com/libs/../admin", allowed));
+        assertFalse(CacheServer.isAllowed("https://repo.example.com/libs/%2e%2e/admin", allowed));
+        assertFalse(CacheServer.isAllowed("https://repo.example.com.evil.org/libs/a.zip", allowed));
+        assertFalse(CacheServer.isAllowed("https://repo.example.com@evil.org/libs/a.zip", allowed));
+        assertFalse(CacheServer.isAllowed("http://mirror.example.com:8080/a.zip", allowed));
+        assertFalse(CacheServer.isAllowed("http://127.0.0.1/a.zip", allowed));
+        assertFalse(CacheServer.isAllowed("http://127.0.0.1/a.zip", Collections.<String>emptyList()));
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the block matching of DeltaControl and the delta update
+ */
+public class DeltaUpdateTest {
+    /**
+     * Block size of the tests
+     */
+    private static final int blockSize = 1024;
+
+    /**
+     * Temporary directory of the files
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Server of the new file and its control file
+     */
+    private RangeServer server;
+
+    /**
+     * Start the server
+     * @throws IOException
+     */
+    @Before
+    public void startServer() throws IOException {
+        server = new RangeServer();
+    }
+
+    /**
+     * Stop the server
+     */
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    /**
+     * All blocks of an identical file are found at their position
+     * @throws Exception
+     */
+    @Test
+    public void testMatchIdentical() throws Exception {
+        byte[] data = random(1, 64*blockSize + 100);
+        DeltaControl control = DeltaControl.create(write("new", data), blockSize);
+        assertEquals(64, control.getBlockCount());
+
+        long[] offsets = control.match(write("seed", data));
+        for (int i = 0; i < offsets.length; ++i) {
+            assertEquals((long) i * blockSize, offsets[i]);
+        }
+    }
+
+    /**
+     * Blocks are found at any byte offset of the seed (rolling checksum)
+     * @throws Exception
+     */
+    @Test
+    public void testMatchShifted() throws Exception {
+        byte[] data = random(2, 32*blockSize);
+        DeltaControl control = DeltaControl.create(write("new", data), blockSize);
+
+        // 7 bytes inserted at the start and a changed block in the middle
+        byte[] seed = new byte[data.length + 7];
+        System.arraycopy(data, 0, seed, 7, data.length);
+        seed[7 + 10*blockSize + 5] ^= 0x55;
+
+        long[] offsets = control.match(write("seed", seed));
+        for (int i = 0; i < offsets.length; ++i) {
+            assertEquals("block " + i, i == 10 ? -1 : (long) i * blockSize + 7, offsets[i]);
+        }
+    }
+
+    /**
+     * Equal blocks share one copy of the seed, other blocks are missing
+     * @throws Exception
+     */
+    @Test
+    public void testMatchRepeatedAndMissing() throws Exception {
+        byte[] block = random(3, blockSize);
+        byte[] data = new byte[4*blockSize];
+        for (int i = 0; i < 3; ++i) {
+            System.arraycopy(block, 0, data, i*blockSize, blockSize);
+        }
+        System.arraycopy(random(4, blockSize), 0, data, 3*blockSize, blockSize);
+        DeltaControl control = DeltaControl.create(write("new", data), blockSize);
+
+        byte[] seed = new byte[blockSize + 3];
+        System.arraycopy(block, 0, seed, 3, blockSize);
+        assertArrayEquals(new long[] {3, 3, 3, -1}, control.match(write("seed", seed)));
+
+        assertArrayEquals(new long[] {-1, -1, -1, -1},
+                control.match(write("short", Arrays.copyOf(block, blockSize - 1))));
+        assertArrayEquals(new long[] {-1, -1, -1, -1},
+                control.match(write("empty", new byte[0])));
+    }
+
+    /**
+     * The rolling checksum equals the checksum of the shifted block
+     */
+    @Test
+    public void testWeakChecksum() {
+        byte[] data = random(5, 3*blockSize);
+        int a = DeltaControl.weakChecksum(data, 0, blockSize) & 0xffff;
+        int b = DeltaControl.weakChecksum(data, 0, blockSize) >>> 16;
+        for (int start = 0; start < 2*blockSize; ++start) {
+            assertEquals("offset " + start,
+                    DeltaControl.weakChecksum(data, start, blockSize), (b << 16) | a);
+            int out = data[start] & 0xff;
+            int next = data[start + blockSize] & 0xff;
+            a = (a - out + next) & 0xffff;
+            b = (b - blockSize * out + a) & 0xffff;
+        }
+    }
+
+    /**
+     * The control file survives save/load
+     * @throws Exception
+     */
+    @Test
+    public void testSaveLoad() throws Exception {
+        byte[] data = random(5, 10*blockSize + 1);
+        File file = write("new", data);
+        DeltaControl control = DeltaControl.create(file, blockSize);
+        File controlFile = new File(folder.getRoot(), "new" + DeltaControl.suffix);
+        control.save(controlFile);
+
+        DeltaControl loaded = DeltaControl.load(controlFile);
+        assertEquals(control.getLength(), loaded.getLength());
+        assertEquals(control.getBlockSize(), loaded.getBlockSize());
+        assertEquals(control.getBlockCount(), loaded.getBlockCount());
+        assertEquals(Checksum.createSha1(file.getPath()), loaded.getSha1());
+        assertArrayEquals(control.match(file), loaded.match(file));
+
+        Files.write(controlFile.toPath(), Arrays.copyOf(Files.readAllBytes(controlFile.toPath()), 70));
+        try {
+            DeltaControl.load(controlFile);
+            fail("exception expected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Incomplete delta control file"));
+        }
+    }
+
+    /**
+     * The update copies the found blocks and downloads only the changed parts
+     * @throws Exception
+     */
+    @Test
+    public void testUpdate() throws Exception {
+        byte[] seed = random(6, 100*blockSize + 300);
+        byte[] data = Arrays.copyOf(seed, seed.length + 500);
+        System.arraycopy(random(7, blockSize), 0, data, 40*blockSize, blockSize);
+        System.arraycopy(random(8, 500), 0, data, seed.length, 500);
+
+        File controlFile = new File(folder.getRoot(), "control");
+        DeltaControl.create(write("new", data), blockSize).save(controlFile);
+        server.put("/sdk-1.2.bin", data);
+        server.put("/sdk-1.2.bin" + DeltaControl.suffix, Files.readAllBytes(controlFile.toPath()));
+
+        File target = new File(folder.getRoot(), "target");
+        DeltaUpdate update = new DeltaUpdate(new Downloader(""), new QuietListener());
+        assertTrue(update.update(server.getUrl("/sdk-1.2.bin"), write("seed", seed), target));
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+
+        // control file, changed block and the tail after the last complete block
+        assertEquals(3, server.getRequests());
+        long tail = data.length - (data.length / blockSize) * blockSize;
+        assertEquals(controlFile.length() + blockSize + tail, server.getSentBytes());
+    }
+
+    /**
+     * A source without control file is not updated
+     * @throws Exception
+     */
+    @Test
+    public void testNoControl() throws Exception {
+        server.put("/file.bin", random(9, 100));
+        DeltaUpdate update = new DeltaUpdate(new Downloader(""), new QuietListener());
+        assertFalse(update.update(server.getUrl("/file.bin"), write("seed", random(9, 100)),
+                new File(folder.getRoot(), "target")));
+    }
+
+    /**
+     * The seed is the same file or the most similar name with the same extension
+     * @throws Exception
+     */
+    @Test
+    public void testFindSeed() throws Exception {
+        File directory = folder.newFolder("cache");
+        assertNull(DeltaUpdate.findSeed(directory, "sdk-1.2.tar.gz"));
+
+        new File(directory, "sdk-1.1.zip").createNewFile();
+        new File(directory, "tool-2.0.tar.gz").createNewFile();
+        new File(directory, "sdk-1.1.tar.gz" + DeltaControl.suffix).createNewFile();
+        File seed = new File(directory, "sdk-1.1.tar.gz");
+        seed.createNewFile();
+        assertEquals(seed, DeltaUpdate.findSeed(directory, "sdk-1.2.tar.gz"));
+
+        File same = new File(directory, "sdk-1.2.tar.gz");
+        same.createNewFile();
+        assertEquals(same, DeltaUpdate.findSeed(directory, "sdk-1.2.tar.gz"));
+    }
+
+    /**
+     * Create random data
+     * @param seed Seed of the generator
+     * @param size Size of the data
+     * @return Data
+     */
+    private static byte[] random(long seed, int size) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Write a file into the temporary directory
+     * @param name Name of the file
+     * @param data Content of the file
+     * @return File
+     * @throws IOException
+     */
+    private File write(String name, byte[] data) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the entry selection by sub directory and include/exclude globs
+ */
+public class EntryFilterTest {
+    /**
+     * An empty filter selects all entries unchanged
+     */
+    @Test
+    public void testEmpty() {
+        EntryFilter filter = new EntryFilter("", "", "");
+        assertTrue(filter.isEmpty());
+        assertEquals("a/b/c.txt", filter.map("a/b/c.txt"));
+    }
+
+    /**
+     * Only entries of the sub directory are selected (relative to it)
+     */
+    @Test
+    public void testSubDir() {
+        EntryFilter filter = new EntryFilter("sdk/include/", "", "");
+        assertFalse(filter.isEmpty());
+        assertEquals("a.h", filter.map("sdk/include/a.h"));
+        assertEquals("sys/b.h", filter.map("sdk/include/sys/b.h"));
+        assertNull(filter.map("sdk/lib/a.so"));
+    }
+
+    /**
+     * "*" and "?" match inside a single segment
+     */
+    @Test
+    public void testSegmentWildcards() {
+        EntryFilter filter = new EntryFilter("", "lib/*.so,bin/tool?", "");
+        assertEquals("lib/a.so", filter.map("lib/a.so"));
+        assertEquals("lib/.so", filter.map("lib/.so"));
+        assertNull(filter.map("lib/x/a.so"));
+        assertNull(filter.map("lib/a.so.1"));
+        assertEquals("bin/tool1", filter.map("bin/tool1"));
+        assertNull(filter.map("bin/tool"));
+        assertNull(filter.map("bin/tool12"));
+    }
+
+    /**
+     * "**" matches any amount of segments (also none)
+     */
+    @Test
+    public void testAnyDepth() {
+        EntryFilter filter = new EntryFilter("", "**/*.h", "");
+        assertEquals("a.h", filter.map("a.h"));
+        assertEquals("x/y/z/a.h", filter.map("x/y/z/a.h"));
+        assertNull(filter.map("x/y/a.c"));
+
+        filter = new EntryFilter("", "src/**/test/*.java", "");
+        assertEquals("src/test/A.java", filter.map("src/test/A.java"));
+        assertEquals("src/a/b/test/A.java", filter.map("src/a/b/test/A.java"));
+        assertNull(filter.map("src/a/A.java"));
+    }
+
+    /**
+     * A pattern ending with "/" selects the directory and everything below it
+     */
+    @Test
+    public void testDirectoryPattern() {
+        EntryFilter filter = new EntryFilter("", "docs/", "");
+        assertEquals("docs/index.html", filter.map("docs/index.html"));
+        assertEquals("docs/api/a.html", filter.map("docs/api/a.html"));
+        assertNull(filter.map("doc/index.html"));
+    }
+
+    /**
+     * Excludes are applied after the includes
+     */
+    @Test
+    public void testExclude() {
+        EntryFilter filter = new EntryFilter("", "lib/", "**/*.debug, lib/test/");
+        assertEquals("lib/a.so", filter.map("lib/a.so"));
+        assertNull(filter.map("lib/a.so.debug"));
+        assertNull(filter.map("lib/test/a.so"));
+        assertNull(filter.map("bin/a"));
+
+        filter = new EntryFilter("", "", "*.txt");
+        assertEquals("a/b.txt", filter.map("a/b.txt"));
+        assertNull(filter.map("b.txt"));
+    }
+
+    /**
+     * Patterns are matched relative to the sub directory
+     */
+    @Test
+    public void testSubDirWithPatterns() {
+        EntryFilter filter = new EntryFilter("sdk/", "include/**", "include/internal/");
+        assertEquals("include/a.h", filter.map("sdk/include/a.h"));
+        assertNull(filter.map("sdk/include/internal/b.h"));
+        assertNull(filter.map("sdk/lib/a.so"));
+        assertNull(filter.map("include/a.h"));
+    }
+
+    /**
+     * Backslashes, spaces and empty items of the pattern list
+     */
+    @Test
+    public void testPatternList() {
+        EntryFilter filter = new EntryFilter("", " a\\b.txt , ,c/*.txt", "");
+        assertEquals("a/b.txt", filter.map("a/b.txt"));
+        assertEquals("c/d.txt", filter.map("c/d.txt"));
+        assertEquals("./a//b.txt", filter.map("./a//b.txt"));
+        assertNull(filter.map("a/c.txt"));
+    }
+
+    /**
+     * Many literal patterns share one tree
+     */
+    @Test
+    public void testManyPatterns() {
+        StringBuilder include = new StringBuilder();
+        for (int i = 0; i < 1000; ++i) {
+            include.append("dir").append(i % 10).append("/file").append(i).append(".txt,");
+        }
+        EntryFilter filter = new EntryFilter("", include.toString(), "");
+        assertEquals("dir3/file123.txt", filter.map("dir3/file123.txt"));
+        assertNull(filter.map("dir4/file123.txt"));
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the increase and decrease of the adaptive host limit
+ */
+public class HostConcurrencyTest {
+    /**
+     * Host of the tests
+     */
+    private static final String host = "example.com";
+
+    /**
+     * A full round raises the limit (probe), later rounds only with more throughput
+     * @throws Exception
+     */
+    @Test
+    public void testIncrease() throws Exception {
+        HostConcurrency concurrency = new HostConcurrency(2, 8);
+        assertEquals(2, concurrency.getLimit(host));
+
+        String message = runRound(concurrency, 1000);
+        assertNotNull(message);
+        assertTrue(message, message.startsWith("Concurrency example.com: 2 -> 3 (probe at "));
+        assertEquals(3, concurrency.getLimit(host));
+
+        message = runRound(concurrency, 1000000000000L);
+        assertNotNull(message);
+        assertTrue(message, message.contains("3 -> 4 (throughput "));
+
+        // no gain
+        assertNull(runRound(concurrency, 1000));
+        assertEquals(4, concurrency.getLimit(host));
+    }
+
+    /**
+     * Rounds that do not reach the limit keep the limit
+     * @throws Exception
+     */
+    @Test
+    public void testRoundNotFull() throws Exception {
+        HostConcurrency concurrency = new HostConcurrency(2, 8);
+        for (int i = 0; i < 4; ++i) {
+            concurrency.acquire(host);
+            concurrency.release(host);
+            assertNull(concurrency.finished(host, 1000));
+        }
+        assertEquals(2, concurrency.getLimit(host));
+    }
+
+    /**
+     * The limit is never raised above the maximum
+     * @throws Exception
+     */
+    @Test
+    public void testMaxLimit() throws Exception {
+        HostConcurrency concurrency = new HostConcurrency(4, 3);
+        assertEquals(3, concurrency.getLimit(host));
+        assertNull(runRound(concurrency, 1000));
+        assertNull(runRound(concurrency, 1000000000000L));
+        assertEquals(3, concurrency.getLimit(host));
+    }
+
+    /**
+     * Overload halves the limit once for all requests started before
+     * @throws Exception
+     */
+    @Test
+    public void testOverloaded() throws Exception {
+        HostConcurrency concurrency = new HostConcurrency(8, 8);
+        long first = concurrency.acquire(host);
+        long second = concurrency.acquire(host);
+        concurrency.release(host);
+        concurrency.release(host);
+
+        assertEquals("Concurrency example.com: 8 -> 4 (HTTP 503)",
+                concurrency.overloaded(host, first, "HTTP 503"));
+        assertNull(concurrency.overloaded(host, second, "HTTP 503"));
+        assertEquals(4, concurrency.getLimit(host));
+
+        // a request started after the decrease halves again
+        long third = concurrency.acquire(host);
+        concurrency.release(host);
+        assertNotNull(concurrency.overloaded(host, third, "HTTP 429"));
+        assertEquals(2, concurrency.getLimit(host));
+    }
+
+    /**
+     * The limit is never decreased below one
+     * @throws Exception
+     */
+    @Test
+    public void testMinLimit() throws Exception {
+        HostConcurrency concurrency = new HostConcurrency(0, 4);
+        assertEquals(1, concurrency.getLimit(host));
+
+        long started = concurrency.acquire(host);
+        concurrency.release(host);
+        assertNull(concurrency.overloaded(host, started, "HTTP 503"));
+        assertEquals(1, concurrency.getLimit(host));
+    }
+
+    /**
+     * A response time far above the fastest one decreases the limit
+     * @throws Exception
+     */
+    @Test
+    public void testLatency() throws Exception {
+        HostConcurrency concurrency = new HostConcurrency(4, 8);
+        long started = concurrency.acquire(host);
+        concurrency.release(host);
+
+        // fastest response time 100 ms -> overload above 250 ms
+        assertNull(concurrency.responded(host, started, 100));
+        assertNull(concurrency.responded(host, started, 250));
+        assertEquals(4, concurrency.getLimit(host));
+
+        String message = concurrency.responded(host, started, 251);
+        assertEquals("Concurrency example.com: 4 -> 2 (latency 251 ms, fastest 100 ms)", message);
+
+        // faster response is the new base
+        started = concurrency.acquire(host);
+        concurrency.release(host);
+        assertNull(concurrency.responded(host, started, 10));
+        assertNotNull(concurrency.responded(host, started, 71));
+        assertEquals(1, concurrency.getLimit(host));
+    }
+
+    /**
+     * The limit after an overload is probed again from the start
+     * @throws Exception
+     */
+    @Test
+    public void testIncreaseAfterDecrease() throws Exception {
+        HostConcurrency concurrency = new HostConcurrency(4, 8);
+        assertNotNull(runRound(concurrency, 1000000000000L));
+        assertEquals(5, concurrency.getLimit(host));
+
+        long started = concurrency.acquire(host);
+        concurrency.release(host);
+        assertNotNull(concurrency.overloaded(host, started, "connection reset"));
+        assertEquals(2, concurrency.getLimit(host));
+
+        // new probe (the throughput before the decrease is not compared)
+        String message = runRound(concurrency, 1000);
+        assertNotNull(message);
+        assertTrue(message, message.contains("2 -> 3 (probe at "));
+        assertEquals("Concurrency example.com: limit 3 (peak 5), 2 increases, 1 decreases, " +
+                "last: " + message.substring(message.indexOf('(') + 1, message.length() - 1),
+                concurrency.getSummary().get(0));
+    }
+
+    /**
+     * Requests wait while the limit of the host is reached
+     * @throws Exception
+     */
+    @Test
+    public void testAcquireWaits() throws Exception {
+        final HostConcurrency concurrency = new HostConcurrency(1, 1);
+        concurrency.acquire(host);
+        concurrency.acquire("other.com");
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    concurrency.acquire(host);
+                    acquired.countDown();
+                } catch (Exception e) {
+                    // not acquired
+                }
+            }
+        });
+        thread.start();
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+        concurrency.release(host);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        thread.join();
+    }
+
+    /**
+     * Run one full round of the host (limit reached, limit downloads finished)
+     * @param concurrency Controller
+     * @param bytes Transferred bytes of each download
+     * @return Message of the last finished download
+     * @throws Exception
+     */
+    private static String runRound(HostConcurrency concurrency, long bytes) throws Exception {
+        int limit = concurrency.getLimit(host);
+        for (int i = 0; i < limit; ++i) {
+            concurrency.acquire(host);
+        }
+        String message = null;
+        for (int i = 0; i < limit; ++i) {
+            concurrency.release(host);
+            message = concurrency.finished(host, bytes);
+            if (i < limit - 1) {
+                assertNull(message);
+            }
+        }
+        return message;
+    }
+}
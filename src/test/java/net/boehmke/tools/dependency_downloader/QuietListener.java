@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import java.io.IOException;
+
+/**
+ * Listener without output for the tests
+ */
+public class QuietListener implements DependencyListener {
+    @Override
+    public void taskStarted(String task) {
+    }
+
+    @Override
+    public void message(String message) {
+    }
+
+    @Override
+    public void downloadProgress(String source, long loaded, long size) {
+    }
+
+    @Override
+    public void downloadRetry(String source, int attempt, int retries, long delay, IOException error) {
+    }
+
+    @Override
+    public void downloadFinished(String source, long bytes, long millis) {
+    }
+
+    @Override
+    public void extractProgress(long files, long total) {
+    }
+
+    @Override
+    public void stepFinished() {
+    }
+
+    @Override
+    public void dependencyFinished(Dependency dependency, long millis) {
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local HTTP server of in-memory files with Range and PUT support for the tests
+ */
+public class RangeServer {
+    /**
+     * Served files by path
+     */
+    private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+
+    /**
+     * Amount of GET requests
+     */
+    private final AtomicInteger requests = new AtomicInteger();
+
+    /**
+     * Amount of GET requests by path
+     */
+    private final Map<String, AtomicInteger> pathRequests = new ConcurrentHashMap<>();
+
+    /**
+     * Sent bytes of GET requests
+     */
+    private final AtomicLong sentBytes = new AtomicLong();
+
+    /**
+     * Amount of the next GET requests that fail
+     */
+    private final AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * True if failing requests are closed after half of the data (else 503)
+     */
+    private volatile boolean truncate = false;
+
+    /**
+     * HTTP server
+     */
+    private final HttpServer server;
+
+    /**
+     * Start the server on a free port
+     * @throws IOException
+     */
+    public RangeServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleRequest(exchange);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Stop the server
+     */
+    public void stop() {
+        server.stop(0);
+    }
+
+    /**
+     * Add a served file
+     * @param path Path of the file (e.g. "/file.zip")
+     * @param content Content of the file
+     */
+    public void put(String path, byte[] content) {
+        files.put(path, content);
+    }
+
+    /**
+     * Let the next GET requests fail
+     * @param count Amount of failing requests
+     * @param truncate True to close the connection after half of the data, false for 503
+     */
+    public void fail(int count, boolean truncate) {
+        this.truncate = truncate;
+        failures.set(count);
+    }
+
+    /**
+     * Get a served or uploaded file
+     * @param path Path of the file
+     * @return Content of the file or null if it does not exist
+     */
+    public byte[] get(String path) {
+        return files.get(path);
+    }
+
+    /**
+     * Get the URL of a path
+     * @param path Path of the file
+     * @return URL
+     */
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    /**
+     * @return Amount of GET requests
+     */
+    public int getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Get the amount of GET requests of a path
+     * @param path Path of the file
+     * @return Amount of GET requests (also unknown paths)
+     */
+    public int getRequests(String path) {
+        AtomicInteger count = pathRequests.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return Sent bytes of GET requests
+     */
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    /**
+     * Send a file or a part of it
+     * @param exchange Request
+     * @throws IOException
+     */
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if ("PUT".equals(exchange.getRequestMethod())) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            InputStream in = exchange.getRequestBody();
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                body.write(buffer, 0, len);
+            }
+            files.put(path, body.toByteArray());
+            exchange.sendResponseHeaders(201, -1);
+            exchange.close();
+            return;
+        }
+
+        byte[] content = files.get(path);
+        boolean head = "HEAD".equals(exchange.getRequestMethod());
+        if (!head) {
+            pathRequests.putIfAbsent(path, new AtomicInteger());
+            pathRequests.get(path).incrementAndGet();
+        }
+        if (content == null) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+
+        int start = 0;
+        int end = content.length;
+        int code = 200;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=")) {
+            String[] parts = range.substring(6).split("-", 2);
+            start = Integer.parseInt(parts[0]);
+            if (!parts[1].isEmpty()) {
+                end = Math.min(end, Integer.parseInt(parts[1]) + 1);
+            }
+            code = 206;
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + start + "-" + (end - 1) + "/" + content.length);
+        }
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+
+        if (head) {
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(end - start));
+            exchange.sendResponseHeaders(code, -1);
+        } else if (failures.getAndDecrement() > 0) {
+            requests.incrementAndGet();
+            if (truncate) {
+                sentBytes.addAndGet((end - start) / 2);
+                exchange.sendResponseHeaders(code, end - start);
+                OutputStream out = exchange.getResponseBody();
+                out.write(content, start, (end - start) / 2);
+                out.flush();
+            } else {
+                exchange.sendResponseHeaders(503, -1);
+            }
+        } else {
+            failures.set(0);
+            requests.incrementAndGet();
+            sentBytes.addAndGet(end - start);
+            exchange.sendResponseHeaders(code, end - start);
+            OutputStream out = exchange.getResponseBody();
+            out.write(content, start, end - start);
+            out.close();
+        }
+        exchange.close();
+    }
+}
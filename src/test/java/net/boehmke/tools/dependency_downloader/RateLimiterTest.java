@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the bandwidth limits against a local HTTP server
+ */
+public class RateLimiterTest {
+    /**
+     * Size of the served file (large compared to a read buffer of 64KB,
+     * the last read is not waited for)
+     */
+    private static final int fileSize = 512*1024;
+
+    /**
+     * Temporary directory of the downloads
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Local HTTP server
+     */
+    private RangeServer server;
+
+    /**
+     * Content of the served file
+     */
+    private byte[] content;
+
+    /**
+     * Start the server
+     * @throws Exception
+     */
+    @Before
+    public void startServer() throws Exception {
+        content = new byte[fileSize];
+        new Random(1).nextBytes(content);
+        server = new RangeServer();
+        server.put("/file.bin", content);
+    }
+
+    /**
+     * Stop the server
+     */
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    /**
+     * Reservations are due at the allowed rate
+     * @throws Exception
+     */
+    @Test
+    public void testAcquire() throws Exception {
+        RateLimiter limiter = new RateLimiter(100*1024);
+        long start = System.nanoTime();
+        for (int i = 0; i < 20; ++i) {
+            limiter.acquire(2560);
+        }
+        // 50KB at 100KB/s
+        assertElapsed(start, 500);
+    }
+
+    /**
+     * Rates with and without suffix
+     */
+    @Test
+    public void testParseRate() {
+        assertEquals(500, RateLimiter.parseRate("500"));
+        assertEquals(512*1024, RateLimiter.parseRate(" 512k"));
+        assertEquals(1536*1024, RateLimiter.parseRate("1.5M"));
+        assertEquals(2L*1024*1024*1024, RateLimiter.parseRate("2G"));
+        for (String rate: new String[] {"", "0", "-1K", "fast"}) {
+            try {
+                RateLimiter.parseRate(rate);
+                fail("exception expected: " + rate);
+            } catch (NumberFormatException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * A download is limited to the total rate
+     * @throws Exception
+     */
+    @Test
+    public void testDownloadLimited() throws Exception {
+        Downloader downloader = createDownloader();
+        downloader.setRateLimit(512*1024);
+
+        long start = System.nanoTime();
+        File file = new File(folder.getRoot(), "file.bin");
+        downloader.downloadFile(server.getUrl("/file.bin"), file.getPath());
+        assertElapsed(start, 1000);
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * A host limit applies only to the downloads from this host
+     * @throws Exception
+     */
+    @Test
+    public void testHostLimit() throws Exception {
+        Downloader downloader = createDownloader();
+        downloader.setHostRateLimits("example.com=1K, 127.0.0.1=512K");
+
+        long start = System.nanoTime();
+        downloader.downloadFile(server.getUrl("/file.bin"),
+                new File(folder.getRoot(), "file.bin").getPath());
+        assertElapsed(start, 1000);
+
+        // no limit for other hosts
+        downloader.setHostRateLimit("127.0.0.1", 0);
+        start = System.nanoTime();
+        downloader.downloadFile(server.getUrl("/file.bin"),
+                new File(folder.getRoot(), "again.bin").getPath());
+        assertTrue((System.nanoTime() - start) / 1000000 < 400);
+    }
+
+    /**
+     * A host limit applies to the source host also through the mirror
+     * @throws Exception
+     */
+    @Test
+    public void testHostLimitMirror() throws Exception {
+        server.put("/http/example.com/file.bin", content);
+        Downloader downloader = createDownloader();
+        downloader.setMirror(server.getUrl("/"));
+        downloader.setHostRateLimits("example.com=512K");
+
+        long start = System.nanoTime();
+        File file = new File(folder.getRoot(), "file.bin");
+        downloader.downloadFile("http://example.com/file.bin", file.getPath());
+        assertElapsed(start, 1000);
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * Concurrent downloads share the total rate fairly
+     * @throws Exception
+     */
+    @Test
+    public void testFairSplit() throws Exception {
+        final Downloader downloader = createDownloader();
+        downloader.setRateLimit(512*1024);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final long start = System.nanoTime();
+            List<Future<Long>> results = new ArrayList<>();
+            for (int i = 0; i < 2; ++i) {
+                final File file = new File(folder.getRoot(), "file" + i + ".bin");
+                results.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        downloader.downloadFile(server.getUrl("/file.bin"), file.getPath());
+                        return (System.nanoTime() - start) / 1000000;
+                    }
+                }));
+            }
+
+            // 2 * 512KB at 512KB/s -> both finish after about two seconds
+            long first = results.get(0).get(10, TimeUnit.SECONDS);
+            long second = results.get(1).get(10, TimeUnit.SECONDS);
+            assertTrue("first " + first + " ms", first >= 1600);
+            assertTrue("second " + second + " ms", second >= 1600);
+            assertTrue("first " + first + " ms, second " + second + " ms",
+                    Math.abs(first - second) < 300);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Create a downloader without output
+     * @return Downloader
+     */
+    private static Downloader createDownloader() {
+        Downloader downloader = new Downloader("");
+        downloader.setListener(new QuietListener());
+        downloader.setShowProgress(false);
+        return downloader;
+    }
+
+    /**
+     * Check that the expected time (with tolerance) has passed
+     * @param start Start time (System.nanoTime)
+     * @param expected Expected time in ms
+     */
+    private static void assertElapsed(long start, long expected) {
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        assertTrue("elapsed " + elapsed + " ms, expected " + expected + " ms",
+                elapsed >= expected * 8 / 10 && elapsed < expected * 3);
+    }
+}
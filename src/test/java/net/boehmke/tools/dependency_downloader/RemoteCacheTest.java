@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the remote cache tier (HttpCacheBackend) against a local HTTP server
+ */
+public class RemoteCacheTest {
+    /**
+     * Temporary cache directory
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Content of the dependency
+     */
+    private static final byte[] content = "remote cache content\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Local HTTP server of the origin and the remote cache
+     */
+    private RangeServer server;
+
+    /**
+     * Path of the entry in the remote cache
+     */
+    private String entryPath;
+
+    /**
+     * Messages of the installer
+     */
+    private final List<String> messages = new ArrayList<>();
+
+    /**
+     * Start the HTTP server
+     * @throws Exception
+     */
+    @Before
+    public void startServer() throws Exception {
+        server = new RangeServer();
+        server.put("/origin/file.txt", content);
+        entryPath = "/cache/sha1/" +
+                Checksum.createSha1(new ByteArrayInputStream(content)).toLowerCase();
+    }
+
+    /**
+     * Stop the HTTP server
+     */
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    /**
+     * A missing entry (404) is downloaded from the origin and written back
+     * after the checksum was verified
+     * @throws Exception
+     */
+    @Test
+    public void testMiss() throws Exception {
+        String path = createInstaller(server.getUrl("/cache"), "", true)
+                .download(createDependency(server.getUrl("/origin/file.txt")));
+
+        assertArrayEquals(content, Files.readAllBytes(Paths.get(path)));
+        assertEquals(1, server.getRequests(entryPath));
+        assertEquals(1, server.getRequests("/origin/file.txt"));
+        assertTrue(messages.contains("Not in remote cache"));
+        assertTrue(messages.contains("Stored in remote cache"));
+        assertArrayEquals(content, server.get(entryPath));
+    }
+
+    /**
+     * An existing entry is used without a request to the origin
+     * @throws Exception
+     */
+    @Test
+    public void testHit() throws Exception {
+        server.put(entryPath, content);
+
+        String path = createInstaller(server.getUrl("/cache"), "", true)
+                .download(createDependency(server.getUrl("/origin/file.txt")));
+
+        assertArrayEquals(content, Files.readAllBytes(Paths.get(path)));
+        assertEquals(1, server.getRequests(entryPath));
+        assertEquals(0, server.getRequests("/origin/file.txt"));
+        assertFalse(messages.contains("Stored in remote cache"));
+    }
+
+    /**
+     * A corrupt entry falls back to the origin and is replaced by the checked file
+     * @throws Exception
+     */
+    @Test
+    public void testCorrupt() throws Exception {
+        server.put(entryPath, "corrupt content\n".getBytes(StandardCharsets.US_ASCII));
+
+        String path = createInstaller(server.getUrl("/cache"), "", true)
+                .download(createDependency(server.getUrl("/origin/file.txt")));
+
+        assertArrayEquals(content, Files.readAllBytes(Paths.get(path)));
+        assertEquals(1, server.getRequests("/origin/file.txt"));
+        assertTrue(containsMessage("Remote cache failed: "));
+        assertArrayEquals(content, server.get(entryPath));
+    }
+
+    /**
+     * A read-only remote cache is not written
+     * @throws Exception
+     */
+    @Test
+    public void testReadOnly() throws Exception {
+        createInstaller(server.getUrl("/cache"), "", false)
+                .download(createDependency(server.getUrl("/origin/file.txt")));
+
+        assertEquals(1, server.getRequests("/origin/file.txt"));
+        assertNull(server.get(entryPath));
+    }
+
+    /**
+     * A failing remote cache falls back to the origin
+     * @throws Exception
+     */
+    @Test
+    public void testUnavailable() throws Exception {
+        String path = createInstaller("http://127.0.0.1:1/cache", "", true)
+                .download(createDependency(server.getUrl("/origin/file.txt")));
+
+        assertArrayEquals(content, Files.readAllBytes(Paths.get(path)));
+        assertTrue(containsMessage("Remote cache failed: "));
+        assertTrue(containsMessage("Remote cache store failed: "));
+    }
+
+    /**
+     * The remote cache is requested through the proxy of the downloader
+     * @throws Exception
+     */
+    @Test
+    public void testProxy() throws Exception {
+        server.put(entryPath, content);
+
+        // the hosts are only reachable through the proxy (the local server)
+        String path = createInstaller("http://cache.invalid/cache", server.getUrl(""), true)
+                .download(createDependency("http://origin.invalid/origin/file.txt"));
+
+        assertArrayEquals(content, Files.readAllBytes(Paths.get(path)));
+        assertEquals(1, server.getRequests(entryPath));
+        assertEquals(0, server.getRequests("/origin/file.txt"));
+    }
+
+    /**
+     * Create the dependency with the checksum of the content
+     * @param source Source URL
+     * @return Dependency
+     * @throws Exception
+     */
+    private Dependency createDependency(String source) throws Exception {
+        Dependency dependency = new Dependency("File", source, "file.txt");
+        dependency.setSha1(Checksum.createSha1(new ByteArrayInputStream(content)));
+        return dependency;
+    }
+
+    /**
+     * Create an installer with the temporary cache and a remote cache
+     * @param cacheUrl URL of the remote cache
+     * @param proxy Proxy of the downloader (empty for none)
+     * @param push True to store downloaded files in the remote cache
+     * @return Installer
+     */
+    private DependencyInstaller createInstaller(String cacheUrl, String proxy, boolean push) {
+        Downloader downloader = new Downloader(proxy);
+        DependencyInstaller installer = new DependencyInstaller(downloader, new QuietListener() {
+            @Override
+            public void message(String message) {
+                messages.add(message);
+            }
+        });
+        installer.setCachePath(folder.getRoot().getPath() + File.separator + "cache");
+        installer.setRemoteCache(new HttpCacheBackend(cacheUrl, downloader.getProxy(), 5000, 5000),
+                push);
+        return installer;
+    }
+
+    /**
+     * Check if a message starts with the prefix
+     * @param prefix Prefix of the message
+     * @return True if a message was found
+     */
+    private boolean containsMessage(String prefix) {
+        for (String message: messages) {
+            if (message.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the range computation of the partial ZIP download
+ */
+public class RemoteZipTest {
+    /**
+     * Size of the large entries (larger than the joined gap)
+     */
+    private static final int largeSize = 300*1024;
+
+    /**
+     * Temporary directory of the downloads
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Server of the ZIP files
+     */
+    private RangeServer server;
+
+    /**
+     * Start the server
+     * @throws IOException
+     */
+    @Before
+    public void startServer() throws IOException {
+        server = new RangeServer();
+    }
+
+    /**
+     * Stop the server
+     */
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    /**
+     * Adjacent selected entries are downloaded with one request
+     * @throws Exception
+     */
+    @Test
+    public void testAdjacentEntries() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("a/0.bin", random(1, largeSize));
+        entries.put("b/0.bin", random(2, largeSize));
+        entries.put("b/1.bin", random(3, largeSize));
+        entries.put("c/0.bin", random(4, largeSize));
+        byte[] zip = createZip(entries);
+
+        // end of the file with the central directory and one range
+        File destination = fetch(zip, "b/");
+        assertEquals(2, server.getRequests());
+        assertTrue(server.getSentBytes() < zip.length / 2 + 70000);
+        assertExtracted(entries, "b/", destination);
+    }
+
+    /**
+     * Selected entries with a large gap are downloaded with two requests,
+     * small gaps are downloaded with the entries
+     * @throws Exception
+     */
+    @Test
+    public void testGaps() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("b/0.bin", random(1, largeSize));
+        entries.put("a/0.bin", random(2, largeSize));
+        entries.put("b/1.bin", random(3, largeSize));
+        entries.put("a/1.bin", random(4, 1000));
+        entries.put("b/2.bin", random(5, largeSize));
+        entries.put("a/2.bin", random(6, largeSize));
+        byte[] zip = createZip(entries);
+
+        File destination = fetch(zip, "b/");
+        assertEquals(3, server.getRequests());
+        assertExtracted(entries, "b/", destination);
+    }
+
+    /**
+     * Archives with more than 65535 entries use the ZIP64 end record
+     * @throws Exception
+     */
+    @Test
+    public void testZip64Records() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("sel/first.txt", "first".getBytes("UTF-8"));
+        for (int i = 0; i < 70000; ++i) {
+            entries.put("many/" + i, new byte[] {(byte) i});
+        }
+        entries.put("sel/last.txt", random(7, 1000));
+        byte[] zip = createZip(entries);
+
+        ByteBuffer end = ByteBuffer.wrap(zip, zip.length - 22, 22).slice().order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0x06054b50, end.getInt(0));
+        assertEquals(0xFFFF, end.getShort(10) & 0xFFFF);
+
+        // end, central directory (larger than the end) and two ranges
+        File destination = fetch(zip, "sel/");
+        assertEquals(4, server.getRequests());
+        assertExtracted(entries, "sel/", destination);
+    }
+
+    /**
+     * Local header offsets in the ZIP64 extra field are used
+     * @throws Exception
+     */
+    @Test
+    public void testZip64Offsets() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("a/0.bin", random(1, largeSize));
+        entries.put("b/0.bin", random(2, 1000));
+        entries.put("a/1.bin", random(3, largeSize));
+        entries.put("b/1.bin", random(4, 1000));
+        entries.put("a/2.bin", random(5, largeSize));
+        byte[] zip = setZip64Offsets(createZip(entries));
+
+        File destination = fetch(zip, "b/");
+        assertEquals(3, server.getRequests());
+        assertExtracted(entries, "b/", destination);
+    }
+
+    /**
+     * Invalid files are reported, files of unknown size are not downloaded
+     * @throws Exception
+     */
+    @Test
+    public void testInvalid() throws Exception {
+        server.put("/invalid.zip", random(1, 1000));
+        RemoteZip remoteZip = new RemoteZip(new Downloader(""), new QuietListener());
+        try {
+            remoteZip.fetch(server.getUrl("/invalid.zip"), new EntryFilter("", "", ""),
+                    folder.newFile("invalid.zip"));
+            fail("exception expected");
+        } catch (IOException e) {
+            assertEquals("No ZIP end of central directory record", e.getMessage());
+        }
+
+        assertFalse(remoteZip.fetch(server.getUrl("/missing.zip"), new EntryFilter("", "", ""),
+                folder.newFile("missing.zip")));
+    }
+
+    /**
+     * Failed and truncated range responses are retried
+     * @throws Exception
+     */
+    @Test
+    public void testRetry() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("a/0.bin", random(1, largeSize));
+        entries.put("b/0.bin", random(2, largeSize));
+        byte[] zip = createZip(entries);
+        final AtomicInteger retries = new AtomicInteger();
+        Downloader downloader = new Downloader("");
+        downloader.setListener(new QuietListener() {
+            @Override
+            public void downloadRetry(String source, int attempt, int total, long delay,
+                                      IOException error) {
+                retries.incrementAndGet();
+            }
+        });
+
+        // the end of the file fails with 503
+        server.fail(1, false);
+        File destination = fetch(zip, "b/", downloader, "503");
+        assertEquals(1, retries.get());
+        assertEquals(3, server.getRequests());
+        assertExtracted(entries, "b/", destination);
+
+        // the connection of the end of the file is closed too early
+        server.fail(1, true);
+        destination = fetch(zip, "b/", downloader, "truncated");
+        assertEquals(2, retries.get());
+        assertEquals(6, server.getRequests());
+        assertExtracted(entries, "b/", destination);
+    }
+
+    /**
+     * Download a ZIP file partially and extract it
+     * @param zip ZIP file
+     * @param subDir Selected sub directory
+     * @return Destination of the extraction
+     * @throws Exception
+     */
+    private File fetch(byte[] zip, String subDir) throws Exception {
+        return fetch(zip, subDir, new Downloader(""), "test");
+    }
+
+    /**
+     * Download a ZIP file partially with a downloader and extract it
+     * @param zip ZIP file
+     * @param subDir Selected sub directory
+     * @param downloader Downloader of the ranges
+     * @param name Name of the target file and the destination directory
+     * @return Destination of the extraction
+     * @throws Exception
+     */
+    private File fetch(byte[] zip, String subDir, Downloader downloader, String name)
+            throws Exception {
+        server.put("/test.zip", zip);
+        File target = folder.newFile(name + ".zip");
+        EntryFilter filter = new EntryFilter(subDir, "", "");
+        assertTrue(new RemoteZip(downloader, new QuietListener())
+                .fetch(server.getUrl("/test.zip"), filter, target));
+        assertEquals(zip.length, target.length());
+
+        File destination = folder.newFolder(name + "-out");
+        Zip.decompress(target.getPath(), destination.getPath(), filter, true, new QuietListener());
+        return destination;
+    }
+
+    /**
+     * Check the extracted entries of a sub directory
+     * @param entries Entries of the ZIP file
+     * @param subDir Selected sub directory
+     * @param destination Destination of the extraction
+     * @throws IOException
+     */
+    private static void assertExtracted(Map<String, byte[]> entries, String subDir,
+                                        File destination) throws IOException {
+        int files = 0;
+        for (Map.Entry<String, byte[]> entry: entries.entrySet()) {
+            if (entry.getKey().startsWith(subDir)) {
+                File file = new File(destination, entry.getKey().substring(subDir.length()));
+                assertArrayEquals(entry.getKey(), entry.getValue(), Files.readAllBytes(file.toPath()));
+                files++;
+            }
+        }
+        assertEquals(files, destination.list().length);
+    }
+
+    /**
+     * Create a ZIP file
+     * @param entries Content of the entries by name
+     * @return ZIP file
+     * @throws IOException
+     */
+    private static byte[] createZip(Map<String, byte[]> entries) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ZipOutputStream out = new ZipOutputStream(data);
+        try {
+            for (Map.Entry<String, byte[]> entry: entries.entrySet()) {
+                out.putNextEntry(new ZipEntry(entry.getKey()));
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return data.toByteArray();
+    }
+
+    /**
+     * Move the local header offsets of the central directory into ZIP64
+     * extra fields (as for archives larger than 4GB)
+     * @param zip ZIP file (without ZIP64 records and comment)
+     * @return Changed ZIP file
+     */
+    private static byte[] setZip64Offsets(byte[] zip) {
+        ByteBuffer in = ByteBuffer.wrap(zip).order(ByteOrder.LITTLE_ENDIAN);
+        int end = zip.length - 22;
+        int count = in.getShort(end + 10) & 0xFFFF;
+        int directoryOffset = in.getInt(end + 16);
+
+        ByteBuffer out = ByteBuffer.allocate(zip.length + count * 12).order(ByteOrder.LITTLE_ENDIAN);
+        out.put(zip, 0, directoryOffset);
+        int position = directoryOffset;
+        for (int i = 0; i < count; ++i) {
+            int nameLength = in.getShort(position + 28) & 0xFFFF;
+            int extraLength = in.getShort(position + 30) & 0xFFFF;
+            int commentLength = in.getShort(position + 32) & 0xFFFF;
+            int offset = in.getInt(position + 42);
+
+            int header = out.position();
+            out.put(zip, position, 46 + nameLength);
+            out.putShort(header + 30, (short) (extraLength + 12));
+            out.putInt(header + 42, 0xFFFFFFFF);
+            out.putShort((short) 0x0001).putShort((short) 8).putLong(offset);
+            out.put(zip, position + 46 + nameLength, extraLength + commentLength);
+            position += 46 + nameLength + extraLength + commentLength;
+        }
+
+        int endPosition = out.position();
+        out.put(zip, end, 22);
+        out.putInt(endPosition + 12, endPosition - directoryOffset);
+        return out.array();
+    }
+
+    /**
+     * Create random (incompressible) data
+     * @param seed Seed of the generator
+     * @param size Size of the data
+     * @return Data
+     */
+    private static byte[] random(long seed, int size) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the coalescing of concurrent calls (SingleFlight) and of
+ * concurrent downloads into the same cache file
+ */
+public class SingleFlightTest {
+    /**
+     * Temporary cache directory
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Content of the served file
+     */
+    private static final byte[] content = "single flight content\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Local HTTP server (slow responses)
+     */
+    private HttpServer server;
+
+    /**
+     * Amount of GET requests to the server
+     */
+    private final AtomicInteger requests = new AtomicInteger();
+
+    /**
+     * Thread pool of the concurrent callers
+     */
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /**
+     * Start the HTTP server
+     * @throws IOException
+     */
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if ("GET".equals(exchange.getRequestMethod())) {
+                    requests.incrementAndGet();
+                    sleep(300);
+                }
+                exchange.sendResponseHeaders(200, "HEAD".equals(exchange.getRequestMethod()) ?
+                        -1 : content.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(content);
+                out.close();
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Stop the HTTP server and the callers
+     */
+    @After
+    public void stopServer() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Concurrent calls with the same key share one run and its result
+     * @throws Exception
+     */
+    @Test
+    public void testJoin() throws Exception {
+        final SingleFlight<String> flight = new SingleFlight<>();
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<String> call = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                calls.incrementAndGet();
+                release.await();
+                return "result";
+            }
+        };
+
+        List<Future<String>> results = new ArrayList<>();
+        results.add(executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return flight.run("key", call);
+            }
+        }));
+        waitRunning(flight, "key");
+        for (int i = 0; i < 4; ++i) {
+            results.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return flight.run("key", call);
+                }
+            }));
+        }
+        sleep(100);
+        release.countDown();
+
+        for (Future<String> result: results) {
+            assertEquals("result", result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, calls.get());
+        assertFalse(flight.isRunning("key"));
+
+        // a later call runs again
+        assertEquals("result", flight.run("key", call));
+        assertEquals(2, calls.get());
+    }
+
+    /**
+     * Calls with other keys are not joined
+     * @throws Exception
+     */
+    @Test
+    public void testOtherKey() throws Exception {
+        final SingleFlight<String> flight = new SingleFlight<>();
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<String> first = executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return flight.run("a", new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        release.await();
+                        return "a";
+                    }
+                });
+            }
+        });
+        waitRunning(flight, "a");
+
+        assertEquals("b", flight.run("b", new Callable<String>() {
+            @Override
+            public String call() {
+                return "b";
+            }
+        }));
+        release.countDown();
+        assertEquals("a", first.get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * An IOException of the run is thrown to every caller
+     * @throws Exception
+     */
+    @Test
+    public void testException() throws Exception {
+        final SingleFlight<String> flight = new SingleFlight<>();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<String> call = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                release.await();
+                throw new IOException("failed");
+            }
+        };
+        Callable<String> caller = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return flight.run("key", call);
+            }
+        };
+
+        List<Future<String>> results = new ArrayList<>();
+        results.add(executor.submit(caller));
+        waitRunning(flight, "key");
+        results.add(executor.submit(caller));
+        sleep(100);
+        release.countDown();
+
+        for (Future<String> result: results) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                fail("exception expected");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+                assertEquals("failed", e.getCause().getMessage());
+            }
+        }
+        assertFalse(flight.isRunning("key"));
+    }
+
+    /**
+     * Concurrent downloads of the same source download the file once and
+     * the cache file is locked with a lock file
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentDownload() throws Exception {
+        final Dependency dependency = new Dependency("File", getUrl("/file.txt"), "file.txt");
+        dependency.setSha1(sha1(content));
+
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < 4; ++i) {
+            results.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return createInstaller().download(dependency);
+                }
+            }));
+        }
+
+        String path = results.get(0).get(10, TimeUnit.SECONDS);
+        for (Future<String> result: results) {
+            assertEquals(path, result.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, requests.get());
+        assertArrayEquals(content, Files.readAllBytes(Paths.get(path)));
+        assertTrue(Files.exists(Paths.get(path + ".lock")));
+
+        // the cached file is used later
+        createInstaller().download(dependency);
+        assertEquals(1, requests.get());
+    }
+
+    /**
+     * A caller that joins a download checks the file against its own checksum
+     * @throws Exception
+     */
+    @Test
+    public void testJoinedChecksum() throws Exception {
+        final Dependency valid = new Dependency("File", getUrl("/file.txt"), "file.txt");
+        valid.setSha1(sha1(content));
+        final Dependency invalid = new Dependency("File", getUrl("/file.txt"), "other.txt");
+        invalid.setSha1(sha1("other".getBytes(StandardCharsets.US_ASCII)));
+
+        Future<String> first = executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return createInstaller().download(valid);
+            }
+        });
+        while (requests.get() == 0) {
+            sleep(10);
+        }
+        try {
+            createInstaller().download(invalid);
+            fail("checksum exception expected");
+        } catch (ChecksumException e) {
+            // expected
+        }
+        assertNotNull(first.get(10, TimeUnit.SECONDS));
+        assertEquals(1, requests.get());
+    }
+
+    /**
+     * Create an installer with the temporary cache
+     * @return Installer
+     */
+    private DependencyInstaller createInstaller() {
+        DependencyInstaller installer = new DependencyInstaller(new Downloader(""),
+                new QuietListener());
+        installer.setCachePath(folder.getRoot().getPath());
+        return installer;
+    }
+
+    /**
+     * Get the URL of a path on the local server
+     * @param path Path
+     * @return URL
+     */
+    private String getUrl(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    /**
+     * Wait until a call with the key is running
+     * @param flight Flight
+     * @param key Key of the call
+     */
+    private static void waitRunning(SingleFlight<String> flight, String key) {
+        for (int i = 0; i < 500 && !flight.isRunning(key); ++i) {
+            sleep(10);
+        }
+        assertTrue(flight.isRunning(key));
+    }
+
+    /**
+     * Calculate the SHA1 checksum
+     * @param data Data
+     * @return Checksum as hex string
+     * @throws Exception
+     */
+    private static String sha1(byte[] data) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b: MessageDigest.getInstance("SHA-1").digest(data)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Sleep without interruption handling
+     * @param millis Time in ms
+     */
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2016 by Benjamin Böhmke
+ *
+ * DependencyDownloader is free software; you can redistribute it and/or modify it under
+ * the terms of the MIT License. See the LICENSE file for more details.
+ */
+
+package net.boehmke.tools.dependency_downloader;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the Tar extraction with parallel writers
+ */
+public class TarTest {
+    /**
+     * Temporary directory of the archives
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Amount of writer threads
+     */
+    private static final int threads = 4;
+
+    /**
+     * Tar file with entries that are appended multiple times
+     */
+    private File archive;
+
+    /**
+     * Content of the last "big.bin" entry
+     */
+    private byte[] big;
+
+    /**
+     * Create the archive (like "tar -r" on the same files)
+     * @throws IOException
+     */
+    @Before
+    public void createArchive() throws IOException {
+        big = ArchiveIndexTest.text(new Random(1), 1024*1024);
+
+        archive = folder.newFile("test.tar");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(archive));
+        try {
+            for (int i = 0; i < 50; ++i) {
+                ArchiveIndexTest.writeTarEntry(out, "dup.txt", text("version " + i));
+                ArchiveIndexTest.writeTarEntry(out, "other" + i + ".txt", text("other " + i));
+                if (i % 10 == 0) {
+                    ArchiveIndexTest.writeTarEntry(out, "big.bin", text("small " + i));
+                }
+            }
+
+            // a large entry is written by the reader after older queued copies
+            ArchiveIndexTest.writeTarEntry(out, "big.bin", big);
+            out.write(new byte[1024]);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * The last entry of a name wins in the stream extraction
+     * @throws IOException
+     */
+    @Test
+    public void testStreamDuplicates() throws IOException {
+        for (int run = 0; run < 10; ++run) {
+            File destination = folder.newFolder("stream" + run);
+            InputStream in = new FileInputStream(archive);
+            try {
+                Tar.extract(in, destination.getPath(), new EntryFilter("", "", ""), null,
+                        threads, new QuietListener());
+            } finally {
+                in.close();
+            }
+            assertExtracted(destination);
+        }
+    }
+
+    /**
+     * The last entry of a name wins in the indexed extraction
+     * @throws IOException
+     */
+    @Test
+    public void testIndexedDuplicates() throws IOException {
+        TarIndex index = Tar.createIndex(archive.getPath());
+        for (int run = 0; run < 10; ++run) {
+            File destination = folder.newFolder("indexed" + run);
+            Tar.extract(archive.getPath(), index, destination.getPath(),
+                    new EntryFilter("", "", ""), threads, new QuietListener());
+            assertExtracted(destination);
+        }
+    }
+
+    /**
+     * Check the extracted files
+     * @param destination Destination of the extraction
+     * @throws IOException
+     */
+    private void assertExtracted(File destination) throws IOException {
+        assertArrayEquals(text("version 49"), read(destination, "dup.txt"));
+        assertArrayEquals(big, read(destination, "big.bin"));
+        assertArrayEquals(text("other 17"), read(destination, "other17.txt"));
+        assertEquals(52, destination.list().length);
+    }
+
+    /**
+     * Read an extracted file
+     * @param destination Destination of the extraction
+     * @param name Name of the file
+     * @return Content of the file
+     * @throws IOException
+     */
+    private static byte[] read(File destination, String name) throws IOException {
+        return Files.readAllBytes(new File(destination, name).toPath());
+    }
+
+    /**
+     * Create the content of a small entry
+     * @param value Text of the entry
+     * @return Content
+     */
+    private static byte[] text(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}